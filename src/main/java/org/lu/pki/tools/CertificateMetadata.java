@@ -0,0 +1,231 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Разобранные расширения сертификата: адреса CRLDP, FreshestCRL, AIA и OCSP, SubjectKeyIdentifier, AuthorityKeyIdentifier и KeyUsage.
+ * Расширения разбираются один раз на сертификат (ключ - SHA-256 отпечаток) и затем используются проверкой сертификатов,
+ * пакетными запросами OCSP, обновлением CRL и поиском сертификатов в хранилище.
+ * Ошибка разбора расширения запоминается и повторяется при каждом обращении к нему, как при прямом вызове {@link PKIXUtils}.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CertificateMetadata {
+
+	private static final Logger LOG = Logger.getLogger(CertificateMetadata.class.getName());
+
+	static final int MAX_SIZE = 10000;
+
+	/**
+	 * fingerprint -> разобранные расширения
+	 */
+	private static final ConcurrentMap<String, CertificateMetadata> CACHE = new ConcurrentHashMap<String, CertificateMetadata>();
+
+	private static final AtomicLong HITS = new AtomicLong();
+
+	private static final AtomicLong MISSES = new AtomicLong();
+
+	private final String fingerprint;
+
+	private final List<String> crlDistributionPoints;
+
+	private final IOException crlDistributionPointsProblem;
+
+	private final List<String> freshestCrlUrls;
+
+	private final IOException freshestCrlUrlsProblem;
+
+	private final List<String> authorityInformationAccess;
+
+	private final List<String> ocspUrls;
+
+	private final RuntimeException authorityInformationAccessProblem;
+
+	private final byte[] subjectKeyIdentifier;
+
+	private final byte[] authorityKeyIdentifier;
+
+	private final boolean[] keyUsage;
+
+	private CertificateMetadata(String fingerprint, X509Certificate cert) {
+		this.fingerprint = fingerprint;
+
+		List<String> crldp = null;
+		IOException crldpProblem = null;
+		try {
+			crldp = Collections.unmodifiableList(PKIXUtils.getCrlDistributionPoints(cert));
+		} catch (IOException e) {
+			crldpProblem = e;
+		} catch (CertificateParsingException e) {
+			crldpProblem = new IOException(e.getMessage(), e);
+		} catch (RuntimeException e) { // ClassCastException и т.п. на поврежденном расширении
+			crldpProblem = new IOException("CRLDistributionPoints can't be parsed: " + e, e);
+		}
+		this.crlDistributionPoints = crldp;
+		this.crlDistributionPointsProblem = crldpProblem;
+
+		List<String> freshest = null;
+		IOException freshestProblem = null;
+		try {
+			freshest = Collections.unmodifiableList(PKIXUtils.getFreshestCrlUrls(cert));
+		} catch (IOException e) {
+			freshestProblem = e;
+		} catch (RuntimeException e) {
+			freshestProblem = new IOException("FreshestCRL can't be parsed: " + e, e);
+		}
+		this.freshestCrlUrls = freshest;
+		this.freshestCrlUrlsProblem = freshestProblem;
+
+		List<String> aia = null;
+		List<String> ocsp = null;
+		RuntimeException aiaProblem = null;
+		try {
+			aia = Collections.unmodifiableList(PKIXUtils.getAuthorityInformationAccess(cert));
+			ocsp = Collections.unmodifiableList(PKIXUtils.getOcspUrls(cert));
+		} catch (RuntimeException e) {
+			aiaProblem = e;
+		}
+		this.authorityInformationAccess = aia;
+		this.ocspUrls = ocsp;
+		this.authorityInformationAccessProblem = aiaProblem;
+
+		this.subjectKeyIdentifier = PKIXUtils.getSubjectKeyIdentifier(cert);
+		this.authorityKeyIdentifier = PKIXUtils.getAuthorityKeyIdentifier(cert);
+		this.keyUsage = cert.getKeyUsage();
+	}
+
+	/**
+	 * Разобранные расширения сертификата (из кэша или разбором).
+	 * @param cert
+	 * @return CertificateMetadata
+	 * @throws CertificateEncodingException - сертификат не кодируется для вычисления отпечатка
+	 */
+	public static CertificateMetadata of(X509Certificate cert) throws CertificateEncodingException {
+		String fingerprint = PKIXUtils.getFingerprint(cert);
+		CertificateMetadata metadata = CACHE.get(fingerprint);
+		if (metadata != null) {
+			HITS.incrementAndGet();
+			return metadata;
+		}
+		MISSES.incrementAndGet();
+		metadata = new CertificateMetadata(fingerprint, cert);
+		if (CACHE.size() >= MAX_SIZE) {
+			LOG.fine("Certificate metadata cache is full and will be cleared");
+			CACHE.clear();
+		}
+		CertificateMetadata raced = CACHE.putIfAbsent(fingerprint, metadata);
+		return raced != null ? raced : metadata;
+	}
+
+	/**
+	 * То же, что {@link #of(X509Certificate)}, для кода без проверяемых исключений:
+	 * сертификат, который не кодируется, разбирается без кэширования.
+	 */
+	static CertificateMetadata get(X509Certificate cert) {
+		try {
+			return of(cert);
+		} catch (CertificateEncodingException e) {
+			LOG.fine("Certificate " + cert.getSubjectDN().getName() + " can't be encoded and its metadata will not be cached: " + e.getMessage());
+			return new CertificateMetadata(null, cert);
+		}
+	}
+
+	/**
+	 * @return SHA-256 отпечаток сертификата (HEX, верхний регистр) или null, если сертификат не кодируется
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return адреса CRLDP (неизменяемый список)
+	 * @throws IOException - расширение повреждено
+	 */
+	public List<String> getCrlDistributionPoints() throws IOException {
+		if (crlDistributionPointsProblem != null) {
+			throw crlDistributionPointsProblem;
+		}
+		return crlDistributionPoints;
+	}
+
+	/**
+	 * @return адреса delta CRL из FreshestCRL (неизменяемый список)
+	 * @throws IOException - расширение повреждено
+	 */
+	public List<String> getFreshestCrlUrls() throws IOException {
+		if (freshestCrlUrlsProblem != null) {
+			throw freshestCrlUrlsProblem;
+		}
+		return freshestCrlUrls;
+	}
+
+	/**
+	 * @return все адреса из AuthorityInformationAccess (неизменяемый список)
+	 */
+	public List<String> getAuthorityInformationAccess() {
+		if (authorityInformationAccessProblem != null) {
+			throw authorityInformationAccessProblem;
+		}
+		return authorityInformationAccess;
+	}
+
+	/**
+	 * @return адреса OCSP из AuthorityInformationAccess (неизменяемый список)
+	 */
+	public List<String> getOcspUrls() {
+		if (authorityInformationAccessProblem != null) {
+			throw authorityInformationAccessProblem;
+		}
+		return ocspUrls;
+	}
+
+	/**
+	 * @return keyIdentifier из SubjectKeyIdentifier или null
+	 */
+	public byte[] getSubjectKeyIdentifier() {
+		return subjectKeyIdentifier != null ? subjectKeyIdentifier.clone() : null;
+	}
+
+	/**
+	 * @return keyIdentifier из AuthorityKeyIdentifier или null
+	 */
+	public byte[] getAuthorityKeyIdentifier() {
+		return authorityKeyIdentifier != null ? authorityKeyIdentifier.clone() : null;
+	}
+
+	/**
+	 * @return KeyUsage (как {@link X509Certificate#getKeyUsage()}) или null, если расширения нет
+	 */
+	public boolean[] getKeyUsage() {
+		return keyUsage != null ? keyUsage.clone() : null;
+	}
+
+	/**
+	 * @return количество сертификатов в кэше
+	 */
+	public static int getCacheSize() {
+		return CACHE.size();
+	}
+
+	public static long getHitCount() {
+		return HITS.get();
+	}
+
+	public static long getMissCount() {
+		return MISSES.get();
+	}
+
+	public static void invalidateAll() {
+		CACHE.clear();
+	}
+}
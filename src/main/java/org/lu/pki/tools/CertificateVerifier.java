@@ -1,23 +1,28 @@
 package org.lu.pki.tools;
 
 import static org.lu.pki.tools.PKIXUtils.chechValidDate;
-import static org.lu.pki.tools.PKIXUtils.downloadCRLFromWebDP;
-import static org.lu.pki.tools.PKIXUtils.getAuthorityInformationAccess;
-import static org.lu.pki.tools.PKIXUtils.getCrlDistributionPoints;
+import static org.lu.pki.tools.PKIXUtils.getCrlNumber;
+import static org.lu.pki.tools.PKIXUtils.getFreshestCrlUrls;
 import static org.lu.pki.tools.PKIXUtils.isIBMJ9;
+import static org.lu.pki.tools.PKIXUtils.isDeltaCRL;
 import static org.lu.pki.tools.PKIXUtils.isIbmCRLDPEnabled;
 import static org.lu.pki.tools.PKIXUtils.isIndirectCRL;
 import static org.lu.pki.tools.PKIXUtils.isOCSPEnabled;
 import static org.lu.pki.tools.PKIXUtils.isSelfSigned;
 import static org.lu.pki.tools.PKIXUtils.isSunCRLDPEnabled;
-import static org.lu.pki.tools.PKIXUtils.isX509Certificate;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
+import java.security.cert.CRLException;
 import java.security.cert.CertPath;
 import java.security.cert.CertPathBuilder;
 import java.security.cert.CertPathBuilderException;
@@ -26,25 +31,39 @@ import java.security.cert.CertPathValidatorException;
 import java.security.cert.CertPathValidatorResult;
 import java.security.cert.CertStore;
 import java.security.cert.Certificate;
-import java.security.cert.CertificateExpiredException;
-import java.security.cert.CertificateNotYetValidException;
+import java.security.cert.CertificateFactory;
 import java.security.cert.CollectionCertStoreParameters;
 import java.security.cert.PKIXBuilderParameters;
 import java.security.cert.PKIXCertPathBuilderResult;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509CRL;
-import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.Enumeration;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import javax.security.auth.x500.X500Principal;
+
 /**
  * Class for building a certification chain for given certificate and verifying
  * it. Relies on a set of root CA certificates and intermediate certificates
@@ -60,6 +79,318 @@ public class CertificateVerifier {
 	private static final String CERT_BUILDER_ALG_PKIX = "PKIX";
 
 	private static final Logger LOG = Logger.getLogger(CertificateVerifier.class.getName());
+	
+	private static final int CRL_STREAM_BUFFER_SIZE = 64 * 1024;
+	
+	/**
+	 * Поколение настроек проверки отзыва: увеличивается при замене кэша CRL, delta CRL, источника CRL, клиента OCSP, каталога индексов
+	 * и загрузчика CRL. Входит в ключ кэша результатов, поэтому результат, полученный до изменения настроек, не используется после него.
+	 */
+	private static final AtomicLong revocationConfigGeneration = new AtomicLong();
+	
+	/**
+	 * @return поколение настроек проверки отзыва (см. {@link VerificationResultCache#key(String, TrustSnapshot, boolean, String)})
+	 */
+	public static long getRevocationConfigGeneration() {
+		return revocationConfigGeneration.get();
+	}
+	
+	private static volatile VerificationResultCache resultCache = new VerificationResultCache(VerificationResultCache.DEFAULT_MAX_SIZE, VerificationResultCache.DEFAULT_TTL_MILLIS);
+	
+	/**
+	 * Настройка кэша результатов проверки сертификатов.
+	 * @param maxSize - максимальное количество результатов в кэше. 0 - кэш отключен.
+	 * @param ttlMillis - максимальное время жизни результата (кроме того, результат живет не дольше сертификатов цепочки и nextUpdate CRL).
+	 */
+	public static void setResultCache(int maxSize, long ttlMillis) {
+		VerificationResultCache old = resultCache;
+		resultCache = maxSize > 0 ? new VerificationResultCache(maxSize, ttlMillis) : null;
+		if (old != null) {
+			old.invalidateAll();
+		}
+	}
+	
+	/**
+	 * @return текущий кэш результатов проверки (счетчики попаданий и промахов) или null, если кэш отключен.
+	 */
+	public static VerificationResultCache getResultCache() {
+		return resultCache;
+	}
+	
+	private static volatile CrlCache crlCache = new CrlCache(CrlCache.DEFAULT_MAX_BYTES);
+	
+	/**
+	 * Настройка кэша CRL (используется при ручной проверке в CRLDP).
+	 * @param maxBytes - максимальный суммарный размер CRL в кэше. 0 - кэш отключен.
+	 */
+	public static void setCrlCache(long maxBytes) {
+		CrlCache old = crlCache;
+		crlCache = maxBytes > 0 ? new CrlCache(maxBytes) : null;
+		revocationConfigGeneration.incrementAndGet();
+		if (old != null) {
+			old.invalidateAll();
+		}
+	}
+	
+	/**
+	 * @return текущий кэш CRL или null, если кэш отключен.
+	 */
+	public static CrlCache getCrlCache() {
+		return crlCache;
+	}
+	
+	private static volatile DeltaCrlCache deltaCrlCache = new DeltaCrlCache(DeltaCrlCache.DEFAULT_MAX_ENTRIES);
+	
+	/**
+	 * Настройка кэша delta CRL (расширение FreshestCRL сертификата или полного CRL).
+	 * При ручной проверке состояние отзыва складывается из полного CRL и delta CRL, при автоматической (Sun CRLDP)
+	 * delta CRL дополнительно проверяется {@link DeltaCrlCertPathChecker}.
+	 * @param maxEntries - максимальное количество delta CRL в кэше. 0 - delta CRL не используются.
+	 */
+	public static void setDeltaCrlCache(int maxEntries) {
+		DeltaCrlCache old = deltaCrlCache;
+		deltaCrlCache = maxEntries > 0 ? new DeltaCrlCache(maxEntries) : null;
+		revocationConfigGeneration.incrementAndGet();
+		if (old != null) {
+			old.invalidateAll();
+		}
+	}
+	
+	/**
+	 * @return текущий кэш delta CRL или null, если delta CRL не используются.
+	 */
+	public static DeltaCrlCache getDeltaCrlCache() {
+		return deltaCrlCache;
+	}
+	
+	private static volatile CrlSource crlSource = null;
+	
+	/**
+	 * Подключение источника CRL без сети (например, {@link OfflineCrlDirectory}). CRL источника используются раньше загрузки по сети:
+	 * если источник содержит CRL для сертификата, проверка выполняется вручную по CRL (и delta CRL) источника без сетевых обращений,
+	 * в том числе без OCSP и встроенной проверки CRLDP. По источнику проверяются сертификат и все сертификаты УЦ его цепочки
+	 * (кроме доверенного). Проверяются только CRLDP, для которых в источнике есть CRL; по сети - только если включен
+	 * {@link #setCrlSourceNetworkFallback(boolean)}, иначе сертификат УЦ без CRL в источнике на отзыв не проверяется.
+	 * @param source - источник CRL или null, чтобы загружать CRL только по сети
+	 */
+	public static void setCrlSource(CrlSource source) {
+		crlSource = source;
+		revocationConfigGeneration.incrementAndGet();
+	}
+	
+	public static CrlSource getCrlSource() {
+		return crlSource;
+	}
+	
+	private static volatile boolean crlSourceNetworkFallback = false;
+	
+	/**
+	 * Загрузка CRL по сети, если источник без сети ({@link #setCrlSource(CrlSource)}) применим к сертификату,
+	 * но не содержит действительного CRL для сертификата цепочки. По умолчанию выключена (изолированный контур).
+	 * @param fallback - true, чтобы при отсутствии CRL в источнике проверять CRLDP по сети
+	 */
+	public static void setCrlSourceNetworkFallback(boolean fallback) {
+		crlSourceNetworkFallback = fallback;
+		revocationConfigGeneration.incrementAndGet();
+	}
+	
+	public static boolean isCrlSourceNetworkFallback() {
+		return crlSourceNetworkFallback;
+	}
+	
+	private static volatile OcspBatcher ocspBatcher = null;
+	
+	/**
+	 * Подключение собственного клиента OCSP (с кэшем ответов) вместо встроенной проверки по ocsp.enable.
+	 * Если при этом включен CRLDP (Sun), то встроенная проверка отзыва тоже выполняется, и при ocsp.enable=true JVM обратится к OCSP сама.
+	 * Статусы всей цепочки запрашиваются пакетом ({@link OcspBatcher}), окно накопления настраивается через {@link #getOcspBatcher()}.
+	 * Пул отправки прежнего батчера останавливается.
+	 * @param client - клиент OCSP или null, чтобы вернуться к встроенной проверке
+	 */
+	public static synchronized void setOcspClient(OcspClient client) {
+		final OcspBatcher previous = ocspBatcher;
+		ocspBatcher = client != null ? new OcspBatcher(client) : null;
+		revocationConfigGeneration.incrementAndGet();
+		if (previous != null) {
+			previous.shutdown();
+		}
+	}
+	
+	public static OcspClient getOcspClient() {
+		final OcspBatcher batcher = ocspBatcher;
+		return batcher != null ? batcher.getClient() : null;
+	}
+	
+	public static OcspBatcher getOcspBatcher() {
+		return ocspBatcher;
+	}
+	
+	/**
+	 * Пакетный запрос статусов OCSP для нескольких сертификатов заранее (например, всех подписантов SignedData).
+	 * Статусы попадают в кэш клиента OCSP, и последующие {@link #verifyCertificate} берут их оттуда.
+	 * Ничего не делает, если клиент OCSP не подключен или его кэш выключен.
+	 * @param certs - сертификаты (издатели ищутся среди них и в хранилище)
+	 * @param keyStore - хранилище доверенных и промежуточных сертификатов
+	 */
+	public static void prefetchOcspStatuses(Collection<X509Certificate> certs, KeyStore keyStore) {
+		final OcspBatcher batcher = ocspBatcher;
+		if (batcher == null || batcher.getClient().getResponseCache() == null || certs.isEmpty()) {
+			return;
+		}
+		final TrustSnapshot trustSnapshot;
+		try {
+			trustSnapshot = TrustSnapshot.of(keyStore);
+		} catch (GeneralSecurityException e) {
+			LOG.warning("OCSP statuses can't be prefetched. " + e.getMessage());
+			return;
+		}
+		Map<X509Certificate, X509Certificate> issuers = new LinkedHashMap<X509Certificate, X509Certificate>();
+		for (X509Certificate cert : certs) {
+			if (cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal()) || CertificateMetadata.get(cert).getOcspUrls().isEmpty()) { // корневые не проверяются
+				continue;
+			}
+			List<X509Certificate> candidates = new ArrayList<X509Certificate>(trustSnapshot.getCertificatesBySubject(cert.getIssuerX500Principal()));
+			for (X509Certificate other : certs) {
+				if (other.getSubjectX500Principal().equals(cert.getIssuerX500Principal()) && !candidates.contains(other)) {
+					candidates.add(other);
+				}
+			}
+			for (X509Certificate candidate : candidates) {
+				try {
+					cert.verify(candidate.getPublicKey());
+					issuers.put(cert, candidate);
+					break;
+				} catch (Exception e) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(candidate.getSubjectDN().getName() + " is not issuer of " + cert.getSubjectDN().getName() + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+		if (!issuers.isEmpty()) {
+			batcher.getStatuses(issuers);
+		}
+	}
+	
+	private static volatile RevocationIndexDirectory revocationIndexDirectory = null;
+	
+	/**
+	 * Включение индексов отозванных серийных номеров в отображаемых в память файлах (см. {@link RevocationIndex}).
+	 * Загруженные CRL преобразуются в индексы в заданном каталоге и не хранятся в heap. Каталог может быть общим для нескольких JVM.
+	 * @param directory - каталог индексов или null, чтобы отключить индексы
+	 * @throws IOException - если каталог не удалось создать
+	 */
+	public static void setRevocationIndexDirectory(File directory) throws IOException {
+		revocationIndexDirectory = directory != null ? new RevocationIndexDirectory(directory) : null;
+		revocationConfigGeneration.incrementAndGet();
+	}
+	
+	public static RevocationIndexDirectory getRevocationIndexDirectory() {
+		return revocationIndexDirectory;
+	}
+	
+	private static volatile CrlRefreshScheduler crlRefreshScheduler = null;
+	
+	private static volatile EndpointHealthTracker endpointHealthTracker = new EndpointHealthTracker();
+	
+	/**
+	 * @param tracker - состояние CRLDP с выключением недоступных точек или null, чтобы обращаться ко всем CRLDP всегда
+	 */
+	public static void setEndpointHealthTracker(EndpointHealthTracker tracker) {
+		final EndpointHealthTracker previous = endpointHealthTracker;
+		endpointHealthTracker = tracker;
+		if (previous != null && previous != tracker) {
+			previous.shutdown();
+		}
+	}
+	
+	/**
+	 * @return состояние CRLDP (для мониторинга: {@link EndpointHealthTracker#getStates()})
+	 */
+	public static EndpointHealthTracker getEndpointHealthTracker() {
+		return endpointHealthTracker;
+	}
+	
+	private static volatile RevocationHttpFetcher crlFetcher = new RevocationHttpFetcher();
+	
+	/**
+	 * Загрузка CRL по HTTP: таймауты, gzip и условные запросы (If-None-Match / If-Modified-Since) при наличии копии в кэше CRL или в индексе.
+	 * @param fetcher - загрузчик CRL (не null)
+	 */
+	public static void setCrlFetcher(RevocationHttpFetcher fetcher) {
+		if (fetcher == null) {
+			throw new IllegalArgumentException("CRL fetcher can't be null");
+		}
+		crlFetcher = fetcher;
+		revocationConfigGeneration.incrementAndGet();
+	}
+	
+	/**
+	 * @return загрузчик CRL (счетчики полных загрузок и ответов 304)
+	 */
+	public static RevocationHttpFetcher getCrlFetcher() {
+		return crlFetcher;
+	}
+	
+	private static volatile long crlHedgeDelayMillis = -1;
+	
+	/**
+	 * Опережающая (hedged) загрузка при нескольких CRLDP в сертификате (ручная проверка CRL): если первый CRLDP не дал результата
+	 * за hedgeDelayMillis, параллельно запускается загрузка со следующего зеркала. Побеждает первый проверенный CRL.
+	 * @param hedgeDelayMillis - задержка перед запуском следующего зеркала или -1, чтобы перебирать CRLDP по очереди (по умолчанию)
+	 */
+	public static void setCrlHedgeDelayMillis(long hedgeDelayMillis) {
+		crlHedgeDelayMillis = hedgeDelayMillis;
+	}
+	
+	public static long getCrlHedgeDelayMillis() {
+		return crlHedgeDelayMillis;
+	}
+	
+	private static final int MAX_HEDGE_THREADS = 32;
+	
+	/**
+	 * Потоки опережающих загрузок. Если все заняты, проверка по зеркалу выполняется в вызывающем потоке (без опережения).
+	 */
+	private static final ExecutorService HEDGE_EXECUTOR = new ThreadPoolExecutor(0, MAX_HEDGE_THREADS, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+		private final AtomicInteger threadNumber = new AtomicInteger();
+		
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "crl-hedge-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}, new ThreadPoolExecutor.CallerRunsPolicy());
+	
+	/**
+	 * Отмена запросов опережающей загрузки, выполняемой в текущем потоке (null вне опережающей загрузки).
+	 */
+	private static final ThreadLocal<RevocationHttpFetcher.Cancellation> HEDGE_CANCELLATION = new ThreadLocal<RevocationHttpFetcher.Cancellation>();
+	
+	/**
+	 * Идущие загрузки CRL и индексов: одновременные запросы одного CRLDP ждут одну загрузку.
+	 */
+	private static final SingleFlight<List<Object>, X509CRL> CRL_LOADS = new SingleFlight<List<Object>, X509CRL>();
+	
+	private static final SingleFlight<List<Object>, RevocationIndex> INDEX_LOADS = new SingleFlight<List<Object>, RevocationIndex>();
+	
+	private static final SingleFlight<List<Object>, DeltaCrlCache.Entry> DELTA_LOADS = new SingleFlight<List<Object>, DeltaCrlCache.Entry>();
+	
+	/**
+	 * Подключение фонового обновления CRL. CRLDP успешно проверенных сертификатов передаются планировщику,
+	 * если проверка читает то, что он обновляет: ручная проверка CRLDP (IBM J9) - всегда, встроенная проверка CRLDP (Sun) -
+	 * только с кэшом CRL и без каталога индексов (CRL из кэша передаются CertPathValidator через CertStore,
+	 * а индекс встроенная проверка читать не умеет). Проверка только через OCSP CRLDP планировщику не передает.
+	 * @param scheduler - планировщик или null, чтобы отключить передачу CRLDP (сам планировщик не останавливается).
+	 */
+	public static void setCrlRefreshScheduler(CrlRefreshScheduler scheduler) {
+		crlRefreshScheduler = scheduler;
+	}
+	
+	public static CrlRefreshScheduler getCrlRefreshScheduler() {
+		return crlRefreshScheduler;
+	}
 		
 	/**
 	 * Построение цепочки сертификатов и их проверка в CRLDP и(или) OCSP
@@ -75,36 +406,19 @@ public class CertificateVerifier {
 	
 	
 	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, KeyStore keyStore, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
-		Set<X509Certificate> allStoredCerts = new HashSet<X509Certificate>();
-		// выборка всех сертификатов из хранилища
+		// подготовленный снимок хранилища (строится один раз на версию хранилища)
+		final TrustSnapshot trustSnapshot;
 		try {
-			Enumeration<String> aliases = keyStore.aliases();
-			while (aliases.hasMoreElements()) {
-				String alias = aliases.nextElement();
-				Certificate c = keyStore.getCertificate(alias);
-				if (!isX509Certificate(c)) {
-					continue;
-				}
-				try {
-					chechValidDate(c);
-				} catch (CertificateExpiredException cee) {
-					LOG.severe(alias + " (" + ((X509Certificate)c).getSubjectDN().getName() + ") expired " + cee.getMessage() + " and skipped");
-					continue;
-				} catch (CertificateNotYetValidException cnyve) {
-					LOG.severe(alias + " (" + ((X509Certificate)c).getSubjectDN().getName() + ") not yet valide " + cnyve.getMessage() + " and skipped");
-					continue;
-				}
-				allStoredCerts.add((X509Certificate) c);
-			}
+			trustSnapshot = TrustSnapshot.of(keyStore);
 		} catch (KeyStoreException e) {
 			throw new CertificateVerificationException("Key store access problem.", e);
+		} catch (GeneralSecurityException e) {
+			throw new CertificateVerificationException("Error verifying the certificate: " + cert.getSubjectX500Principal() + ". " + e.getMessage(), e);
 		}
        
-        return verifyCertificate(cert, allStoredCerts, allowSelfSigned, provider);
+        return verifyCertificate(cert, trustSnapshot, allowSelfSigned, provider);
 	}
 
-	
-
 	/**
 	 * Attempts to build a certification chain for given certificate and to
 	 * verify it. Relies on a set of root CA certificates and intermediate
@@ -130,6 +444,30 @@ public class CertificateVerifier {
 	 *             expired or CRL checks are failed)
 	 */
 	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, Set<X509Certificate> additionalCerts, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
+		final TrustSnapshot trustSnapshot;
+		try {
+			trustSnapshot = TrustSnapshot.of(additionalCerts);
+		} catch (GeneralSecurityException e) {
+			throw new CertificateVerificationException("Error verifying the certificate: " + cert.getSubjectX500Principal() + ". " + e.getMessage(), e);
+		}
+		return verifyCertificate(cert, trustSnapshot, allowSelfSigned, provider);
+	}
+	
+	/**
+	 * Attempts to build a certification chain for given certificate and to
+	 * verify it using prepared trust snapshot (trust anchors, intermediate
+	 * certificates and PKIX parameters template).
+	 * 
+	 * @param cert
+	 *            - certificate for validation
+	 * @param trustSnapshot
+	 *            - prepared trusted and intermediate certificates
+	 * @param allowSelfSigned - допускать самоподписанные сертификаты
+	 * @return the certification chain (if verification is successful)
+	 * @throws CertificateVerificationException
+	 *             - if the certification is not successful
+	 */
+	public static CertificateVerificationResult verifyCertificate(X509Certificate cert, TrustSnapshot trustSnapshot, boolean allowSelfSigned, String provider) throws CertificateVerificationException {
 		try {
 			// check for valid date
 			chechValidDate(cert);
@@ -141,59 +479,99 @@ public class CertificateVerifier {
 				throw new CertificateVerificationException("Self-signed certificates are not allowed.");
 			}
 
-			// Prepare a set of trusted root CA certificates and a set of intermediate certificates
-			Set<X509Certificate> trustedRootCerts = new HashSet<X509Certificate>();
-			Set<X509Certificate> intermediateCerts = new HashSet<X509Certificate>();
-			LOG.fine("Start sorting certificates...");
-			for (X509Certificate additionalCert : additionalCerts) {
-				if (isSelfSigned(additionalCert)) {
-					trustedRootCerts.add(additionalCert);
+			// расширения сертификата разбираются один раз (кэш по отпечатку)
+			CertificateMetadata metadata = CertificateMetadata.of(cert);
+			final VerificationResultCache cache = resultCache;
+			String cacheKey = null;
+			if (cache != null) {
+				cacheKey = VerificationResultCache.key(metadata.getFingerprint(), trustSnapshot, allowSelfSigned, provider);
+				CertificateVerificationResult cached = cache.get(cacheKey);
+				if (cached != null) {
 					if (LOG.isLoggable(Level.FINE)) {
-						LOG.fine("Certificate " + additionalCert.getSubjectDN().getName() + " added as trusted certificate (TRUSTED)");
-					}
-				} else {
-					intermediateCerts.add(additionalCert);
-					if (LOG.isLoggable(Level.FINE)) {
-						LOG.fine("Certificate " + additionalCert.getSubjectDN().getName() + " added as intermediate certificate (INTERMID)");
+						LOG.fine("Certificate " + cert.getSubjectDN().getName() + " already verified (cached result)");
 					}
+					return cached;
 				}
 			}
-			
+
 			// Attempt to build the certification chain
-			PKIXCertPathBuilderResult verifiedCertChain = buildCertificateChain(cert, trustedRootCerts, intermediateCerts, provider);
+			PKIXCertPathBuilderResult verifiedCertChain = buildCertificateChain(cert, trustSnapshot, provider);
 			
 			if (LOG.isLoggable(Level.FINE)) {
 				LOG.fine("Start certificate validation (data, crldp, ocsp and so on)");
-				LOG.fine("Revocation strategy: OCSP " + (isOCSPEnabled()?"enabled":"disabled") + ", CRLDP (sun) " + (isSunCRLDPEnabled()? "enabled":"disabled") + ", CRLDP (ibm) " + (isIbmCRLDPEnabled()?"enabled":"disabled"));
+				LOG.fine("Revocation strategy: OCSP " + (isOCSPEnabled()?"enabled":"disabled") + ", OCSP client " + (ocspBatcher != null?"enabled":"disabled") + ", CRLDP (sun) " + (isSunCRLDPEnabled()? "enabled":"disabled") + ", CRLDP (ibm) " + (isIbmCRLDPEnabled()?"enabled":"disabled"));
 			}
 			// Check whether the certificate is revoked by the CRL
 			// given in its CRL distribution point extension
 			CertPathValidatorResult validatedCertChain = null;
+			// проверка прочитала CRL, которые обновляет CrlRefreshScheduler (кэш CRL или каталог индексов)
+			boolean refreshableCRLs = false;
 			
-			boolean certHasOCSPUrls = getAuthorityInformationAccess(cert).size() > 0;
-			boolean certHasCRLDPUrls = getCrlDistributionPoints(cert).size() > 0;
+			boolean certHasOCSPUrls = metadata.getAuthorityInformationAccess().size() > 0;
+			List<String> crlDistPoints = metadata.getCrlDistributionPoints();
+			boolean certHasCRLDPUrls = crlDistPoints.size() > 0;
+			// CRL из источника без сети имеет приоритет над OCSP и CRLDP
+			boolean offlineCRL = hasOfflineCRL(cert, crlDistPoints);
 			
-			if (!isIBMJ9()) { // non-IBM VMs
-				if ((isOCSPEnabled() || isSunCRLDPEnabled()) && (certHasOCSPUrls || certHasCRLDPUrls)) {
-					validatedCertChain = verifyCertificateCRLsAutomatic(cert, verifiedCertChain.getCertPath(), trustedRootCerts, intermediateCerts, provider);
+			// собственный клиент OCSP подключается к CertPathValidator как PKIXCertPathChecker (и в Sun, и в IBM J9)
+			final OcspBatcher batcher = ocspBatcher;
+			OcspCertPathChecker ocspChecker = null;
+			if (batcher != null && certHasOCSPUrls && !offlineCRL) {
+				// статусы всей цепочки одним запросом на каждый OCSP-сервер
+				X509Certificate trustedCert = verifiedCertChain.getTrustAnchor().getTrustedCert();
+				@SuppressWarnings("unchecked")
+				List<X509Certificate> chain = (List<X509Certificate>) verifiedCertChain.getCertPath().getCertificates();
+				Map<X509Certificate, OcspStatus> chainStatuses = batcher.getChainStatuses(chain, trustedCert);
+				ocspChecker = new OcspCertPathChecker(batcher.getClient(), trustedCert, chainStatuses);
+			}
+			boolean ocspEnabled = isOCSPEnabled() || ocspChecker != null;
+			// встроенная проверка CRLDP (Sun) не загружает delta CRL - их проверяет собственный checker
+			DeltaCrlCertPathChecker deltaChecker = !isIBMJ9() && isSunCRLDPEnabled() && deltaCrlCache != null ? new DeltaCrlCertPathChecker(trustSnapshot) : null;
+			
+			if (offlineCRL) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("CRL for " + cert.getSubjectDN().getName() + " found in offline source. Switch CRLDP check to manual mode.");
+				}
+				validatedCertChain = verifyCertificateCRLsOffline(verifiedCertChain.getCertPath(), trustSnapshot);
+			} else if (!isIBMJ9()) { // non-IBM VMs
+				if ((ocspEnabled || isSunCRLDPEnabled()) && (certHasOCSPUrls || certHasCRLDPUrls)) {
+					validatedCertChain = verifyCertificateCRLsAutomatic(cert, verifiedCertChain.getCertPath(), trustSnapshot, provider, ocspChecker, deltaChecker);
+					// планировщик при заданном каталоге индексов обновляет индекс, а не кэш, из которого берется CertStore
+					refreshableCRLs = isSunCRLDPEnabled() && crlCache != null && revocationIndexDirectory == null;
 				} else {
 					LOG.warning("Certificate " + cert.getSubjectDN().getName() + " not verified. Either OCSP-CRLDP disabled or cert doesn't have appropriate URLs");
 				}
 			} else { // for IBM J9
-				if (isOCSPEnabled() && certHasOCSPUrls) { // Проверка осуществляется или в OCSP (приоритетно) или в CRLDP - оба не имеют смысла
+				if (ocspEnabled && certHasOCSPUrls) { // Проверка осуществляется или в OCSP (приоритетно) или в CRLDP - оба не имеют смысла
 					if (LOG.isLoggable(Level.FINE)) {
 						LOG.fine("OCSP detected. Switch checking to automatic mode for IBM VM.");
 					} 
-					validatedCertChain = verifyCertificateCRLsAutomatic(cert, verifiedCertChain.getCertPath(), trustedRootCerts, intermediateCerts, provider);
+					validatedCertChain = verifyCertificateCRLsAutomatic(cert, verifiedCertChain.getCertPath(), trustSnapshot, provider, ocspChecker, null);
 				} else if (isIbmCRLDPEnabled() && certHasCRLDPUrls) {
 					LOG.fine("Switch CRLDP check to manual mode for IBM VM. IBMs CRLDP enabled and certificate has CRLDP urls.");
-					validatedCertChain = verifyCertificateCRLsManually(cert, additionalCerts);
+					validatedCertChain = verifyCertificateCRLsManually(cert, trustSnapshot);
+					refreshableCRLs = true;
 				}
 				
 			}
 			
 			// The chain is built and verified. Return it as a result
-			return new CertificateVerificationResult(verifiedCertChain, validatedCertChain);
+			CertificateVerificationResult result = new CertificateVerificationResult(verifiedCertChain, validatedCertChain);
+			final CrlRefreshScheduler scheduler = crlRefreshScheduler;
+			if (scheduler != null && certHasCRLDPUrls && refreshableCRLs) { // CRL недавно проверенных сертификатов обновляются в фоне
+				scheduler.register(crlDistPoints);
+			}
+			if (cache != null) {
+				Date revocationNextUpdate = validatedCertChain instanceof LocalCertPathValidatorResult ? ((LocalCertPathValidatorResult) validatedCertChain).getNextUpdate() : null;
+				if (ocspChecker != null && ocspChecker.getNextUpdate() != null && (revocationNextUpdate == null || ocspChecker.getNextUpdate().before(revocationNextUpdate))) {
+					revocationNextUpdate = ocspChecker.getNextUpdate();
+				}
+				if (deltaChecker != null && deltaChecker.getNextUpdate() != null && (revocationNextUpdate == null || deltaChecker.getNextUpdate().before(revocationNextUpdate))) {
+					revocationNextUpdate = deltaChecker.getNextUpdate();
+				}
+				cache.put(cacheKey, result, revocationNextUpdate);
+			}
+			return result;
 			
 		} catch (CertPathBuilderException certPathEx) {
 			LOG.severe("Chain build failed: " + certPathEx.toString());
@@ -228,31 +606,27 @@ public class CertificateVerifier {
 	 *             expired)
 	 */
 	public static PKIXCertPathBuilderResult buildCertificateChain(X509Certificate cert, Set<X509Certificate> trustedRootCerts, Set<X509Certificate> intermediateCerts, String provider) throws GeneralSecurityException {
+		return buildCertificateChain(cert, TrustSnapshot.build(trustedRootCerts, intermediateCerts), provider);
+	}
+	
+	/**
+	 * Attempts to build a certification chain for given certificate using
+	 * prepared trust snapshot.
+	 * 
+	 * @param cert
+	 *            - certificate for validation
+	 * @param trustSnapshot
+	 *            - trusted root CA certificates and intermediate certificates
+	 * @return the certification chain (if verification is successful)
+	 * @throws GeneralSecurityException
+	 *             - if the verification is not successful
+	 */
+	public static PKIXCertPathBuilderResult buildCertificateChain(X509Certificate cert, TrustSnapshot trustSnapshot, String provider) throws GeneralSecurityException {
 		if (LOG.isLoggable(Level.FINE)) {
 			LOG.fine("Building cert chain for " + cert.getSubjectDN().getName() + ", serial " + cert.getSerialNumber());
 		}
-		// Create the selector that specifies the starting certificate
-		X509CertSelector selector = new X509CertSelector();
-		selector.setCertificate(cert);
-		
-		intermediateCerts.add(cert); // Workaround for IBM J9
-
-		// Create the trust anchors (set of root CA certificates)
-		Set<TrustAnchor> trustAnchors = new HashSet<TrustAnchor>();
-		for (X509Certificate trustedRootCert : trustedRootCerts) {
-			trustAnchors.add(new TrustAnchor(trustedRootCert, null));
-		}
-
-		// Configure the PKIX certificate builder algorithm parameters
-		PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(trustAnchors, selector); 
-
-		// Disable CRL checks (this is done manually as additional step)
-		pkixParams.setRevocationEnabled(false);
-
-		// Specify a list of intermediate certificates
-		CertStore intermediateCertStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediateCerts));
-		pkixParams.addCertStore(intermediateCertStore);
-		pkixParams.setSigProvider(provider);
+		// Configure the PKIX certificate builder algorithm parameters. Disable CRL checks (this is done manually as additional step)
+		PKIXBuilderParameters pkixParams = trustSnapshot.newBuilderParameters(cert, provider, false);
 
 		// Build and verify the certification chain
 		CertPathBuilder builder = CryptoUtils.getCertPathBuilder();
@@ -277,37 +651,35 @@ public class CertificateVerifier {
 	 * Автоматическая валидация сертификата через флаги включения OCSP и CRLDP с помощью CertPathValidator
 	 * @param cert - сертификат, который нужно проверить в CRL
 	 * @param certPath - сепочка сертификатов полеченная от билдера или из хранилища
-	 * @param trustedRootCerts - набор доверенных сертификатов
-	 * @param intermediateCerts - набор промежуточных сертификатов для построения цепочки (ну вот такое тупое API у java в этом месте, потому что из цепочки нельзя обратно выбрать trusted и intermid сертификаты)
+	 * @param trustSnapshot - доверенные и промежуточные сертификаты для построения цепочки
+	 * @param ocspChecker - проверка OCSP собственным клиентом вместо встроенной (или null)
+	 * @param deltaChecker - проверка по delta CRL в дополнение к встроенной проверке CRLDP (или null)
 	 * @return
 	 * @throws CertPathValidatorException
 	 * @throws InvalidAlgorithmParameterException
 	 * @throws NoSuchAlgorithmException
 	 * @throws NoSuchProviderException 
 	 */
-	private static CertPathValidatorResult verifyCertificateCRLsAutomatic(X509Certificate cert, CertPath certPath, Set<X509Certificate> trustedRootCerts, Set<X509Certificate> intermediateCerts, String provider) throws CertPathValidatorException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchProviderException {
+	private static CertPathValidatorResult verifyCertificateCRLsAutomatic(X509Certificate cert, CertPath certPath, TrustSnapshot trustSnapshot, String provider, OcspCertPathChecker ocspChecker, DeltaCrlCertPathChecker deltaChecker) throws CertPathValidatorException, InvalidAlgorithmParameterException, NoSuchAlgorithmException, NoSuchProviderException {
 		boolean isFine = LOG.isLoggable(Level.FINE);
 		
-		// Create the selector that specifies the starting certificate
-		X509CertSelector selector = new X509CertSelector();
-		selector.setCertificate(cert);
-
-		// Create the trust anchors (set of root CA certificates)
-		Set<TrustAnchor> trustAnchors = new HashSet<TrustAnchor>();
-		for (X509Certificate trustedRootCert : trustedRootCerts) {
-			trustAnchors.add(new TrustAnchor(trustedRootCert, null));
+		// Configure the PKIX certificate builder algorithm parameters. Enable CRL checks.
+		// С собственным клиентом OCSP встроенная проверка нужна только для CRLDP (Sun)
+		boolean revocationEnabled = ocspChecker == null || (!isIBMJ9() && isSunCRLDPEnabled());
+		PKIXBuilderParameters pkixParams = trustSnapshot.newBuilderParameters(cert, provider, revocationEnabled);
+		if (ocspChecker != null) {
+			pkixParams.addCertPathChecker(ocspChecker);
+		}
+		if (deltaChecker != null && revocationEnabled) {
+			pkixParams.addCertPathChecker(deltaChecker);
+		}
+		if (revocationEnabled && !isIBMJ9() && isSunCRLDPEnabled()) {
+			// полный CRL из CertStore встроенная проверка не загружает по CRLDP повторно
+			Collection<X509CRL> cachedCRLs = getCachedCRLs(certPath, trustSnapshot, new Date());
+			if (!cachedCRLs.isEmpty()) {
+				pkixParams.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(cachedCRLs)));
+			}
 		}
-		
-		// Configure the PKIX certificate builder algorithm parameters
-		PKIXBuilderParameters pkixParams = new PKIXBuilderParameters(trustAnchors, selector);
-
-		// Enable CRL checks
-		pkixParams.setRevocationEnabled(true);
-		
-		// Specify a list of intermediate certificates
-		CertStore intermediateCertStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(intermediateCerts));
-		pkixParams.addCertStore(intermediateCertStore);
-		pkixParams.setSigProvider(provider);
 
 		final CertPathValidator validator = CertPathValidator.getInstance(CERT_BUILDER_ALG_PKIX);
 		
@@ -324,7 +696,58 @@ public class CertificateVerifier {
 		return validationResult;
 	}
 	
+	/**
+	 * CRL из кэша (в том числе обновленные в фоне {@link CrlRefreshScheduler}) для CRLDP сертификатов цепочки.
+	 * Берутся только CRL с не наступившим nextUpdate, подпись которых проверена сертификатом из снимка.
+	 */
+	private static Collection<X509CRL> getCachedCRLs(CertPath certPath, TrustSnapshot trustSnapshot, Date currentDate) {
+		final CrlCache cache = crlCache;
+		List<X509CRL> crls = new ArrayList<X509CRL>();
+		if (cache == null) {
+			return crls;
+		}
+		for (Certificate c : certPath.getCertificates()) {
+			List<String> crlDistPoints;
+			try {
+				crlDistPoints = CertificateMetadata.get((X509Certificate) c).getCrlDistributionPoints();
+			} catch (IOException e) {
+				continue; // встроенная проверка сообщит о поврежденном расширении сама
+			}
+			for (String url : crlDistPoints) {
+				CrlCache.Entry entry = cache.get(url, currentDate);
+				if (entry != null && trustSnapshot.getAllCerts().contains(entry.getIssuerCert()) && !crls.contains(entry.getCrl())) {
+					crls.add(entry.getCrl());
+				}
+			}
+		}
+		if (LOG.isLoggable(Level.FINE) && !crls.isEmpty()) {
+			LOG.fine(crls.size() + " cached CRL(s) passed to CertPathValidator");
+		}
+		return crls;
+	}
+	
 	public static class LocalCertPathValidatorResult implements CertPathValidatorResult {
+		
+		private final Date nextUpdate;
+		
+		public LocalCertPathValidatorResult() {
+			this(null);
+		}
+		
+		/**
+		 * @param nextUpdate - nextUpdate CRL, по которому проверен сертификат
+		 */
+		public LocalCertPathValidatorResult(Date nextUpdate) {
+			this.nextUpdate = nextUpdate;
+		}
+		
+		/**
+		 * @return nextUpdate CRL, по которому проверен сертификат (или null)
+		 */
+		public Date getNextUpdate() {
+			return nextUpdate;
+		}
+		
 		@Override
 		public Object clone() {
 			return this;
@@ -334,101 +757,770 @@ public class CertificateVerifier {
 	
 	/**
 	 * Проверка сертификата в CRLDP не через CertPathValidator, а вручную в X509CRL. При этом проверяется CRL на дату актуальности и его подпись.
-	 * В этом методе из сертификата выделяются CRLDP и загружаются по сети. Далее они преобразуются в X509CRL и в нем уже проверяется на отозванность.
+	 * В этом методе из сертификата выделяются CRLDP и загружаются по сети (или берутся из кэша CRL). Далее они преобразуются в X509CRL и в нем уже проверяется на отозванность.
 	 * @param cert - сертификат для проверки.
-	 * @param certsForCRLSignatureValidation - сертификаты для проверки подписи самого CRL
+	 * @param trustSnapshot - сертификаты для проверки подписи самого CRL
 	 * @return
 	 * @throws CertificateVerificationException
 	 */
-	private static CertPathValidatorResult verifyCertificateCRLsManually(X509Certificate cert, Set<X509Certificate> certsForCRLSignatureValidation) throws CertificateVerificationException {
+	private static CertPathValidatorResult verifyCertificateCRLsManually(X509Certificate cert, TrustSnapshot trustSnapshot) throws CertificateVerificationException {
 		Date currentDate = new Date();
 		try {
-			List<String> crlDistPoints = getCrlDistributionPoints(cert);
-			boolean crldpURLaccepted = false;
-			for (String crlDPointURL : crlDistPoints) { // iterate over CRL distribution points
-				LOG.log(Level.FINE, "Downloading CRL: " + crlDPointURL );
-				X509CRL crl = null;
+			CrlCheck check = checkCRLDPs(cert, CertificateMetadata.of(cert).getCrlDistributionPoints(), trustSnapshot, currentDate);
+			//----------------------------
+			// а вот теперь проверка на отозванность сертификата
+			if (check.revoked) {
+				throw new CertificateVerificationException("The certificate is revoked by CRL: " + check.url);
+			}
+			return new LocalCertPathValidatorResult(check.nextUpdate);
+		} catch (Exception ex) {
+			if (ex instanceof CertificateVerificationException) {
+				throw (CertificateVerificationException) ex;
+			} else {
+				throw new CertificateVerificationException("Can not verify certificate " + cert.getSubjectX500Principal() + " in CRL. "+ ex.getClass().getName() + " say: "  + ex.getMessage());
+			}
+		}
+	}
+	
+	/**
+	 * Проверка по CRLDP по сети: по очереди или с опережающими загрузками (см. {@link #setCrlHedgeDelayMillis(long)}).
+	 * @throws java.net.ConnectException - ни один CRLDP не доступен
+	 */
+	private static CrlCheck checkCRLDPs(X509Certificate cert, List<String> crlDistPoints, TrustSnapshot trustSnapshot, Date currentDate) throws Exception {
+		final long hedgeDelay = crlHedgeDelayMillis;
+		if (hedgeDelay >= 0 && crlDistPoints.size() > 1) {
+			return checkCRLDPsHedged(cert, crlDistPoints, trustSnapshot, currentDate, hedgeDelay);
+		}
+		for (String crlDPointURL : crlDistPoints) { // iterate over CRL distribution points
+			try {
+				return checkCRLDP(cert, crlDPointURL, trustSnapshot, currentDate); // мы уже проверили сертификат на отозванность
+			} catch (IOException connectionProblem) { // CRLDP недоступен, не отвечает или выключен - к следующему зеркалу
+				LOG.severe("Problem occured with CRL " +crlDPointURL + " because " + connectionProblem.getMessage() + " and we going th the next CRLDP... (if failorev available)");
+			}
+		}
+		throw new java.net.ConnectException("No one accessible CRLDP url");
+	}
+	
+	/**
+	 * Проверка цепочки по CRL из источника без сети ({@link #setCrlSource(CrlSource)}): сертификат и все сертификаты УЦ пути
+	 * (доверенный сертификат в путь не входит). Для каждого сертификата используются только CRLDP, для которых в источнике есть CRL.
+	 * Если их нет или CRL источника не прошел проверку, CRLDP проверяются по сети только при {@link #setCrlSourceNetworkFallback(boolean)},
+	 * иначе сертификат УЦ пропускается с предупреждением, а ошибка CRL источника завершает проверку.
+	 * @param certPath - построенный путь от проверяемого сертификата
+	 * @return результат с наименьшим nextUpdate проверенных CRL
+	 */
+	private static CertPathValidatorResult verifyCertificateCRLsOffline(CertPath certPath, TrustSnapshot trustSnapshot) throws CertificateVerificationException {
+		Date currentDate = new Date();
+		Date nextUpdate = null;
+		List<? extends java.security.cert.Certificate> path = certPath.getCertificates();
+		for (int i = 0; i < path.size(); i++) {
+			X509Certificate cert = (X509Certificate) path.get(i);
+			CrlCheck check;
+			try {
+				check = checkOfflineCRLDPs(cert, trustSnapshot, currentDate);
+			} catch (CertificateVerificationException ex) {
+				throw ex;
+			} catch (Exception ex) {
+				throw new CertificateVerificationException("Can not verify certificate " + cert.getSubjectX500Principal() + " in CRL. "+ ex.getClass().getName() + " say: "  + ex.getMessage());
+			}
+			if (check == null) {
+				continue;
+			}
+			if (check.revoked) {
+				throw new CertificateVerificationException(i == 0 ? "The certificate is revoked by CRL: " + check.url : "The CA certificate " + cert.getSubjectX500Principal() + " is revoked by CRL: " + check.url);
+			}
+			if (nextUpdate == null || (check.nextUpdate != null && check.nextUpdate.before(nextUpdate))) {
+				nextUpdate = check.nextUpdate;
+			}
+		}
+		return new LocalCertPathValidatorResult(nextUpdate);
+	}
+	
+	/**
+	 * Проверка одного сертификата по CRL источника без сети: сначала все CRLDP с CRL в источнике, по сети - только как явный запасной вариант.
+	 * @return результат или null, если у сертификата нет CRLDP или CRL в источнике нет и загрузка по сети выключена
+	 */
+	private static CrlCheck checkOfflineCRLDPs(X509Certificate cert, TrustSnapshot trustSnapshot, Date currentDate) throws Exception {
+		List<String> crlDistPoints = CertificateMetadata.of(cert).getCrlDistributionPoints();
+		if (crlDistPoints.isEmpty()) {
+			return null;
+		}
+		final boolean fallback = crlSourceNetworkFallback;
+		for (String crlDPointURL : crlDistPoints) {
+			try {
+				CrlCheck check = checkOfflineCRLDP(cert, crlDPointURL, trustSnapshot, currentDate);
+				if (check != null) {
+					return check;
+				}
+			} catch (CertificateVerificationException e) {
+				if (!fallback) {
+					throw e;
+				}
+				LOG.warning(e.getMessage() + ". Falling back to network");
+			} catch (CRLException e) {
+				if (!fallback) {
+					throw e;
+				}
+				LOG.warning("Offline CRL for " + crlDPointURL + " is not valid: " + e.getMessage() + ". Falling back to network");
+			}
+		}
+		if (!fallback) {
+			LOG.warning("Offline source has no CRL for " + cert.getSubjectX500Principal() + ". Revocation is not checked: network fallback is disabled");
+			return null;
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Offline source has no valid CRL for " + cert.getSubjectX500Principal() + ". Checking CRLDP over network");
+		}
+		return checkCRLDPs(cert, crlDistPoints, trustSnapshot, currentDate);
+	}
+	
+	/**
+	 * Проверка по CRL источника без сети для одного CRLDP. Delta CRL к нему берется только из того же источника.
+	 * @return результат или null, если в источнике нет CRL для адреса
+	 */
+	private static CrlCheck checkOfflineCRLDP(X509Certificate cert, String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		X509CRL offline = getOfflineCRL(crlDPointURL, cert.getIssuerX500Principal(), trustSnapshot, currentDate);
+		if (offline == null) {
+			return null;
+		}
+		Set<String> freshestUrls = new LinkedHashSet<String>(CertificateMetadata.of(cert).getFreshestCrlUrls());
+		freshestUrls.addAll(getFreshestCrlUrls(offline));
+		DeltaCrlCache.Entry delta = findDeltaCRL(freshestUrls, offline.getIssuerX500Principal(), trustSnapshot, currentDate, true);
+		return applyDeltaCRL(new CrlCheck(crlDPointURL, offline.isRevoked(cert), offline.getNextUpdate()), cert, delta, getCrlNumber(offline));
+	}
+	
+	/**
+	 * Результат проверки сертификата по одному CRLDP.
+	 */
+	private static final class CrlCheck {
+		private final String url;
+		private final boolean revoked;
+		private final Date nextUpdate;
+		
+		private CrlCheck(String url, boolean revoked, Date nextUpdate) {
+			this.url = url;
+			this.revoked = revoked;
+			this.nextUpdate = nextUpdate;
+		}
+	}
+	
+	/**
+	 * Проверка сертификата по одному CRLDP: в индексе, если задан каталог индексов, иначе в CRL (из кэша или загруженном).
+	 * Если у сертификата или CRL есть FreshestCRL, результат уточняется по delta CRL. Если delta CRL ссылается на более новый
+	 * полный CRL, чем имеющийся, полный CRL загружается досрочно. CRL из источника без сети здесь не используется
+	 * (см. {@link #checkOfflineCRLDP}).
+	 * @throws IOException - CRLDP недоступен
+	 */
+	private static CrlCheck checkCRLDP(X509Certificate cert, String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		RevocationIndex index = getRevocationIndex(crlDPointURL, trustSnapshot, currentDate, false);
+		if (index != null) { // двоичный поиск в отображенном в память индексе, без X509CRL в heap
+			DeltaCrlCache.Entry delta = findDeltaCRL(CertificateMetadata.of(cert).getFreshestCrlUrls(), index.getIssuer(), trustSnapshot, currentDate, false);
+			if (delta != null && isNewerBase(delta, index.getCrlNumber())) {
+				index = getRevocationIndex(crlDPointURL, trustSnapshot, currentDate, true);
+			}
+			boolean revoked = index.getIssuer().equals(cert.getIssuerX500Principal()) && index.isRevoked(cert.getSerialNumber());
+			return applyDeltaCRL(new CrlCheck(crlDPointURL, revoked, index.getNextUpdate()), cert, delta, index.getCrlNumber());
+		}
+		X509CRL crl = getVerifiedCRL(crlDPointURL, trustSnapshot, currentDate);
+		Set<String> freshestUrls = new LinkedHashSet<String>(CertificateMetadata.of(cert).getFreshestCrlUrls());
+		freshestUrls.addAll(getFreshestCrlUrls(crl));
+		DeltaCrlCache.Entry delta = findDeltaCRL(freshestUrls, crl.getIssuerX500Principal(), trustSnapshot, currentDate, false);
+		if (delta != null && isNewerBase(delta, getCrlNumber(crl))) {
+			crl = loadVerifiedCRL(crlDPointURL, trustSnapshot, currentDate);
+		}
+		return applyDeltaCRL(new CrlCheck(crlDPointURL, crl.isRevoked(cert), crl.getNextUpdate()), cert, delta, getCrlNumber(crl));
+	}
+	
+	/**
+	 * @return true, если источник без сети содержит CRL для одного из CRLDP сертификата
+	 */
+	private static boolean hasOfflineCRL(X509Certificate cert, List<String> crlDistPoints) {
+		final CrlSource source = crlSource;
+		if (source == null) {
+			return false;
+		}
+		for (String crlDPointURL : crlDistPoints) {
+			if (source.getCRL(crlDPointURL, cert.getIssuerX500Principal()) != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * CRL из источника без сети с проверенными датами и подписью. Проверенный CRL помещается в кэш CRL,
+	 * и пока источник отдает тот же CRL, подпись повторно не проверяется.
+	 * @param crlDPointURL - адрес CRLDP
+	 * @param issuer - издатель сертификата
+	 * @return CRL или null, если источник не задан или не содержит CRL для адреса
+	 * @throws CertificateVerificationException - CRL источника просрочен или его подпись не проверена
+	 */
+	private static X509CRL getOfflineCRL(String crlDPointURL, X500Principal issuer, TrustSnapshot trustSnapshot, Date currentDate) throws CertificateVerificationException, CRLException {
+		final CrlSource source = crlSource;
+		if (source == null) {
+			return null;
+		}
+		X509CRL crl = source.getCRL(crlDPointURL, issuer);
+		if (crl == null) {
+			return null;
+		}
+		final CrlCache cache = crlCache;
+		CrlCache.Entry entry = cache != null ? cache.peek(crlDPointURL) : null;
+		if (entry != null && entry.getCrl() == crl && !entry.isExpired(currentDate) && trustSnapshot.getAllCerts().contains(entry.getIssuerCert())) {
+			return crl;
+		}
+		Date nextUpdate = crl.getNextUpdate();
+		Date thisUpdate = crl.getThisUpdate();
+		if (nextUpdate == null || !currentDate.after(thisUpdate) || !currentDate.before(nextUpdate)) {
+			throw new CertificateVerificationException("Offline CRL for " + crlDPointURL + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+		}
+		X509Certificate crlsTrueCert = verifyCRLSignature(crl, crlDPointURL, trustSnapshot);
+		if (cache != null) {
+			cache.put(crlDPointURL, crl, crlsTrueCert);
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("CRL " + crlDPointURL + " taken from offline source. Next update " + nextUpdate);
+		}
+		return crl;
+	}
+	
+	/**
+	 * @return true, если delta CRL построен относительно более нового полного CRL, чем имеющийся
+	 */
+	private static boolean isNewerBase(DeltaCrlCache.Entry delta, BigInteger completeCrlNumber) {
+		return completeCrlNumber != null && delta.getBaseCrlNumber().compareTo(completeCrlNumber) > 0;
+	}
+	
+	/**
+	 * Уточнение результата проверки по полному CRL состоянием из delta CRL.
+	 * @param baseCheck - результат по полному CRL
+	 * @param delta - delta CRL или null
+	 * @param completeCrlNumber - номер полного CRL
+	 * @return результат по полному CRL и delta CRL, nextUpdate - наименьший из двух
+	 */
+	private static CrlCheck applyDeltaCRL(CrlCheck baseCheck, X509Certificate cert, DeltaCrlCache.Entry delta, BigInteger completeCrlNumber) {
+		if (delta == null) {
+			return baseCheck;
+		}
+		if (!delta.appliesTo(completeCrlNumber)) {
+			LOG.info("Delta CRL " + delta.getUrl() + " (number " + delta.getCrlNumber() + ", base " + delta.getBaseCrlNumber() + ") doesn't match complete CRL " + baseCheck.url + " number " + completeCrlNumber + " and skipped");
+			return baseCheck;
+		}
+		if (!delta.getIssuer().equals(cert.getIssuerX500Principal())) {
+			return baseCheck;
+		}
+		boolean revoked = delta.isRevoked(cert.getSerialNumber(), baseCheck.revoked);
+		Date nextUpdate = baseCheck.nextUpdate;
+		if (nextUpdate == null || delta.getNextUpdate().before(nextUpdate)) {
+			nextUpdate = delta.getNextUpdate();
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Certificate " + cert.getSerialNumber() + " checked with " + delta + ": " + (revoked ? "revoked" : "not revoked"));
+		}
+		return new CrlCheck(baseCheck.url, revoked, nextUpdate);
+	}
+	
+	/**
+	 * Получение актуального delta CRL с проверенной подписью по адресам FreshestCRL: из кэша delta CRL или загрузкой по сети.
+	 * Недоступный или не прошедший проверку delta CRL не является ошибкой: проверка выполняется по полному CRL (он еще действителен).
+	 * Delta CRL из источника без сети используется раньше загрузки по сети.
+	 * @param freshestUrls - адреса delta CRL
+	 * @param issuer - издатель полного CRL
+	 * @param trustSnapshot - сертификаты для проверки подписи delta CRL
+	 * @param currentDate - текущее время
+	 * @param offlineOnly - только источник без сети (полный CRL получен из него)
+	 * @return delta CRL или null, если адресов нет, delta CRL не используются или ни один delta CRL не получен
+	 */
+	static DeltaCrlCache.Entry findDeltaCRL(Collection<String> freshestUrls, X500Principal issuer, TrustSnapshot trustSnapshot, Date currentDate, boolean offlineOnly) {
+		final DeltaCrlCache deltas = deltaCrlCache;
+		if (deltas == null || freshestUrls.isEmpty()) {
+			return null;
+		}
+		final CrlSource source = crlSource;
+		for (String deltaURL : freshestUrls) {
+			X509CRL offline = source != null ? source.getDeltaCRL(deltaURL, issuer) : null;
+			if (offline != null) {
 				try {
-					crl = downloadCRLFromWebDP(crlDPointURL);
-					crldpURLaccepted = true;
-				} catch (java.net.ConnectException connectionProblem) {
-					LOG.severe("Problem occured with CRL " +crlDPointURL + " because " + connectionProblem.getMessage() + " and we going th the next CRLDP... (if failorev available)");
+					DeltaCrlCache.Entry delta = acceptOfflineDeltaCRL(deltas, deltaURL, offline, trustSnapshot, currentDate);
+					if (delta.getIssuer().equals(issuer)) {
+						return delta;
+					}
+				} catch (IOException e) {
+					LOG.warning("Offline delta CRL for " + deltaURL + " is not valid: " + e.getMessage());
+				} catch (GeneralSecurityException e) {
+					LOG.warning("Offline delta CRL for " + deltaURL + " is not valid: " + e.getMessage());
+				} catch (CertificateVerificationException e) {
+					LOG.warning("Offline delta CRL for " + deltaURL + " is not valid: " + e.getMessage());
+				}
+				continue;
+			}
+			if (offlineOnly) {
+				continue;
+			}
+			DeltaCrlCache.Entry delta = deltas.get(deltaURL, currentDate);
+			if (delta == null || !trustSnapshot.getAllCerts().contains(delta.getIssuerCert())) {
+				try {
+					delta = loadDeltaCRL(deltas, deltaURL, trustSnapshot, currentDate);
+				} catch (IOException e) {
+					LOG.warning("Delta CRL " + deltaURL + " is not available: " + e.getMessage());
+					continue;
+				} catch (GeneralSecurityException e) {
+					LOG.warning("Delta CRL " + deltaURL + " is not valid: " + e.getMessage());
+					continue;
+				} catch (CertificateVerificationException e) {
+					LOG.warning("Delta CRL " + deltaURL + " is not valid: " + e.getMessage());
 					continue;
 				}
-				// we dont support indirect crls
-				boolean indirectCRL = isIndirectCRL(crl);
-				if (indirectCRL) {
-					LOG.log(Level.INFO, "We don't support indirect CRLs and skip this " + crlDPointURL);
-				} else {
-					LOG.log(Level.FINE, "This is direct CRL. We can check certificate.");
+			}
+			if (delta.getIssuer().equals(issuer)) {
+				return delta;
+			}
+			LOG.warning("Delta CRL " + deltaURL + " issuer " + delta.getIssuer() + " differs from CRL issuer " + issuer + " and skipped");
+		}
+		return null;
+	}
+	
+	/**
+	 * Загрузка delta CRL. Одновременные загрузки одного адреса (для одного снимка) объединяются в одну.
+	 */
+	private static DeltaCrlCache.Entry loadDeltaCRL(final DeltaCrlCache deltas, final String deltaURL, final TrustSnapshot trustSnapshot, final Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final EndpointHealthTracker health = checkEndpointAvailable(deltaURL);
+		try {
+			return executeLoad(DELTA_LOADS, Arrays.<Object>asList(deltas, deltaURL, trustSnapshot), new Callable<DeltaCrlCache.Entry>() {
+				@Override
+				public DeltaCrlCache.Entry call() throws Exception {
+					long started = System.currentTimeMillis();
+					try {
+						DeltaCrlCache.Entry delta = downloadDeltaCRL(deltas, deltaURL, trustSnapshot, currentDate);
+						recordEndpointSuccess(health, deltaURL, started);
+						return delta;
+					} catch (IOException e) {
+						recordEndpointFailure(health, deltaURL, e);
+						throw e;
+					}
 				}
-				
-				// check CRL valid dates -----
-				Date nextUpdate = crl.getNextUpdate();
-				Date thisUpdate = crl.getThisUpdate();
-				boolean validRevoDates = currentDate.after(thisUpdate) && currentDate.before(nextUpdate);
-				if (!validRevoDates) {
-					throw new CertificateVerificationException("CRL " + crlDPointURL + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+			});
+		} catch (Exception e) {
+			throw rethrowLoadProblem(e);
+		}
+	}
+	
+	/**
+	 * Проверка delta CRL из источника без сети и помещение в кэш delta CRL. Пока источник отдает тот же delta CRL, подпись повторно не проверяется.
+	 */
+	private static DeltaCrlCache.Entry acceptOfflineDeltaCRL(DeltaCrlCache deltas, String deltaURL, X509CRL delta, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		DeltaCrlCache.Entry cached = deltas.get(deltaURL, currentDate);
+		if (cached != null && cached.getCrlNumber().equals(getCrlNumber(delta)) && cached.getIssuer().equals(delta.getIssuerX500Principal()) && trustSnapshot.getAllCerts().contains(cached.getIssuerCert())) {
+			return cached;
+		}
+		Date nextUpdate = delta.getNextUpdate();
+		Date thisUpdate = delta.getThisUpdate();
+		if (nextUpdate == null || !currentDate.after(thisUpdate) || !currentDate.before(nextUpdate)) {
+			throw new CertificateVerificationException("Delta CRL " + deltaURL + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+		}
+		X509Certificate issuerCert = verifyCRLSignature(delta, deltaURL, trustSnapshot);
+		return deltas.merge(deltaURL, delta, issuerCert);
+	}
+	
+	private static DeltaCrlCache.Entry downloadDeltaCRL(DeltaCrlCache deltas, String deltaURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		LOG.log(Level.FINE, "Downloading delta CRL: " + deltaURL );
+		DeltaCrlCache.Entry previous = deltas.peek(deltaURL);
+		if (previous != null && !trustSnapshot.getAllCerts().contains(previous.getIssuerCert())) {
+			previous = null;
+		}
+		final RevocationHttpFetcher fetcher = crlFetcher;
+		RevocationHttpFetcher.Response response = fetcher.fetch(deltaURL, previous != null, HEDGE_CANCELLATION.get());
+		try {
+			if (response.isNotModified()) {
+				if (previous.isExpired(currentDate)) {
+					throw new CertificateVerificationException("Delta CRL " + deltaURL + " is not modified and out of date. Next update " + previous.getNextUpdate());
 				}
-				
-				// verify crl signature ------
-				Iterator<X509Certificate> certIterator = certsForCRLSignatureValidation.iterator();
-				List<X509Certificate> potencialCRLCerts = new ArrayList<X509Certificate>(5);
-				while (certIterator.hasNext()) { // лучше найти нужные сертификаты принципала, чем брутально перебирать верификацию для всех сертификатов
-					X509Certificate certIterated = certIterator.next();
-					if (certIterated.getSubjectDN().equals(crl.getIssuerDN())) {
-						potencialCRLCerts.add(certIterated);
+				return previous;
+			}
+			X509CRL delta = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(response.getStream());
+			if (!isDeltaCRL(delta)) {
+				throw new CertificateVerificationException("CRL " + deltaURL + " is not a delta CRL");
+			}
+			Date nextUpdate = delta.getNextUpdate();
+			Date thisUpdate = delta.getThisUpdate();
+			if (nextUpdate == null || !currentDate.after(thisUpdate) || !currentDate.before(nextUpdate)) {
+				throw new CertificateVerificationException("Delta CRL " + deltaURL + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+			}
+			X509Certificate issuerCert = verifyCRLSignature(delta, deltaURL, trustSnapshot);
+			DeltaCrlCache.Entry entry = deltas.merge(deltaURL, delta, issuerCert);
+			fetcher.commit(response);
+			return entry;
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Проверка по зеркалам CRLDP с опережающими (hedged) загрузками: проверка по первому CRLDP запускается сразу,
+	 * по следующему - если за hedgeDelay не получен результат или сразу после ошибки предыдущего.
+	 * Побеждает первый CRL, прошедший проверку подписи и дат, остальные загрузки отменяются: их соединения закрываются.
+	 * Опережающие загрузки не объединяются с загрузками других потоков (см. {@link SingleFlight#joinOrCall}).
+	 * @throws IOException - ни один CRLDP не доступен
+	 * @throws CertificateVerificationException - ни один CRL не прошел проверку
+	 */
+	private static CrlCheck checkCRLDPsHedged(final X509Certificate cert, List<String> crlDistPoints, final TrustSnapshot trustSnapshot, final Date currentDate, long hedgeDelay) throws Exception {
+		CompletionService<CrlCheck> completion = new ExecutorCompletionService<CrlCheck>(HEDGE_EXECUTOR);
+		List<Future<CrlCheck>> started = new ArrayList<Future<CrlCheck>>();
+		List<RevocationHttpFetcher.Cancellation> cancellations = new ArrayList<RevocationHttpFetcher.Cancellation>();
+		int next = 0;
+		int running = 0;
+		Exception firstProblem = null;
+		try {
+			while (next < crlDistPoints.size() || running > 0) {
+				if (running == 0) { // первый CRLDP или все запущенные завершились ошибкой
+					started.add(completion.submit(crlCheckTask(cert, crlDistPoints.get(next++), trustSnapshot, currentDate, cancellations)));
+					running++;
+				}
+				Future<CrlCheck> done = next < crlDistPoints.size() ? completion.poll(hedgeDelay, TimeUnit.MILLISECONDS) : completion.take();
+				if (done == null) { // за hedgeDelay результата нет - запускаем следующее зеркало
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine("No CRL in " + hedgeDelay + " ms. Hedging with " + crlDistPoints.get(next));
 					}
+					started.add(completion.submit(crlCheckTask(cert, crlDistPoints.get(next++), trustSnapshot, currentDate, cancellations)));
+					running++;
+					continue;
 				}
-				if (potencialCRLCerts.size() == 0) {
-					throw new CertificateVerificationException("CRL " + crlDPointURL + " not verified. Principal of CRL not found in store. May be you don't have CRL's issuer cert in store.");
-				} else {
-					boolean crlSignatureValidated = false;
-					X509Certificate crlsTrueCert = null;
-					for (X509Certificate crlCert : potencialCRLCerts) {
-						try {
-							crl.verify(crlCert.getPublicKey());
-							crlSignatureValidated = true;
-							crlsTrueCert = crlCert;
-							if (LOG.isLoggable(Level.FINE)) {
-								LOG.fine(crl.getIssuerDN().getName() + " verified with " + crlCert.getSubjectDN().getName());
-							}
-							break;
-						} catch (java.security.SignatureException signatureException) {
-							LOG.fine(signatureException.getMessage() + " for " + crlCert.getSubjectDN().getName());
-						} catch (Exception e) {
-							if (LOG.isLoggable(Level.FINE)) {
-								LOG.fine(e.getClass().getName() + " problem with CRL: " + e.getMessage() + " for " + crlCert.getSubjectDN().getName());
-							}
-						}
+				running--;
+				try {
+					return done.get();
+				} catch (ExecutionException e) {
+					Exception problem = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+					LOG.severe("Problem occured with CRLDP because " + problem.getMessage() + " and we going th the next CRLDP... (if failorev available)");
+					// ошибка проверки CRL важнее недоступности
+					if (firstProblem == null || (firstProblem instanceof IOException && !(problem instanceof IOException))) {
+						firstProblem = problem;
 					}
-					if (!crlSignatureValidated) {
-						throw new CertificateVerificationException(crlDPointURL + " signature invalid. May be you don't have CRL's issuer cert in store.");
-					} else {
-						if (LOG.isLoggable(Level.FINE)) {
-							LOG.fine("CRL " + crlDPointURL + " signature validated with " + crlsTrueCert.getSubjectDN().getName() + " Serial: " + crlsTrueCert.getSerialNumber());
-						}
+				}
+			}
+			throw firstProblem;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new java.io.InterruptedIOException("Interrupted while waiting for CRL");
+		} finally {
+			// сначала закрываются соединения: прерывание потока блокирующее чтение не останавливает
+			for (RevocationHttpFetcher.Cancellation cancellation : cancellations) {
+				cancellation.cancel();
+			}
+			for (Future<CrlCheck> future : started) {
+				future.cancel(true);
+			}
+		}
+	}
+	
+	private static Callable<CrlCheck> crlCheckTask(final X509Certificate cert, final String crlDPointURL, final TrustSnapshot trustSnapshot, final Date currentDate, List<RevocationHttpFetcher.Cancellation> cancellations) {
+		final RevocationHttpFetcher.Cancellation cancellation = new RevocationHttpFetcher.Cancellation();
+		cancellations.add(cancellation);
+		return new Callable<CrlCheck>() {
+			@Override
+			public CrlCheck call() throws Exception {
+				HEDGE_CANCELLATION.set(cancellation);
+				try {
+					return checkCRLDP(cert, crlDPointURL, trustSnapshot, currentDate);
+				} finally {
+					HEDGE_CANCELLATION.remove();
+				}
+			}
+		};
+	}
+	
+	/**
+	 * Получение актуального индекса отозванных серийных номеров для CRLDP. Если индекса нет или он устарел, то CRL загружается,
+	 * проверяется и по нему строится новый индекс.
+	 * @param crlDPointURL - адрес CRLDP
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param currentDate - текущее время
+	 * @param reload - загрузить CRL заново, даже если индекс еще актуален (вышел более новый полный CRL)
+	 * @return RevocationIndex или null, если каталог индексов не задан или индекс не удалось построить.
+	 * @throws CertificateVerificationException - CRL просрочен или его подпись не проверена
+	 * @throws java.net.ConnectException - CRLDP недоступен
+	 */
+	private static RevocationIndex getRevocationIndex(String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate, boolean reload) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final RevocationIndexDirectory indexDirectory = revocationIndexDirectory;
+		if (indexDirectory == null) {
+			return null;
+		}
+		// индекс из общего каталога используется, только если сертификат, которым проверен CRL, есть в текущем снимке
+		RevocationIndex index = reload ? null : indexDirectory.get(crlDPointURL, currentDate, trustSnapshot);
+		if (index == null) {
+			index = loadRevocationIndex(indexDirectory, crlDPointURL, trustSnapshot, currentDate);
+		}
+		return index;
+	}
+	
+	/**
+	 * Загрузка CRL в индекс. Одновременные загрузки одного CRLDP (для одного снимка) объединяются в одну.
+	 */
+	private static RevocationIndex loadRevocationIndex(final RevocationIndexDirectory indexDirectory, final String crlDPointURL, final TrustSnapshot trustSnapshot, final Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final EndpointHealthTracker health = checkEndpointAvailable(crlDPointURL);
+		try {
+			return executeLoad(INDEX_LOADS, Arrays.<Object>asList(indexDirectory, crlDPointURL, trustSnapshot), new Callable<RevocationIndex>() {
+				@Override
+				public RevocationIndex call() throws Exception {
+					long started = System.currentTimeMillis();
+					try {
+						RevocationIndex index = downloadRevocationIndex(indexDirectory, crlDPointURL, trustSnapshot, currentDate);
+						recordEndpointSuccess(health, crlDPointURL, started);
+						return index;
+					} catch (IOException e) {
+						recordEndpointFailure(health, crlDPointURL, e);
+						throw e;
 					}
 				}
-				//----------------------------
-				// а вот теперь проверка на отозванность сертификата
-				if (crl.isRevoked(cert)) {
-					throw new CertificateVerificationException("The certificate is revoked by CRL: " + crlDPointURL);
-				} else {
-					break; // остановить цикл по CRL DP - мы уже проверили сертификат на отозванность.
+			});
+		} catch (Exception e) {
+			throw rethrowLoadProblem(e);
+		}
+	}
+	
+	/**
+	 * Загрузка CRL с потоковым разбором в индекс: CRL целиком в памяти не строится.
+	 * Если индекс для адреса уже есть, запрос условный: ответ 304 оставляет прежний индекс.
+	 */
+	private static RevocationIndex downloadRevocationIndex(RevocationIndexDirectory indexDirectory, String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		LOG.log(Level.FINE, "Downloading CRL into revocation index: " + crlDPointURL );
+		RevocationIndex previous = indexDirectory.peek(crlDPointURL);
+		if (previous != null && !RevocationIndexDirectory.isTrusted(previous, trustSnapshot)) {
+			previous = null; // издатель CRL больше не в доверенных - только полная загрузка с проверкой подписи
+		}
+		final RevocationHttpFetcher fetcher = crlFetcher;
+		RevocationHttpFetcher.Response response = fetcher.fetch(crlDPointURL, previous != null, HEDGE_CANCELLATION.get());
+		try {
+			if (response.isNotModified()) {
+				// тот же CRL: его nextUpdate подписан издателем, и 304 не продлевает срок действия
+				if (previous.isExpired(currentDate)) {
+					throw new CertificateVerificationException("CRL " + crlDPointURL + " is not modified and out of date. Next update " + previous.getNextUpdate());
 				}
+				return previous;
 			}
-			if (!crldpURLaccepted) {
-				throw new java.net.ConnectException("No one accessible CRLDP url");
+			InputStream crlStream = new BufferedInputStream(response.getStream(), CRL_STREAM_BUFFER_SIZE);
+			RevocationIndex index = indexDirectory.put(crlDPointURL, crlStream, trustSnapshot, currentDate);
+			fetcher.commit(response);
+			return index;
+		} finally {
+			response.close();
+		}
+	}
+	
+	/**
+	 * Принудительная загрузка CRL (для фонового обновления, см. {@link CrlRefreshScheduler}): в индекс, если задан каталог индексов, иначе в кэш CRL.
+	 * @param crlDPointURL - адрес CRLDP
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param currentDate - текущее время
+	 * @return nextUpdate загруженного CRL
+	 */
+	static Date refreshCRL(String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final RevocationIndexDirectory indexDirectory = revocationIndexDirectory;
+		if (indexDirectory != null) {
+			return loadRevocationIndex(indexDirectory, crlDPointURL, trustSnapshot, currentDate).getNextUpdate();
+		}
+		return loadVerifiedCRL(crlDPointURL, trustSnapshot, currentDate).getNextUpdate();
+	}
+	
+	/**
+	 * Получение актуального CRL с проверенной подписью. CRL берется из кэша, если он там есть, еще не наступил его nextUpdate
+	 * и сертификат, которым проверялась подпись CRL, есть в снимке. Иначе CRL загружается по сети, проверяется и помещается в кэш.
+	 * @param crlDPointURL - адрес CRLDP
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param currentDate - текущее время
+	 * @return X509CRL
+	 * @throws CertificateVerificationException - CRL просрочен или его подпись не проверена
+	 * @throws java.net.ConnectException - CRLDP недоступен
+	 */
+	private static X509CRL getVerifiedCRL(String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final CrlCache cache = crlCache;
+		if (cache != null) {
+			CrlCache.Entry entry = cache.get(crlDPointURL, currentDate);
+			if (entry != null && trustSnapshot.getAllCerts().contains(entry.getIssuerCert())) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("CRL " + crlDPointURL + " taken from cache. Next update " + entry.getNextUpdate());
+				}
+				return entry.getCrl();
 			}
-			return new LocalCertPathValidatorResult();
-		} catch (Exception ex) {
-			if (ex instanceof CertificateVerificationException) {
-				throw (CertificateVerificationException) ex;
+		}
+		return loadVerifiedCRL(crlDPointURL, trustSnapshot, currentDate);
+	}
+	
+	/**
+	 * Загрузка CRL по сети, проверка дат и подписи и помещение в кэш CRL (минуя поиск в кэше).
+	 * Одновременные загрузки одного CRLDP (для одного снимка) объединяются: CRL загружается и разбирается один раз,
+	 * все ожидавшие потоки получают тот же CRL или то же исключение.
+	 * @param crlDPointURL - адрес CRLDP
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param currentDate - текущее время
+	 * @return X509CRL
+	 * @throws CertificateVerificationException - CRL просрочен или его подпись не проверена
+	 * @throws java.net.ConnectException - CRLDP недоступен
+	 */
+	static X509CRL loadVerifiedCRL(final String crlDPointURL, final TrustSnapshot trustSnapshot, final Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		final EndpointHealthTracker health = checkEndpointAvailable(crlDPointURL);
+		try {
+			return executeLoad(CRL_LOADS, Arrays.<Object>asList(crlDPointURL, trustSnapshot), new Callable<X509CRL>() {
+				@Override
+				public X509CRL call() throws Exception {
+					long started = System.currentTimeMillis();
+					try {
+						X509CRL crl = downloadVerifiedCRL(crlDPointURL, trustSnapshot, currentDate);
+						recordEndpointSuccess(health, crlDPointURL, started);
+						return crl;
+					} catch (IOException e) {
+						recordEndpointFailure(health, crlDPointURL, e);
+						throw e;
+					}
+				}
+			});
+		} catch (Exception e) {
+			throw rethrowLoadProblem(e);
+		}
+	}
+	
+	/**
+	 * Общая загрузка: одновременные запросы одного ключа ждут одну загрузку. Опережающая загрузка может присоединиться
+	 * к идущей загрузке, но свою выполняет без объединения: ее отмена не должна стать ошибкой для других потоков.
+	 */
+	private static <V> V executeLoad(SingleFlight<List<Object>, V> loads, List<Object> key, Callable<V> loader) throws Exception {
+		if (HEDGE_CANCELLATION.get() != null) {
+			return loads.joinOrCall(key, loader);
+		}
+		return loads.execute(key, loader);
+	}
+	
+	/**
+	 * Выключенный CRLDP (см. {@link EndpointHealthTracker}) отклоняется сразу, без попытки соединения.
+	 * @return текущий EndpointHealthTracker или null
+	 * @throws java.net.ConnectException - CRLDP выключен после ошибок
+	 */
+	private static EndpointHealthTracker checkEndpointAvailable(String crlDPointURL) throws java.net.ConnectException {
+		final EndpointHealthTracker health = endpointHealthTracker;
+		if (health != null && !health.isAvailable(crlDPointURL)) {
+			throw new java.net.ConnectException("CRLDP " + crlDPointURL + " is switched off after failures (circuit open)");
+		}
+		return health;
+	}
+	
+	private static void recordEndpointSuccess(EndpointHealthTracker health, String crlDPointURL, long started) {
+		if (health != null) {
+			health.recordSuccess(crlDPointURL, System.currentTimeMillis() - started);
+		}
+	}
+	
+	private static void recordEndpointFailure(EndpointHealthTracker health, String crlDPointURL, IOException problem) {
+		// отмененная опережающая загрузка - не ошибка точки
+		final RevocationHttpFetcher.Cancellation cancellation = HEDGE_CANCELLATION.get();
+		if (cancellation != null && cancellation.isCancelled()) {
+			return;
+		}
+		if (health != null && !Thread.currentThread().isInterrupted() && !(problem instanceof java.nio.channels.ClosedByInterruptException)) {
+			health.recordFailure(crlDPointURL, problem);
+		}
+	}
+	
+	/**
+	 * Исключение общей загрузки в том виде, в котором его объявляют методы загрузки.
+	 */
+	private static CertificateVerificationException rethrowLoadProblem(Exception e) throws GeneralSecurityException, IOException {
+		if (e instanceof CertificateVerificationException) {
+			return (CertificateVerificationException) e;
+		}
+		if (e instanceof IOException) {
+			throw (IOException) e;
+		}
+		if (e instanceof GeneralSecurityException) {
+			throw (GeneralSecurityException) e;
+		}
+		if (e instanceof RuntimeException) {
+			throw (RuntimeException) e;
+		}
+		return new CertificateVerificationException(e.getMessage(), e);
+	}
+	
+	/**
+	 * Загрузка CRL с проверкой подписи и сохранением в кэш CRL.
+	 * Если в кэше есть прежний CRL для адреса (в том числе просроченный), запрос условный: ответ 304 подтверждает прежний CRL без повторной загрузки и проверки подписи.
+	 */
+	private static X509CRL downloadVerifiedCRL(String crlDPointURL, TrustSnapshot trustSnapshot, Date currentDate) throws GeneralSecurityException, IOException, CertificateVerificationException {
+		LOG.log(Level.FINE, "Downloading CRL: " + crlDPointURL );
+		final CrlCache cache = crlCache;
+		CrlCache.Entry previous = cache != null ? cache.peek(crlDPointURL) : null;
+		if (previous != null && !trustSnapshot.getAllCerts().contains(previous.getIssuerCert())) {
+			previous = null; // подпись проверялась сертификатом, которого больше нет среди доверенных
+		}
+		final RevocationHttpFetcher fetcher = crlFetcher;
+		RevocationHttpFetcher.Response response = fetcher.fetch(crlDPointURL, previous != null, HEDGE_CANCELLATION.get());
+		X509CRL crl;
+		X509Certificate crlsTrueCert = null;
+		try {
+			if (response.isNotModified()) {
+				crl = previous.getCrl();
+				crlsTrueCert = previous.getIssuerCert();
 			} else {
-				throw new CertificateVerificationException("Can not verify certificate " + cert.getSubjectX500Principal() + " in CRL. "+ ex.getClass().getName() + " say: "  + ex.getMessage());
+				crl = (X509CRL) CertificateFactory.getInstance("X.509").generateCRL(response.getStream());
+			}
+		} finally {
+			response.close();
+		}
+		
+		// we dont support indirect crls
+		boolean indirectCRL = isIndirectCRL(crl);
+		if (indirectCRL) {
+			LOG.log(Level.INFO, "We don't support indirect CRLs and skip this " + crlDPointURL);
+		} else {
+			LOG.log(Level.FINE, "This is direct CRL. We can check certificate.");
+		}
+		
+		// check CRL valid dates -----
+		Date nextUpdate = crl.getNextUpdate();
+		Date thisUpdate = crl.getThisUpdate();
+		boolean validRevoDates = currentDate.after(thisUpdate) && currentDate.before(nextUpdate);
+		if (!validRevoDates) {
+			throw new CertificateVerificationException("CRL " + crlDPointURL + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+		}
+		
+		// verify crl signature ------
+		if (crlsTrueCert == null) {
+			crlsTrueCert = verifyCRLSignature(crl, crlDPointURL, trustSnapshot);
+		}
+		if (cache != null) {
+			cache.put(crlDPointURL, crl, crlsTrueCert);
+		}
+		fetcher.commit(response);
+		return crl;
+	}
+	
+	/**
+	 * Проверка подписи CRL сертификатами издателя из снимка.
+	 * @param crl
+	 * @param crlDPointURL - адрес CRLDP (для сообщений)
+	 * @param trustSnapshot
+	 * @return сертификат, которым проверена подпись CRL
+	 * @throws CertificateVerificationException - если подпись не проверена ни одним сертификатом
+	 */
+	private static X509Certificate verifyCRLSignature(X509CRL crl, String crlDPointURL, TrustSnapshot trustSnapshot) throws CertificateVerificationException {
+		// лучше найти нужные сертификаты принципала, чем брутально перебирать верификацию для всех сертификатов
+		List<X509Certificate> potencialCRLCerts = trustSnapshot.getCertificatesBySubject(crl.getIssuerX500Principal());
+		if (potencialCRLCerts.size() == 0) {
+			throw new CertificateVerificationException("CRL " + crlDPointURL + " not verified. Principal of CRL not found in store. May be you don't have CRL's issuer cert in store.");
+		}
+		for (X509Certificate crlCert : potencialCRLCerts) {
+			try {
+				crl.verify(crlCert.getPublicKey());
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("CRL " + crlDPointURL + " signature validated with " + crlCert.getSubjectDN().getName() + " Serial: " + crlCert.getSerialNumber());
+				}
+				return crlCert;
+			} catch (java.security.SignatureException signatureException) {
+				LOG.fine(signatureException.getMessage() + " for " + crlCert.getSubjectDN().getName());
+			} catch (Exception e) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(e.getClass().getName() + " problem with CRL: " + e.getMessage() + " for " + crlCert.getSubjectDN().getName());
+				}
 			}
 		}
+		throw new CertificateVerificationException(crlDPointURL + " signature invalid. May be you don't have CRL's issuer cert in store.");
 	}
 	
 	
@@ -0,0 +1,464 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Кодирование и разбор CMS-сообщений в потоке (BER с неопределенной длиной, X.690 8.1.3.6).
+ * Заголовки и небольшие элементы (RecipientInfos, алгоритмы, сертификаты) кодируются и читаются целиком, а содержимое
+ * (encryptedContent, eContent) пишется и читается составной OCTET STRING по фрагментам,
+ * поэтому размер сообщения не ограничен размером heap.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class CmsStreams {
+
+	static final int TAG_INTEGER = 0x02;
+
+	static final int TAG_OCTET_STRING = 0x04;
+
+	static final int TAG_OBJECT_IDENTIFIER = 0x06;
+
+	static final int TAG_SET = 0x31;
+
+	static final int TAG_SEQUENCE = 0x30;
+
+	static final int TAG_CONSTRUCTED_OCTET_STRING = 0x24;
+
+	/**
+	 * [0] constructed: EXPLICIT content в ContentInfo и eContent, IMPLICIT encryptedContent.
+	 */
+	static final int TAG_CONTEXT_0 = 0xA0;
+
+	/**
+	 * [1] constructed: crls в SignedData.
+	 */
+	static final int TAG_CONTEXT_1 = 0xA1;
+
+	/**
+	 * [0] primitive: IMPLICIT encryptedContent в DER-форме.
+	 */
+	static final int TAG_CONTEXT_0_PRIMITIVE = 0x80;
+
+	/**
+	 * Ограничение на размер элемента, который читается в память целиком (RecipientInfos, сертификаты, SignerInfos).
+	 */
+	static final int MAX_ELEMENT_LENGTH = 16 * 1024 * 1024;
+
+	/**
+	 * Размер фрагмента содержимого по умолчанию.
+	 */
+	static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+	private CmsStreams() {
+	}
+
+	/**
+	 * Заголовок составного элемента с неопределенной длиной. Элемент закрывается {@link #writeEndOfContents(OutputStream)}.
+	 */
+	static void writeIndefiniteHeader(OutputStream out, int tag) throws IOException {
+		out.write(tag);
+		out.write(0x80);
+	}
+
+	/**
+	 * Маркер конца содержимого (end-of-contents) составного элемента с неопределенной длиной.
+	 */
+	static void writeEndOfContents(OutputStream out) throws IOException {
+		out.write(0);
+		out.write(0);
+	}
+
+	/**
+	 * Заголовок элемента с определенной длиной (DER-форма длины).
+	 */
+	static void writeDefiniteHeader(OutputStream out, int tag, int length) throws IOException {
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+			return;
+		}
+		int bytes = 1;
+		for (int rest = length >>> 8; rest != 0; rest >>>= 8) {
+			bytes++;
+		}
+		out.write(0x80 | bytes);
+		for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+			out.write((length >>> shift) & 0xFF);
+		}
+	}
+
+	/**
+	 * Поток, который пишет данные примитивными OCTET STRING длиной до chunkSize. Заголовок составного элемента
+	 * ([0] IMPLICIT или OCTET STRING с неопределенной длиной) пишет вызывающий код до первой записи,
+	 * а {@link #close()} дописывает последний фрагмент и маркер конца содержимого. Нижележащий поток не закрывается.
+	 */
+	static final class OctetStringOutputStream extends OutputStream {
+
+		private final OutputStream out;
+
+		private final byte[] chunk;
+
+		private int count = 0;
+
+		private boolean closed = false;
+
+		/**
+		 * @param out - поток сообщения
+		 * @param tag - тег составного элемента, заголовок которого пишется сразу
+		 * @param chunkSize - максимальный размер фрагмента
+		 */
+		OctetStringOutputStream(OutputStream out, int tag, int chunkSize) throws IOException {
+			if (chunkSize < 1) {
+				throw new IllegalArgumentException("chunkSize must be positive: " + chunkSize);
+			}
+			this.out = out;
+			this.chunk = new byte[chunkSize];
+			writeIndefiniteHeader(out, tag);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == chunk.length) {
+				flushChunk();
+			}
+			chunk[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == 0 && len >= chunk.length) { // полный фрагмент пишется без копирования
+					writeDefiniteHeader(out, TAG_OCTET_STRING, chunk.length);
+					out.write(b, off, chunk.length);
+					off += chunk.length;
+					len -= chunk.length;
+					continue;
+				}
+				int n = Math.min(len, chunk.length - count);
+				System.arraycopy(b, off, chunk, count, n);
+				count += n;
+				off += n;
+				len -= n;
+				if (count == chunk.length) {
+					flushChunk();
+				}
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			if (count > 0) {
+				writeDefiniteHeader(out, TAG_OCTET_STRING, count);
+				out.write(chunk, 0, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flushChunk();
+			writeEndOfContents(out);
+		}
+	}
+
+	/**
+	 * Последовательный разбор BER из потока: заголовок очередного элемента читается {@link #readHeader(int)},
+	 * после чего элемент читается целиком ({@link #readEncoded()}), пропускается ({@link #skipElement()})
+	 * или, если это OCTET STRING, читается как поток ({@link #openOctetString()}).
+	 */
+	static final class Reader {
+
+		private final InputStream in;
+
+		private final String source;
+
+		private long position = 0;
+
+		private int tag;
+
+		/**
+		 * Длина содержимого текущего элемента, -1 - неопределенная длина.
+		 */
+		private int length;
+
+		private final byte[] header = new byte[6];
+
+		private int headerLength;
+
+		/**
+		 * @param in - поток сообщения
+		 * @param source - название сообщения для текста ошибок
+		 */
+		Reader(InputStream in, String source) {
+			this.in = in;
+			this.source = source;
+		}
+
+		int getTag() {
+			return tag;
+		}
+
+		/**
+		 * @return количество прочитанных байт сообщения
+		 */
+		long getPosition() {
+			return position;
+		}
+
+		/**
+		 * @return true - текущий элемент является маркером конца содержимого
+		 */
+		boolean isEndOfContents() {
+			return tag == 0 && length == 0;
+		}
+
+		/**
+		 * @return true - текущий элемент имеет неопределенную длину и закрывается маркером конца содержимого
+		 */
+		boolean isIndefiniteLength() {
+			return length < 0;
+		}
+
+		/**
+		 * Чтение маркера конца содержимого составного элемента с неопределенной длиной.
+		 */
+		void readEndOfContents() throws IOException {
+			readHeader(-1);
+			if (!isEndOfContents()) {
+				throw new IOException("Malformed " + source + ": tag 0x" + Integer.toHexString(tag) + " at " + position + ", expected end-of-contents");
+			}
+		}
+
+		private int readByte() throws IOException {
+			int b = in.read();
+			if (b < 0) {
+				throw new EOFException("Unexpected end of " + source + " at " + position);
+			}
+			position++;
+			return b;
+		}
+
+		private void readFully(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				int n = in.read(b, off, len);
+				if (n < 0) {
+					throw new EOFException("Unexpected end of " + source + " at " + position);
+				}
+				position += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		/**
+		 * Чтение тега и длины очередного элемента.
+		 * @param expectedTag - ожидаемый тег или -1
+		 */
+		void readHeader(int expectedTag) throws IOException {
+			headerLength = 0;
+			tag = readByte();
+			header[headerLength++] = (byte) tag;
+			if ((tag & 0x1F) == 0x1F) {
+				throw new IOException("High tag numbers are not supported in " + source + " at " + position);
+			}
+			int first = readByte();
+			header[headerLength++] = (byte) first;
+			if (first < 0x80) {
+				length = first;
+			} else if (first == 0x80) {
+				if ((tag & 0x20) == 0) {
+					throw new IOException("Malformed " + source + ": indefinite length of primitive element at " + position);
+				}
+				length = -1;
+			} else {
+				int count = first & 0x7F;
+				if (count > 4) {
+					throw new IOException("Unsupported length encoding in " + source + " at " + position);
+				}
+				long len = 0;
+				for (int i = 0; i < count; i++) {
+					int b = readByte();
+					header[headerLength++] = (byte) b;
+					len = (len << 8) | b;
+				}
+				if (len > Integer.MAX_VALUE) {
+					throw new IOException("Element too long in " + source + " at " + position);
+				}
+				length = (int) len;
+			}
+			if (expectedTag != -1) {
+				expect(expectedTag);
+			}
+		}
+
+		void expect(int expectedTag) throws IOException {
+			if (tag != expectedTag) {
+				throw new IOException("Malformed " + source + ": tag 0x" + Integer.toHexString(tag) + " at " + position + ", expected 0x" + Integer.toHexString(expectedTag));
+			}
+		}
+
+		/**
+		 * Чтение текущего элемента целиком (заголовок и содержимое, в том числе вложенные элементы с неопределенной длиной).
+		 */
+		byte[] readEncoded() throws IOException {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream(length > 0 ? Math.min(length + headerLength, MAX_ELEMENT_LENGTH) : 256);
+			buf.write(header, 0, headerLength);
+			copyContent(buf);
+			return buf.toByteArray();
+		}
+
+		/**
+		 * Пропуск текущего элемента.
+		 */
+		void skipElement() throws IOException {
+			copyContent(null);
+		}
+
+		private void copyContent(ByteArrayOutputStream buf) throws IOException {
+			if (length >= 0) {
+				if (buf != null && buf.size() + length > MAX_ELEMENT_LENGTH) {
+					throw new IOException("Element too long in " + source + ": " + length + " bytes at " + position);
+				}
+				byte[] chunk = new byte[Math.min(length, DEFAULT_CHUNK_SIZE)];
+				for (int rest = length; rest > 0; ) {
+					int n = Math.min(rest, chunk.length);
+					readFully(chunk, 0, n);
+					if (buf != null) {
+						buf.write(chunk, 0, n);
+					}
+					rest -= n;
+				}
+				return;
+			}
+			while (true) {
+				readHeader(-1);
+				if (buf != null) {
+					buf.write(header, 0, headerLength);
+				}
+				if (isEndOfContents()) {
+					return;
+				}
+				copyContent(buf);
+			}
+		}
+
+		/**
+		 * Содержимое текущего элемента (примитивного или составного OCTET STRING, в том числе с неопределенной длиной) в виде потока.
+		 * Фрагменты читаются по мере чтения потока. После закрытия потока разбор продолжается со следующего элемента.
+		 */
+		InputStream openOctetString() throws IOException {
+			return new OctetStringInputStream(this);
+		}
+	}
+
+	/**
+	 * Поток содержимого OCTET STRING: данные фрагментов без заголовков. {@link #close()} дочитывает элемент до конца.
+	 */
+	private static final class OctetStringInputStream extends InputStream {
+
+		private final Reader reader;
+
+		/**
+		 * Конец составных элементов (позиция в потоке), -1 - неопределенная длина.
+		 */
+		private final List<Long> ends = new ArrayList<Long>();
+
+		private long segmentRemaining;
+
+		private boolean finished = false;
+
+		private final byte[] one = new byte[1];
+
+		private OctetStringInputStream(Reader reader) {
+			this.reader = reader;
+			if ((reader.tag & 0x20) == 0) {
+				segmentRemaining = reader.length;
+			} else {
+				segmentRemaining = 0;
+				ends.add(reader.length < 0 ? Long.valueOf(-1) : Long.valueOf(reader.position + reader.length));
+			}
+		}
+
+		/**
+		 * Переход к следующему непустому фрагменту.
+		 * @return false - содержимое закончилось
+		 */
+		private boolean nextSegment() throws IOException {
+			while (!ends.isEmpty()) {
+				long end = ends.get(ends.size() - 1).longValue();
+				if (end >= 0 && reader.position >= end) {
+					ends.remove(ends.size() - 1);
+					continue;
+				}
+				reader.readHeader(-1);
+				if (reader.isEndOfContents()) {
+					if (end >= 0) {
+						throw new IOException("Malformed " + reader.source + ": unexpected end-of-contents at " + reader.position);
+					}
+					ends.remove(ends.size() - 1);
+					continue;
+				}
+				if ((reader.tag & 0x20) != 0) { // вложенная составная строка
+					ends.add(reader.length < 0 ? Long.valueOf(-1) : Long.valueOf(reader.position + reader.length));
+					continue;
+				}
+				reader.expect(TAG_OCTET_STRING);
+				segmentRemaining = reader.length;
+				if (segmentRemaining > 0) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int n = read(one, 0, 1);
+			return n < 0 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (finished) {
+				return -1;
+			}
+			if (segmentRemaining == 0 && !nextSegment()) {
+				finished = true;
+				return -1;
+			}
+			int n = reader.in.read(b, off, (int) Math.min(len, segmentRemaining));
+			if (n < 0) {
+				throw new EOFException("Unexpected end of " + reader.source + " at " + reader.position);
+			}
+			reader.position += n;
+			segmentRemaining -= n;
+			return n;
+		}
+
+		@Override
+		public void close() throws IOException {
+			byte[] skip = new byte[DEFAULT_CHUNK_SIZE];
+			while (read(skip, 0, skip.length) >= 0) {
+				// дочитываем содержимое, чтобы разбор продолжился со следующего элемента
+			}
+		}
+	}
+}
@@ -0,0 +1,198 @@
+package org.lu.pki.tools;
+
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Кэш загруженных CRL по URL точки распространения (CRLDP).
+ * В кэш помещаются только разобранные CRL с уже проверенной подписью. CRL выдается из кэша до наступления nextUpdate.
+ * Объем кэша ограничен суммарным размером CRL в DER-кодировке, при превышении вытесняются давно неиспользованные CRL.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CrlCache {
+
+	private static final Logger LOG = Logger.getLogger(CrlCache.class.getName());
+
+	public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	/**
+	 * Запись кэша: CRL, сертификат, которым проверена подпись CRL, и служебные данные.
+	 */
+	public static final class Entry {
+		private final String url;
+		private final X509CRL crl;
+		private final X509Certificate issuerCert;
+		private final long size;
+		private final long loadedAt;
+
+		private Entry(String url, X509CRL crl, X509Certificate issuerCert, long size, long loadedAt) {
+			this.url = url;
+			this.crl = crl;
+			this.issuerCert = issuerCert;
+			this.size = size;
+			this.loadedAt = loadedAt;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public X509CRL getCrl() {
+			return crl;
+		}
+
+		/**
+		 * @return сертификат, которым была проверена подпись CRL.
+		 */
+		public X509Certificate getIssuerCert() {
+			return issuerCert;
+		}
+
+		public Date getNextUpdate() {
+			return crl.getNextUpdate();
+		}
+
+		/**
+		 * @return размер CRL в DER-кодировке
+		 */
+		public long getSize() {
+			return size;
+		}
+
+		/**
+		 * @return время загрузки CRL (мс)
+		 */
+		public long getLoadedAt() {
+			return loadedAt;
+		}
+
+		/**
+		 * @param now
+		 * @return true - если наступил nextUpdate и CRL нужно загрузить заново.
+		 */
+		public boolean isExpired(Date now) {
+			Date nextUpdate = crl.getNextUpdate();
+			return nextUpdate == null || !now.before(nextUpdate);
+		}
+	}
+
+	private final long maxBytes;
+
+	private long totalBytes = 0;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access-order -> LRU
+
+	/**
+	 * @param maxBytes - максимальный суммарный размер CRL (в DER-кодировке) в кэше.
+	 */
+	public CrlCache(long maxBytes) {
+		if (maxBytes < 1) {
+			throw new IllegalArgumentException("maxBytes must be positive: " + maxBytes);
+		}
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param url - адрес CRLDP
+	 * @param now - текущее время
+	 * @return запись или null, если CRL нет в кэше или наступил его nextUpdate.
+	 */
+	public synchronized Entry get(String url, Date now) {
+		Entry entry = entries.get(url);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(now)) {
+			remove(url);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("CRL " + url + " expired (next update " + entry.getNextUpdate() + ") and evicted");
+			}
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Запись кэша без проверки nextUpdate (сохраненная копия для условной загрузки, см. {@link RevocationHttpFetcher}).
+	 * @param url - адрес CRLDP
+	 * @return запись или null
+	 */
+	public synchronized Entry peek(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * Помещение в кэш CRL с проверенной подписью.
+	 * @param url - адрес CRLDP
+	 * @param crl - CRL
+	 * @param issuerCert - сертификат, которым проверена подпись CRL
+	 * @return запись кэша (даже если CRL слишком велик для кэша и не был в него помещен).
+	 * @throws CRLException - если CRL не удалось закодировать для оценки размера
+	 */
+	public Entry put(String url, X509CRL crl, X509Certificate issuerCert) throws CRLException {
+		Entry entry = new Entry(url, crl, issuerCert, crl.getEncoded().length, System.currentTimeMillis());
+		if (entry.getNextUpdate() == null) {
+			LOG.fine("CRL " + url + " has no next update and will not be cached");
+			return entry;
+		}
+		if (entry.size > maxBytes) {
+			LOG.warning("CRL " + url + " (" + entry.size + " bytes) exceeds CRL cache size " + maxBytes + " and will not be cached");
+			return entry;
+		}
+		synchronized (this) {
+			remove(url);
+			entries.put(url, entry);
+			totalBytes += entry.size;
+			// вытеснение давно неиспользованных CRL
+			Iterator<Entry> it = entries.values().iterator();
+			while (totalBytes > maxBytes && it.hasNext()) {
+				Entry eldest = it.next();
+				it.remove();
+				totalBytes -= eldest.size;
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("CRL " + eldest.url + " (" + eldest.size + " bytes) evicted from cache");
+				}
+			}
+		}
+		return entry;
+	}
+
+	public synchronized void invalidate(String url) {
+		remove(url);
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+		totalBytes = 0;
+	}
+
+	private void remove(String url) {
+		Entry old = entries.remove(url);
+		if (old != null) {
+			totalBytes -= old.size;
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @return суммарный размер CRL в кэше (в DER-кодировке)
+	 */
+	public synchronized long getTotalBytes() {
+		return totalBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+}
@@ -0,0 +1,289 @@
+package org.lu.pki.tools;
+
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Фоновое обновление CRL в {@link CrlCache}.
+ * Планировщик собирает адреса CRLDP из сертификатов хранилища (и периодически пересматривает хранилище),
+ * а также получает CRLDP успешно проверенных сертификатов от {@link CertificateVerifier}.
+ * Каждый CRL загружается заранее, за refreshAhead (плюс случайная задержка jitter) до его nextUpdate,
+ * так что проверка сертификата практически не ждет сети. Загрузка выполняется небольшим пулом daemon-потоков.
+ * Какие проверки читают обновленные CRL (и для каких CertificateVerifier передает CRLDP) - см.
+ * {@link CertificateVerifier#setCrlRefreshScheduler(CrlRefreshScheduler)}.
+ * <pre>
+ * CrlRefreshScheduler scheduler = new CrlRefreshScheduler(keyStore, 2);
+ * scheduler.start();
+ * CertificateVerifier.setCrlRefreshScheduler(scheduler);
+ * </pre>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class CrlRefreshScheduler {
+
+	private static final Logger LOG = Logger.getLogger(CrlRefreshScheduler.class.getName());
+
+	public static final int DEFAULT_THREADS = 2;
+
+	public static final long DEFAULT_REFRESH_AHEAD_MILLIS = 10 * 60 * 1000L;
+
+	public static final long DEFAULT_JITTER_MILLIS = 5 * 60 * 1000L;
+
+	public static final long DEFAULT_RETRY_DELAY_MILLIS = 60 * 1000L;
+
+	public static final long DEFAULT_RESCAN_INTERVAL_MILLIS = 60 * 60 * 1000L;
+
+	/**
+	 * Минимальная задержка между обновлениями одного CRL.
+	 */
+	private static final long MIN_REFRESH_DELAY_MILLIS = 10 * 1000L;
+
+	/**
+	 * Ограничение на количество отслеживаемых CRLDP (защита от бесконечного роста при проверке сертификатов "со стороны").
+	 */
+	private static final int MAX_URLS = 4096;
+
+	private static final AtomicInteger SCHEDULERS = new AtomicInteger();
+
+	private final KeyStore keyStore;
+
+	private final ScheduledThreadPoolExecutor executor;
+
+	private final ConcurrentMap<String, Boolean> urls = new ConcurrentHashMap<String, Boolean>();
+
+	private final Random random = new Random();
+
+	private final AtomicLong refreshCount = new AtomicLong();
+
+	private final AtomicLong failureCount = new AtomicLong();
+
+	private volatile long refreshAheadMillis = DEFAULT_REFRESH_AHEAD_MILLIS;
+
+	private volatile long jitterMillis = DEFAULT_JITTER_MILLIS;
+
+	private volatile long retryDelayMillis = DEFAULT_RETRY_DELAY_MILLIS;
+
+	private volatile long rescanIntervalMillis = DEFAULT_RESCAN_INTERVAL_MILLIS;
+
+	/**
+	 * @param keyStore - хранилище, из сертификатов которого берутся CRLDP и сертификаты для проверки подписи CRL
+	 * @param threads - количество потоков загрузки
+	 */
+	public CrlRefreshScheduler(KeyStore keyStore, int threads) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be positive: " + threads);
+		}
+		this.keyStore = keyStore;
+		final int schedulerNumber = SCHEDULERS.incrementAndGet();
+		this.executor = new ScheduledThreadPoolExecutor(threads, new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "crl-refresh-" + schedulerNumber + "-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	/**
+	 * Запуск планировщика: немедленный и далее периодический просмотр хранилища.
+	 */
+	public void start() {
+		executor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				rescanKeyStore();
+			}
+		}, 0, rescanIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Остановка планировщика. Запущенные загрузки прерываются.
+	 */
+	public void stop() {
+		executor.shutdownNow();
+		urls.clear();
+	}
+
+	public boolean isStopped() {
+		return executor.isShutdown();
+	}
+
+	/**
+	 * Поиск CRLDP во всех сертификатах хранилища.
+	 */
+	public void rescanKeyStore() {
+		try {
+			for (X509Certificate cert : KeyStoreIndex.of(keyStore).getCertificates()) {
+				try {
+					register(CertificateMetadata.of(cert).getCrlDistributionPoints());
+				} catch (Exception e) {
+					LOG.warning("CRLDP of " + cert.getSubjectDN().getName() + " can't be parsed: " + e.getMessage());
+				}
+			}
+		} catch (Exception e) {
+			LOG.log(Level.SEVERE, "Key store access problem. CRLDP scan failed. " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Добавление CRLDP для фонового обновления. Новые адреса загружаются сразу, уже известные - игнорируются.
+	 * @param crlDistPoints - адреса CRLDP
+	 */
+	public void register(Collection<String> crlDistPoints) {
+		for (String url : crlDistPoints) {
+			if (urls.containsKey(url) || isStopped()) {
+				continue;
+			}
+			if (urls.size() >= MAX_URLS) {
+				LOG.warning("Too many CRLDP urls (" + urls.size() + "). " + url + " will not be refreshed in background");
+				continue;
+			}
+			if (urls.putIfAbsent(url, Boolean.TRUE) == null) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("CRLDP " + url + " registered for background refresh");
+				}
+				schedule(url, initialDelay(url));
+			}
+		}
+	}
+
+	/**
+	 * Если CRL уже есть в кэше (или в каталоге индексов), то первое обновление - по его nextUpdate, иначе - немедленно.
+	 */
+	private long initialDelay(String url) {
+		Date now = new Date();
+		RevocationIndexDirectory indexDirectory = CertificateVerifier.getRevocationIndexDirectory();
+		if (indexDirectory != null) {
+			RevocationIndex index = indexDirectory.get(url, now);
+			if (index != null) {
+				return refreshDelay(index.getNextUpdate(), now);
+			}
+		}
+		CrlCache cache = CertificateVerifier.getCrlCache();
+		if (cache != null) {
+			CrlCache.Entry entry = cache.get(url, now);
+			if (entry != null) {
+				return refreshDelay(entry.getNextUpdate(), now);
+			}
+		}
+		return 0;
+	}
+
+	private void schedule(final String url, long delayMillis) {
+		if (isStopped()) {
+			return;
+		}
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					refresh(url);
+				}
+			}, delayMillis, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException e) {
+			LOG.fine("CRL refresh scheduler is stopped. " + url + " will not be refreshed");
+		}
+	}
+
+	/**
+	 * Загрузка CRL и планирование следующего обновления.
+	 */
+	private void refresh(String url) {
+		long delay;
+		try {
+			Date now = new Date();
+			Date nextUpdate = CertificateVerifier.refreshCRL(url, TrustSnapshot.of(keyStore), now);
+			refreshCount.incrementAndGet();
+			delay = refreshDelay(nextUpdate, now);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("CRL " + url + " refreshed. Next update " + nextUpdate + ", next refresh in " + delay + "ms");
+			}
+		} catch (Exception e) {
+			failureCount.incrementAndGet();
+			delay = retryDelayMillis;
+			LOG.warning("CRL " + url + " refresh failed: " + e.getClass().getName() + " " + e.getMessage() + ". Retry in " + delay + "ms");
+		}
+		schedule(url, delay);
+	}
+
+	/**
+	 * Задержка до следующего обновления: за refreshAhead + jitter до nextUpdate, но не раньше середины оставшегося срока (для CRL с коротким сроком действия).
+	 */
+	private long refreshDelay(Date nextUpdate, Date now) {
+		if (nextUpdate == null) {
+			return retryDelayMillis;
+		}
+		long remaining = nextUpdate.getTime() - now.getTime();
+		long jitter = jitterMillis > 0 ? (long) (random.nextDouble() * jitterMillis) : 0;
+		long delay = Math.max(remaining - refreshAheadMillis - jitter, remaining / 2);
+		return Math.max(delay, MIN_REFRESH_DELAY_MILLIS);
+	}
+
+	/**
+	 * @return адреса CRLDP, которые обновляются в фоне
+	 */
+	public Set<String> getRegisteredUrls() {
+		return Collections.unmodifiableSet(urls.keySet());
+	}
+
+	/**
+	 * @return количество успешных загрузок CRL
+	 */
+	public long getRefreshCount() {
+		return refreshCount.get();
+	}
+
+	/**
+	 * @return количество неудачных загрузок CRL
+	 */
+	public long getFailureCount() {
+		return failureCount.get();
+	}
+
+	/**
+	 * @param refreshAheadMillis - за сколько до nextUpdate обновлять CRL
+	 */
+	public void setRefreshAheadMillis(long refreshAheadMillis) {
+		this.refreshAheadMillis = refreshAheadMillis;
+	}
+
+	/**
+	 * @param jitterMillis - максимальная случайная добавка к refreshAhead, чтобы CRL разных CRLDP не обновлялись одновременно
+	 */
+	public void setJitterMillis(long jitterMillis) {
+		this.jitterMillis = jitterMillis;
+	}
+
+	/**
+	 * @param retryDelayMillis - задержка повторной загрузки после ошибки
+	 */
+	public void setRetryDelayMillis(long retryDelayMillis) {
+		this.retryDelayMillis = retryDelayMillis;
+	}
+
+	/**
+	 * @param rescanIntervalMillis - период просмотра хранилища. Применяется при {@link #start()}.
+	 */
+	public void setRescanIntervalMillis(long rescanIntervalMillis) {
+		this.rescanIntervalMillis = rescanIntervalMillis;
+	}
+}
@@ -0,0 +1,31 @@
+package org.lu.pki.tools;
+
+import java.security.cert.X509CRL;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Источник CRL, который используется {@link CertificateVerifier} раньше загрузки по сети (например, {@link OfflineCrlDirectory}).
+ * Источник отдает CRL как есть: подпись и даты CRL проверяет CertificateVerifier.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public interface CrlSource {
+
+	/**
+	 * Полный CRL для адреса CRLDP сертификата.
+	 * @param url - адрес CRLDP
+	 * @param issuer - издатель сертификата (если CRL для адреса не известен, источник может подобрать CRL по издателю)
+	 * @return CRL или null, если источник его не содержит
+	 */
+	X509CRL getCRL(String url, X500Principal issuer);
+
+	/**
+	 * Delta CRL для адреса из FreshestCRL.
+	 * @param url - адрес delta CRL
+	 * @param issuer - издатель полного CRL
+	 * @return delta CRL или null, если источник его не содержит
+	 */
+	X509CRL getDeltaCRL(String url, X500Principal issuer);
+}
@@ -5,9 +5,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.math.BigInteger;
 import java.security.DigestException;
-import java.security.DigestInputStream;
 import java.security.GeneralSecurityException;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
@@ -29,6 +29,7 @@ import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.Calendar;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Level;
@@ -65,6 +66,7 @@ import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.RecipientInfo;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.RecipientInfos;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignatureAlgorithmIdentifier;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignatureValue;
+import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignedAttributes;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignedData;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignerIdentifier;
 import ru.CryptoPro.JCP.ASN.CryptographicMessageSyntax.SignerInfo;
@@ -78,16 +80,17 @@ import ru.CryptoPro.JCP.ASN.GostR3410_EncryptionSyntax.GostR3410_KeyTransport;
 import ru.CryptoPro.JCP.ASN.GostR3410_EncryptionSyntax.GostR3410_TransportParameters;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.AlgorithmIdentifier;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.Attribute;
+import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.Attribute_values;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.Certificate;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.CertificateSerialNumber;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.Name;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.RDNSequence;
 import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.SubjectPublicKeyInfo;
+import ru.CryptoPro.JCP.ASN.PKIX1Explicit88.Time;
 import ru.CryptoPro.JCP.params.AlgIdInterface;
 import ru.CryptoPro.JCP.params.AlgIdSpec;
 import ru.CryptoPro.JCP.params.OID;
 import ru.CryptoPro.JCP.params.ParamsInterface;
-import ru.CryptoPro.JCP.tools.Array;
 
 import com.objsys.asn1j.runtime.Asn1BerDecodeBuffer;
 import com.objsys.asn1j.runtime.Asn1BerEncodeBuffer;
@@ -96,13 +99,14 @@ import com.objsys.asn1j.runtime.Asn1Null;
 import com.objsys.asn1j.runtime.Asn1ObjectIdentifier;
 import com.objsys.asn1j.runtime.Asn1OctetString;
 import com.objsys.asn1j.runtime.Asn1Type;
+import com.objsys.asn1j.runtime.Asn1UTCTime;
 
 /**
  * Если что-то непонятно, то лучше чем тут нигде http://www.ietf.org/rfc/rfc3852.txt
  * @author Igor Konovalov ikonovalov@luxoft.com
  * 
  */
-public class CryptoProCryptoUtils extends CryptoUtils {
+public class CryptoProCryptoUtils extends CryptoUtils implements DigestSigner {
 
 	public static final String ENVELOPED_DATA_OID = "1.2.840.113549.1.7.3";
 
@@ -122,6 +126,11 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	
 	public static final String GOST28147_ALG = "GOST28147";
 	
+	/**
+	 * Длина хэша ГОСТ Р 34.11-94 в байтах.
+	 */
+	public static final int GOST_DIGEST_LENGTH = 32;
+	
 	/**
 	 * Список подписывающих (отправителей).
 	 */
@@ -131,6 +140,11 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	 * Список адресатов.
 	 */
     private final List<Recipient> recipients = new ArrayList<Recipient>();
+    
+    /**
+     * Подпись с аттрибутами (signedAttrs): content-type, message-digest, signing-time.
+     */
+    private boolean signedAttributes = false;
 
 	/**
 	 * вектор усложнения ключа согласования
@@ -229,6 +243,18 @@ public class CryptoProCryptoUtils extends CryptoUtils {
     	return this;
 	}
 	
+	/**
+	 * Режим подписи с аттрибутами (signedAttrs: content-type, message-digest, signing-time, RFC 3852 5.3).
+	 * Данные хэшируются один раз, а каждый подписчик подписывает только DER-кодировку аттрибутов,
+	 * поэтому стоимость подписи почти не зависит от количества подписчиков. По умолчанию выключен (подписываются сами данные).
+	 * @param enabled - true - подписывать аттрибуты
+	 * @return this
+	 */
+	public CryptoProCryptoUtils withSignedAttributes(boolean enabled) {
+		this.signedAttributes = enabled;
+		return this;
+	}
+	
 	public CryptoUtils recipients(String... recipientsAliases) throws Exception {
 		recipients.clear();
 		
@@ -243,9 +269,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	public byte[] encrypt(byte[] plain) throws Exception {
 		
 		// проверка исходных данных
-		if (signers == null || signers.size() == 0) {
-			throw new Exception("No one signer. Set at least one signer and try again.");
-		}
+		final Signer randomSigner = chooseRandomSender();
 		
 		/*
 		 *  EnvelopedData ::= SEQUENCE {
@@ -266,12 +290,6 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		final byte[] initializationVector = cipher.getIV();
 		final byte[] enctryptedData = cipher.doFinal(plain, 0, plain.length);
 		
-		// выбор случайного отправителя из списка подписчиков
-		final Signer randomSigner = signers.get(new Random().nextInt(signers.size()));
-		LOG.fine("Sending from random signer. We are choosing " + randomSigner.getCert().getSubjectDN());
-		
-		final int recipientListSize = recipients.size();
-		
 		// формирование CMS-сообщения
 		final EnvelopedData envelopedData = new EnvelopedData();
 		
@@ -279,13 +297,139 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		envelopedData.version = new CMSVersion(0);
 		
 		// EnvelopedData:recipientInfos
-		envelopedData.recipientInfos = new RecipientInfos(recipientListSize);
+		envelopedData.recipientInfos = createRecipientInfos(simm, randomSigner);
+		
+		// EnvelopedData:encryptedContentInfo
+		envelopedData.encryptedContentInfo = new EncryptedContentInfo();
+		final OID contentType = new OID(ENCAP_CONTENT_INDO_OID);
+		envelopedData.encryptedContentInfo.contentType = new ContentType(contentType.value);
+		envelopedData.encryptedContentInfo.contentEncryptionAlgorithm = createContentEncryptionAlgorithm(initializationVector);
+		envelopedData.encryptedContentInfo.encryptedContent = new EncryptedContent(enctryptedData);
+		
+		// Помещаем во внешнюю оболочку
+		final ContentInfo contentInfo = new ContentInfo();
+		contentInfo.contentType = new Asn1ObjectIdentifier(new OID(ENVELOPED_DATA_OID).value);
+		contentInfo.content = envelopedData;
+		
+		final Asn1BerEncodeBuffer contentInfoEncodeBuffer = new Asn1BerEncodeBuffer();
+		contentInfo.encode(contentInfoEncodeBuffer);
+		
+		return contentInfoEncodeBuffer.getMsgCopy();
+	}
+	
+	/**
+	 * Потоковое зашифрование: EnvelopedData пишется в out в BER с неопределенной длиной. Сначала пишутся заголовок и RecipientInfos,
+	 * затем encryptedContent фрагментами по мере зашифрования (GOST 28147 CFB), поэтому память не зависит от размера данных.
+	 * Результат расшифровывается и {@link #decrypt(byte[])}. Потоки не закрываются.
+	 * @param in - открытые данные
+	 * @param out - CMS-сообщение (ContentInfo с EnvelopedData)
+	 * @throws Exception
+	 */
+	public void encrypt(InputStream in, OutputStream out) throws Exception {
+		final Signer randomSigner = chooseRandomSender();
+		
+		final SecretKey simm = generateRandomSimmetricKey();
+		final Cipher cipher = Cipher.getInstance(CIPHER_MODE);
+		cipher.init(Cipher.ENCRYPT_MODE, simm, (SecureRandom) null);
+		final byte[] initializationVector = cipher.getIV();
+		
+		final RecipientInfos recipientInfos = createRecipientInfos(simm, randomSigner);
+		
+		final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+		// ContentInfo
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new Asn1ObjectIdentifier(new OID(ENVELOPED_DATA_OID).value), ebuf, out);
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_CONTEXT_0);
+		// EnvelopedData: version, recipientInfos
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new CMSVersion(0), ebuf, out);
+		writeEncoded(recipientInfos, ebuf, out);
+		// EncryptedContentInfo: contentType, contentEncryptionAlgorithm, encryptedContent [0] IMPLICIT
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new ContentType(new OID(ENCAP_CONTENT_INDO_OID).value), ebuf, out);
+		writeEncoded(createContentEncryptionAlgorithm(initializationVector), ebuf, out);
+		
+		final CmsStreams.OctetStringOutputStream encryptedContent = new CmsStreams.OctetStringOutputStream(out, CmsStreams.TAG_CONTEXT_0, CmsStreams.DEFAULT_CHUNK_SIZE);
+		final byte[] plain = new byte[CmsStreams.DEFAULT_CHUNK_SIZE];
+		byte[] encrypted = new byte[cipher.getOutputSize(plain.length)];
+		long total = 0;
+		int n;
+		while ((n = in.read(plain)) != -1) {
+			// выход update зависит от данных, оставшихся в шифре от прошлых вызовов: размер проверяется на каждом фрагменте
+			final int outputSize = cipher.getOutputSize(n);
+			if (encrypted.length < outputSize) {
+				encrypted = new byte[outputSize];
+			}
+			final int len = cipher.update(plain, 0, n, encrypted, 0);
+			encryptedContent.write(encrypted, 0, len);
+			total += n;
+		}
+		final byte[] last = cipher.doFinal();
+		if (last != null) {
+			encryptedContent.write(last);
+		}
+		encryptedContent.close();
+		
+		CmsStreams.writeEndOfContents(out); // EncryptedContentInfo
+		CmsStreams.writeEndOfContents(out); // EnvelopedData
+		CmsStreams.writeEndOfContents(out); // [0]
+		CmsStreams.writeEndOfContents(out); // ContentInfo
+		out.flush();
+		
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Encrypted " + total + " bytes for " + recipients.size() + " recipient(s)");
+		}
+	}
+	
+	/**
+	 * Кодирование элемента ASN.1 и запись его в поток.
+	 */
+	private static void writeEncoded(Asn1Type value, Asn1BerEncodeBuffer ebuf, OutputStream out) throws Asn1Exception, IOException {
+		ebuf.reset();
+		value.encode(ebuf);
+		ebuf.write(out);
+		ebuf.reset();
+	}
+	
+	/**
+	 * Выбор случайного отправителя из списка подписчиков: его ключ используется для выработки ключей согласования.
+	 * @throws Exception - список подписчиков пуст
+	 */
+	private Signer chooseRandomSender() throws Exception {
+		if (signers == null || signers.size() == 0) {
+			throw new Exception("No one signer. Set at least one signer and try again.");
+		}
+		final Signer randomSigner = signers.get(new Random().nextInt(signers.size()));
+		LOG.fine("Sending from random signer. We are choosing " + randomSigner.getCert().getSubjectDN());
+		return randomSigner;
+	}
+	
+	/**
+	 * Параметры алгоритма зашифрования содержимого: GOST 28147-89 с вектором инициализации и набором параметров по умолчанию.
+	 */
+	private ContentEncryptionAlgorithmIdentifier createContentEncryptionAlgorithm(byte[] initializationVector) {
+		final Gost28147_89_Parameters params = new Gost28147_89_Parameters();
+		params.iv = new Gost28147_89_IV(initializationVector);
+		params.encryptionParamSet = new Gost28147_89_ParamSet(paramss.getOID().value);
+		return new ContentEncryptionAlgorithmIdentifier(_Gost28147_89_EncryptionSyntaxValues.id_Gost28147_89, params);
+	}
+	
+	/**
+	 * RecipientInfos (KeyTransRecipientInfo) для всех адресатов: симметричный ключ зашифровывается на ключе согласования
+	 * отправителя и адресата.
+	 * @param simm - симметричный ключ содержимого
+	 * @param sender - отправитель
+	 */
+	private RecipientInfos createRecipientInfos(SecretKey simm, Signer sender) throws Exception {
+		final Cipher cipher = Cipher.getInstance(CIPHER_MODE);
+		final int recipientListSize = recipients.size();
+		final RecipientInfos recipientInfos = new RecipientInfos(recipientListSize);
 		
 		for (int z = 0; z < recipientListSize; z++) { // заполняем RecipientInfo[]
 			final Recipient recipient = recipients.get(z);
 			
 			// генерирование ключа согласования
-			final SecretKey agreementKey = generateDHAgreementKey(randomSigner.getKey(), recipient.getCert().getPublicKey());
+			final SecretKey agreementKey = generateDHAgreementKey(sender.getKey(), recipient.getCert().getPublicKey());
 			
 			// Зашифрование симметричного ключа на ключе согласования отправителя
 			cipher.init(Cipher.WRAP_MODE, agreementKey, (SecureRandom) null);
@@ -293,7 +437,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			
 			// Начинаем формировать RecipientInfo
 			final RecipientInfo recipientInfo = new RecipientInfo();
-			envelopedData.recipientInfos.elements[z] = recipientInfo;
+			recipientInfos.elements[z] = recipientInfo;
 			/*
 			 *  RecipientInfo ::= CHOICE {
              * 		ktri KeyTransRecipientInfo, -> KeyTransRecipientInfo ::= SEQUENCE {
@@ -314,7 +458,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			
 			final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
 			final SubjectPublicKeyInfo spki = new SubjectPublicKeyInfo();
-			final Asn1BerDecodeBuffer dbuff = new Asn1BerDecodeBuffer(randomSigner.getCert().getPublicKey().getEncoded());
+			final Asn1BerDecodeBuffer dbuff = new Asn1BerDecodeBuffer(sender.getCert().getPublicKey().getEncoded());
 			spki.decode(dbuff);
 			dbuff.reset();
 			
@@ -350,7 +494,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			encrKey.transportParameters = new GostR3410_TransportParameters();
 			encrKey.transportParameters.encryptionParamSet = new Gost28147_89_ParamSet(algid.getCryptParams().getOID().value);
 			encrKey.transportParameters.ephemeralPublicKey = new SubjectPublicKeyInfo();
-			dbuf = new Asn1BerDecodeBuffer(randomSigner.getCert().getPublicKey().getEncoded());
+			dbuf = new Asn1BerDecodeBuffer(sender.getCert().getPublicKey().getEncoded());
 			encrKey.transportParameters.ephemeralPublicKey.decode(dbuf);
 			dbuf.reset();
 			encrKey.transportParameters.ukm = new Asn1OctetString(sv);
@@ -362,26 +506,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			recipientInfo.set_ktri(keytrans);
 			
 		}
-		
-		// EnvelopedData:encryptedContentInfo
-		envelopedData.encryptedContentInfo = new EncryptedContentInfo();
-		final OID contentType = new OID("1.2.840.113549.1.7.1");
-		envelopedData.encryptedContentInfo.contentType = new ContentType(contentType.value);
-		final Gost28147_89_Parameters params = new Gost28147_89_Parameters();
-		params.iv = new Gost28147_89_IV(initializationVector);
-		params.encryptionParamSet = new Gost28147_89_ParamSet(paramss.getOID().value);
-		envelopedData.encryptedContentInfo.contentEncryptionAlgorithm = new ContentEncryptionAlgorithmIdentifier(_Gost28147_89_EncryptionSyntaxValues.id_Gost28147_89, params);
-		envelopedData.encryptedContentInfo.encryptedContent = new EncryptedContent(enctryptedData);
-		
-		// Помещаем во внешнюю оболочку
-		final ContentInfo contentInfo = new ContentInfo();
-		contentInfo.contentType = new Asn1ObjectIdentifier(new OID(ENVELOPED_DATA_OID).value);
-		contentInfo.content = envelopedData;
-		
-		final Asn1BerEncodeBuffer contentInfoEncodeBuffer = new Asn1BerEncodeBuffer();
-		contentInfo.encode(contentInfoEncodeBuffer);
-		
-		return contentInfoEncodeBuffer.getMsgCopy();
+		return recipientInfos;
 	}
 	
 	public ContentInfo _signAttached(byte[] data) throws Exception {
@@ -405,27 +530,20 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		signedData.version = new CMSVersion(1);
 		
 		// digestAlgorithms
-		signedData.digestAlgorithms = new DigestAlgorithmIdentifiers(signerListSize);
-		for (int z = 0; z < signerListSize; z++) {
-			final DigestAlgorithmIdentifier digistAlgIdentefer = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
-			digistAlgIdentefer.parameters = new Asn1Null();
-			signedData.digestAlgorithms.elements[z] = digistAlgIdentefer;
-		}
+		signedData.digestAlgorithms = createDigestAlgorithms();
 		
 		// encapContentInfo
 		signedData.encapContentInfo = createEncapsulatedContentInfo(data);
 		
 		// certificates -> CertificateSet ::= SET OF CertificateChoices
-		signedData.certificates = new CertificateSet(1);
-		signedData.certificates.elements = new CertificateChoices[signerListSize];
-		for (int z = 0; z < signerListSize; z++) {
-			Signer sig = signers.get(z);
-			final Certificate certificate = new Certificate(); // ASN.1
-			final Asn1BerDecodeBuffer decodeBuffer = new Asn1BerDecodeBuffer(sig.getCert().getEncoded());
-			certificate.decode(decodeBuffer);
-			
-			signedData.certificates.elements[z] = new CertificateChoices();
-			signedData.certificates.elements[z].set_certificate(certificate);
+		signedData.certificates = createCertificateSet();
+		
+		// signedAttrs: хэш данных вычисляется один раз, подписываются аттрибуты
+		SignedAttributes signedAttrs = null;
+		byte[] signedAttrsEncoded = null;
+		if (signedAttributes) {
+			signedAttrs = createSignedAttributes(DigestService.digest(JCP.GOST_DIGEST_NAME, data), Calendar.getInstance());
+			signedAttrsEncoded = encodeSignedAttributes(signedAttrs);
 		}
 		
 		// signerInfos -> SignerInfos ::= SET OF SignerInfo
@@ -435,25 +553,10 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			
 			final Signature signature = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
 			signature.initSign(sig.getKey());
-			signature.update(data);
+			signature.update(signedAttrs != null ? signedAttrsEncoded : data);
 			final byte[] sign = signature.sign();
 			
-			signedData.signerInfos.elements[z] = new SignerInfo();
-			signedData.signerInfos.elements[z].version = new CMSVersion(1);
-			signedData.signerInfos.elements[z].sid = new SignerIdentifier();
-			
-			final byte[] encodedName = sig.getCert().getIssuerX500Principal().getEncoded();
-			final Asn1BerDecodeBuffer nameBuf = new Asn1BerDecodeBuffer(encodedName);
-			final Name name = new Name();
-			name.decode(nameBuf);
-			
-			final CertificateSerialNumber num = new CertificateSerialNumber(sig.getCert().getSerialNumber());
-			signedData.signerInfos.elements[z].sid.set_issuerAndSerialNumber(new IssuerAndSerialNumber(name, num));
-			signedData.signerInfos.elements[z].digestAlgorithm = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
-			signedData.signerInfos.elements[z].digestAlgorithm.parameters = new Asn1Null();
-			signedData.signerInfos.elements[z].signatureAlgorithm = new SignatureAlgorithmIdentifier(new OID(JCP.GOST_EL_KEY_OID).value);
-			signedData.signerInfos.elements[z].signatureAlgorithm.parameters = new Asn1Null();
-			signedData.signerInfos.elements[z].signature = new SignatureValue(sign);
+			signedData.signerInfos.elements[z] = createSignerInfo(sig, signedAttrs, sign);
 		}
 		
 		return contentSign;
@@ -470,9 +573,277 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		final byte[] bufferContentInfo = asnBuf.getMsgCopy();
 		return bufferContentInfo;
 	}
+	
+	/**
+	 * Отсоединенная подпись: содержимое хэшируется один раз (ГОСТ Р 34.11, буфером {@link DigestService#BUFFER_SIZE}),
+	 * каждый подписчик подписывает аттрибуты (signedAttrs) с этим хэшем. eContent в SignedData отсутствует,
+	 * поэтому размер сообщения не зависит от размера данных. Подпись всегда формируется с аттрибутами,
+	 * независимо от {@link #withSignedAttributes(boolean)}.
+	 * @param content - подписываемые данные (поток не закрывается)
+	 * @return CMS-сообщение (ContentInfo с SignedData)
+	 * @throws Exception
+	 */
+	public byte[] signDetached(InputStream content) throws Exception {
+		return signDigest(DigestService.digest(JCP.GOST_DIGEST_NAME, content));
+	}
+	
+	/**
+	 * Отсоединенная подпись по хэшу, вычисленному вызывающей стороной (например, при приеме документа).
+	 * Содержимое не читается и не хэшируется повторно.
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого (32 байта)
+	 * @return CMS-сообщение (ContentInfo с SignedData без eContent)
+	 * @throws Exception
+	 */
+	@Override
+	public byte[] signDigest(byte[] messageDigest) throws Exception {
+		checkDigestLength(messageDigest);
+		final ContentInfo contentSign = _signDetached(messageDigest);
+		
+		final Asn1BerEncodeBuffer asnBuf = new Asn1BerEncodeBuffer();
+		contentSign.encode(asnBuf, true);
+		return asnBuf.getMsgCopy();
+	}
+	
+	/**
+	 * Хэш ГОСТ Р 34.11 - 32 байта.
+	 */
+	private static void checkDigestLength(byte[] messageDigest) {
+		if (messageDigest == null) {
+			throw new NullPointerException("Message digest is null");
+		}
+		if (messageDigest.length != GOST_DIGEST_LENGTH) {
+			throw new IllegalArgumentException("GOST R 34.11 digest expected (" + GOST_DIGEST_LENGTH + " bytes), but " + messageDigest.length + " bytes given");
+		}
+	}
+	
+	/**
+	 * SignedData без eContent с подписью аттрибутов, содержащих хэш содержимого.
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого
+	 */
+	private ContentInfo _signDetached(byte[] messageDigest) throws Exception {
+		final int signerListSize = signers.size();
+		final ContentInfo contentSign = new ContentInfo();
+		contentSign.contentType = new Asn1ObjectIdentifier(new OID(SIGNED_DATA_OID).value);
+		final SignedData signedData = new SignedData();
+		contentSign.content = signedData;
+		
+		signedData.version = new CMSVersion(1);
+		signedData.digestAlgorithms = createDigestAlgorithms();
+		signedData.encapContentInfo = createEncapsulatedContentInfo(null); // без eContent
+		signedData.certificates = createCertificateSet();
+		
+		final SignedAttributes signedAttrs = createSignedAttributes(messageDigest, Calendar.getInstance());
+		final byte[] signedAttrsEncoded = encodeSignedAttributes(signedAttrs);
+		
+		signedData.signerInfos = new SignerInfos(signerListSize);
+		for (int z = 0; z < signerListSize; z++) {
+			Signer sig = signers.get(z);
+			
+			final Signature signature = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
+			signature.initSign(sig.getKey());
+			signature.update(signedAttrsEncoded);
+			
+			signedData.signerInfos.elements[z] = createSignerInfo(sig, signedAttrs, signature.sign());
+		}
+		
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Detached signature created by " + signerListSize + " signer(s)");
+		}
+		return contentSign;
+	}
+	
+	/**
+	 * Потоковая присоединенная подпись: SignedData пишется в out в BER с неопределенной длиной, eContent - фрагментами
+	 * по мере чтения данных, которые сразу передаются в подпись каждого подписчика (в режиме {@link #withSignedAttributes(boolean)} -
+	 * только в хэш). Сертификаты и SignerInfos пишутся после содержимого, поэтому память не зависит от размера данных. Результат проверяется и {@link #verify(byte[])}. Потоки не закрываются.
+	 * @param in - подписываемые данные
+	 * @param out - CMS-сообщение (ContentInfo с SignedData)
+	 * @throws Exception
+	 */
+	public void signAttached(InputStream in, OutputStream out) throws Exception {
+		final int signerListSize = signers.size();
+		final Signature[] signatures = new Signature[signerListSize];
+		for (int z = 0; z < signerListSize; z++) {
+			signatures[z] = Signature.getInstance(JCP.GOST_EL_SIGN_NAME);
+			signatures[z].initSign(signers.get(z).getKey());
+		}
+		// с аттрибутами данные проходят только через хэш, подписи получают аттрибуты после содержимого
+		final MessageDigest contentDigest = signedAttributes ? MessageDigest.getInstance(JCP.GOST_DIGEST_NAME) : null;
+		final Signature[] contentSignatures = signedAttributes ? new Signature[0] : signatures;
+		
+		final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
+		// ContentInfo
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new Asn1ObjectIdentifier(new OID(SIGNED_DATA_OID).value), ebuf, out);
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_CONTEXT_0);
+		// SignedData: version, digestAlgorithms
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new CMSVersion(1), ebuf, out);
+		writeEncoded(createDigestAlgorithms(), ebuf, out);
+		// EncapsulatedContentInfo: eContentType, eContent [0] EXPLICIT OCTET STRING
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_SEQUENCE);
+		writeEncoded(new Asn1ObjectIdentifier(new OID(ENCAP_CONTENT_INDO_OID).value), ebuf, out);
+		CmsStreams.writeIndefiniteHeader(out, CmsStreams.TAG_CONTEXT_0);
+		
+		final CmsStreams.OctetStringOutputStream eContent = new CmsStreams.OctetStringOutputStream(out, CmsStreams.TAG_CONSTRUCTED_OCTET_STRING, CmsStreams.DEFAULT_CHUNK_SIZE);
+		final byte[] buf = new byte[CmsStreams.DEFAULT_CHUNK_SIZE];
+		long total = 0;
+		int n;
+		while ((n = in.read(buf)) != -1) {
+			if (contentDigest != null) {
+				contentDigest.update(buf, 0, n);
+			}
+			for (Signature signature : contentSignatures) {
+				signature.update(buf, 0, n);
+			}
+			eContent.write(buf, 0, n);
+			total += n;
+		}
+		eContent.close();
+		CmsStreams.writeEndOfContents(out); // [0]
+		CmsStreams.writeEndOfContents(out); // EncapsulatedContentInfo
+		
+		// certificates [0] IMPLICIT CertificateSet
+		writeImplicit(createCertificateSet(), CmsStreams.TAG_CONTEXT_0, ebuf, out);
+		
+		// signerInfos
+		SignedAttributes signedAttrs = null;
+		if (contentDigest != null) {
+			signedAttrs = createSignedAttributes(contentDigest.digest(), Calendar.getInstance());
+			final byte[] signedAttrsEncoded = encodeSignedAttributes(signedAttrs);
+			for (Signature signature : signatures) {
+				signature.update(signedAttrsEncoded);
+			}
+		}
+		final SignerInfos signerInfos = new SignerInfos(signerListSize);
+		for (int z = 0; z < signerListSize; z++) {
+			signerInfos.elements[z] = createSignerInfo(signers.get(z), signedAttrs, signatures[z].sign());
+		}
+		writeEncoded(signerInfos, ebuf, out);
+		
+		CmsStreams.writeEndOfContents(out); // SignedData
+		CmsStreams.writeEndOfContents(out); // [0]
+		CmsStreams.writeEndOfContents(out); // ContentInfo
+		out.flush();
+		
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Signed " + total + " bytes by " + signerListSize + " signer(s)");
+		}
+	}
+	
+	/**
+	 * Кодирование элемента (SET или SEQUENCE) с тегом IMPLICIT вместо универсального и запись его в поток.
+	 */
+	private static void writeImplicit(Asn1Type value, int tag, Asn1BerEncodeBuffer ebuf, OutputStream out) throws Asn1Exception, IOException {
+		ebuf.reset();
+		value.encode(ebuf);
+		final byte[] encoded = ebuf.getMsgCopy();
+		ebuf.reset();
+		encoded[0] = (byte) tag;
+		out.write(encoded);
+	}
+	
+	/**
+	 * digestAlgorithms: ГОСТ Р 34.11 для каждого подписчика.
+	 */
+	private DigestAlgorithmIdentifiers createDigestAlgorithms() {
+		final int signerListSize = signers.size();
+		final DigestAlgorithmIdentifiers digestAlgorithms = new DigestAlgorithmIdentifiers(signerListSize);
+		for (int z = 0; z < signerListSize; z++) {
+			final DigestAlgorithmIdentifier digistAlgIdentefer = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
+			digistAlgIdentefer.parameters = new Asn1Null();
+			digestAlgorithms.elements[z] = digistAlgIdentefer;
+		}
+		return digestAlgorithms;
+	}
+	
+	/**
+	 * certificates: сертификаты всех подписчиков.
+	 */
+	private CertificateSet createCertificateSet() throws Exception {
+		final int signerListSize = signers.size();
+		final CertificateSet certificates = new CertificateSet(1);
+		certificates.elements = new CertificateChoices[signerListSize];
+		for (int z = 0; z < signerListSize; z++) {
+			Signer sig = signers.get(z);
+			final Certificate certificate = new Certificate(); // ASN.1
+			final Asn1BerDecodeBuffer decodeBuffer = new Asn1BerDecodeBuffer(sig.getCert().getEncoded());
+			certificate.decode(decodeBuffer);
+			
+			certificates.elements[z] = new CertificateChoices();
+			certificates.elements[z].set_certificate(certificate);
+		}
+		return certificates;
+	}
+	
+	/**
+	 * Аттрибуты подписи (signedAttrs): content-type (id-data), message-digest и signing-time.
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого
+	 * @param signingTime - время подписи
+	 */
+	private SignedAttributes createSignedAttributes(byte[] messageDigest, Calendar signingTime) throws Asn1Exception {
+		final Attribute[] attrs = new Attribute[3];
+		
+		// content-type
+		attrs[0] = new Attribute(new OID(STR_CMS_OID_CONT_TYP_ATTR).value, new Attribute_values(1));
+		attrs[0].values.elements[0] = new Asn1ObjectIdentifier(new OID(ENCAP_CONTENT_INDO_OID).value);
+		
+		// signing-time
+		final Time time = new Time();
+		final Asn1UTCTime utcTime = new Asn1UTCTime();
+		utcTime.setTime(signingTime);
+		time.set_utcTime(utcTime);
+		attrs[1] = new Attribute(new OID(STR_CMS_OID_SIGN_TYM_ATTR).value, new Attribute_values(1));
+		attrs[1].values.elements[0] = time.getElement();
+		
+		// message-digest
+		attrs[2] = new Attribute(new OID(STR_CMS_OID_DIGEST_ATTR).value, new Attribute_values(1));
+		attrs[2].values.elements[0] = new Asn1OctetString(messageDigest);
+		
+		return new SignedAttributes(attrs);
+	}
+	
+	/**
+	 * Кодировка аттрибутов для подписи: SET OF Attribute (а не [0] IMPLICIT, как в SignerInfo).
+	 */
+	private static byte[] encodeSignedAttributes(SignedAttributes signedAttrs) throws Asn1Exception {
+		final Asn1BerEncodeBuffer encBufSignedAttr = new Asn1BerEncodeBuffer();
+		signedAttrs.encode(encBufSignedAttr);
+		return encBufSignedAttr.getMsgCopy();
+	}
+	
+	/**
+	 * SignerInfo подписчика (sid - IssuerAndSerialNumber).
+	 * @param sig - подписчик
+	 * @param signedAttrs - аттрибуты подписи или null
+	 * @param sign - значение подписи
+	 */
+	private SignerInfo createSignerInfo(Signer sig, SignedAttributes signedAttrs, byte[] sign) throws Exception {
+		final SignerInfo signerInfo = new SignerInfo();
+		signerInfo.version = new CMSVersion(1);
+		signerInfo.sid = new SignerIdentifier();
+		
+		final byte[] encodedName = sig.getCert().getIssuerX500Principal().getEncoded();
+		final Asn1BerDecodeBuffer nameBuf = new Asn1BerDecodeBuffer(encodedName);
+		final Name name = new Name();
+		name.decode(nameBuf);
+		
+		final CertificateSerialNumber num = new CertificateSerialNumber(sig.getCert().getSerialNumber());
+		signerInfo.sid.set_issuerAndSerialNumber(new IssuerAndSerialNumber(name, num));
+		signerInfo.digestAlgorithm = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
+		signerInfo.digestAlgorithm.parameters = new Asn1Null();
+		signerInfo.signedAttrs = signedAttrs;
+		signerInfo.signatureAlgorithm = new SignatureAlgorithmIdentifier(new OID(JCP.GOST_EL_KEY_OID).value);
+		signerInfo.signatureAlgorithm.parameters = new Asn1Null();
+		signerInfo.signature = new SignatureValue(sign);
+		return signerInfo;
+	}
 
+	/**
+	 * @param data - содержимое или null (отсоединенная подпись, eContent отсутствует)
+	 */
 	private EncapsulatedContentInfo createEncapsulatedContentInfo(byte[] data) {
-		return new EncapsulatedContentInfo(new Asn1ObjectIdentifier(new OID(ENCAP_CONTENT_INDO_OID).value), new Asn1OctetString(data));
+		return new EncapsulatedContentInfo(new Asn1ObjectIdentifier(new OID(ENCAP_CONTENT_INDO_OID).value), data != null ? new Asn1OctetString(data) : null);
 	}
 
 	/**
@@ -515,11 +886,99 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	    dbuf.reset();
 	    final EnvelopedData cms = (EnvelopedData) all.content;
 	    
-	    RecipientInfo[] recipientInfos = cms.recipientInfos.elements;
+	    final Cipher cipher = initContentDecryption(cms.recipientInfos.elements, cms.encryptedContentInfo.contentEncryptionAlgorithm);
 	    
+	    // зашифрованная нагрузка
+	    final byte[] encryptedData = cms.encryptedContentInfo.encryptedContent.value;
+	    return cipher.doFinal(encryptedData, 0, encryptedData.length);
+	}
+	
+	/**
+	 * Потоковое расшифрование. Из сообщения целиком читаются только заголовок, RecipientInfos и параметры алгоритма;
+	 * encryptedContent (примитивный или составной, в том числе с неопределенной длиной) расшифровывается фрагментами
+	 * по мере чтения, поэтому память не зависит от размера данных. Сообщение принимается в DER/BER (не BASE64). Потоки не закрываются.
+	 * @param in - CMS-сообщение (ContentInfo с EnvelopedData)
+	 * @param out - расшифрованные данные
+	 * @throws Exception
+	 */
+	public void decrypt(InputStream in, OutputStream out) throws Exception {
+		final CmsStreams.Reader reader = new CmsStreams.Reader(in, "EnvelopedData");
+		
+		// ContentInfo
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		reader.readHeader(CmsStreams.TAG_OBJECT_IDENTIFIER);
+		final Asn1ObjectIdentifier contentType = new Asn1ObjectIdentifier();
+		contentType.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		if (!new OID(ENVELOPED_DATA_OID).eq(contentType.value)) {
+			throw new Exception("Not supported contentType. EnvelopedData supported only. OID = " + ENVELOPED_DATA_OID);
+		}
+		reader.readHeader(CmsStreams.TAG_CONTEXT_0);
+		
+		// EnvelopedData: version, originatorInfo (пропускается), recipientInfos
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		reader.readHeader(CmsStreams.TAG_INTEGER);
+		reader.skipElement();
+		reader.readHeader(-1);
+		if (reader.getTag() == CmsStreams.TAG_CONTEXT_0) {
+			reader.skipElement();
+			reader.readHeader(-1);
+		}
+		reader.expect(CmsStreams.TAG_SET);
+		final RecipientInfos recipientInfos = new RecipientInfos();
+		recipientInfos.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		
+		// EncryptedContentInfo: contentType, contentEncryptionAlgorithm
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		reader.readHeader(CmsStreams.TAG_OBJECT_IDENTIFIER);
+		reader.skipElement();
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		final ContentEncryptionAlgorithmIdentifier contentEncryptionAlgorithm = new ContentEncryptionAlgorithmIdentifier();
+		contentEncryptionAlgorithm.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		
+		final Cipher cipher = initContentDecryption(recipientInfos.elements, contentEncryptionAlgorithm);
+		
+		// encryptedContent [0] IMPLICIT
+		reader.readHeader(-1);
+		if (reader.getTag() != CmsStreams.TAG_CONTEXT_0 && reader.getTag() != CmsStreams.TAG_CONTEXT_0_PRIMITIVE) {
+			throw new Exception("No encrypted content in EnvelopedData");
+		}
+		final InputStream encryptedContent = reader.openOctetString();
+		final byte[] encrypted = new byte[CmsStreams.DEFAULT_CHUNK_SIZE];
+		byte[] plain = new byte[cipher.getOutputSize(encrypted.length)];
+		long total = 0;
+		int n;
+		while ((n = encryptedContent.read(encrypted)) != -1) {
+			// выход update зависит от данных, оставшихся в шифре от прошлых вызовов: размер проверяется на каждом фрагменте
+			final int outputSize = cipher.getOutputSize(n);
+			if (plain.length < outputSize) {
+				plain = new byte[outputSize];
+			}
+			final int len = cipher.update(encrypted, 0, n, plain, 0);
+			out.write(plain, 0, len);
+			total += n;
+		}
+		final byte[] last = cipher.doFinal();
+		if (last != null) {
+			out.write(last);
+		}
+		out.flush();
+		
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Decrypted " + total + " bytes");
+		}
+	}
+	
+	/**
+	 * Поиск подходящего адресата (KeyTransRecipientInfo с ключом в хранилище), расшифрование симметричного ключа
+	 * и инициализация шифра для расшифрования содержимого.
+	 * @param recipientInfos - RecipientInfos сообщения
+	 * @param contentEncryptionAlgorithm - алгоритм и параметры (IV) зашифрования содержимого
+	 * @return Cipher в режиме DECRYPT_MODE
+	 * @throws GeneralSecurityException - нет ни одного подходящего адресата
+	 */
+	private Cipher initContentDecryption(RecipientInfo[] recipientInfos, ContentEncryptionAlgorithmIdentifier contentEncryptionAlgorithm) throws Exception {
 	    // Вращаем получателей
 	    for (RecipientInfo recipientInfo : recipientInfos) {
-	    	
 	    	KeyTransRecipientInfo keytrans = new KeyTransRecipientInfo();
 		    
 	    	if (recipientInfo.getChoiceID() == RecipientInfo._KTRI) {
@@ -547,7 +1006,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		    
 		    // разбор параметров ключа
 		    final Asn1BerEncodeBuffer ebuf = new Asn1BerEncodeBuffer();
-		    dbuf = new Asn1BerDecodeBuffer(keytrans.encryptedKey.value);
+		    final Asn1BerDecodeBuffer dbuf = new Asn1BerDecodeBuffer(keytrans.encryptedKey.value);
 		    
 		    final GostR3410_KeyTransport encrKey = new GostR3410_KeyTransport();
 		    encrKey.decode(dbuf);
@@ -564,13 +1023,10 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		    ebuf.reset();
 		    
 		    final byte[] sv = encrKey.transportParameters.ukm.value;
-		    final Gost28147_89_Parameters params = (Gost28147_89_Parameters) cms.encryptedContentInfo.contentEncryptionAlgorithm.parameters;
+		    final Gost28147_89_Parameters params = (Gost28147_89_Parameters) contentEncryptionAlgorithm.parameters;
 		    final byte[] iv = params.iv.value;
 		    final OID cipherOID = new OID(params.encryptionParamSet.value);
 		    
-		    // зашифрованная нагрузка
-		    final byte[] encryptedData = cms.encryptedContentInfo.encryptedContent.value;
-		    
 		    //отправитель - открытый ключ из cms
 		    final X509EncodedKeySpec pspec = new X509EncodedKeySpec(encodedPub);
 		    final KeyFactory kf = KeyFactory.getInstance(JCP.GOST_DH_NAME);
@@ -590,8 +1046,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		    // Расшифрование текста на симметричном ключе.
 		    final GostCipherSpec spec = new GostCipherSpec(iv, cipherOID);
 		    cipher.init(Cipher.DECRYPT_MODE, simmKey, spec, null); 
-		    byte[] result = cipher.doFinal(encryptedData, 0, encryptedData.length);
-		    return result;
+		    return cipher;
 	    }
 		throw new GeneralSecurityException("Decription failed. No one suitable recipient.");
 	}
@@ -606,8 +1061,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		String res = null;
 		if (signerIdentifier.getChoiceID() == SignerIdentifier._ISSUERANDSERIALNUMBER) {
 			IssuerAndSerialNumber issuerAndSerialNumber = (IssuerAndSerialNumber) signerIdentifier.getElement();
-			BigInteger serialNumber = issuerAndSerialNumber.serialNumber.value;
-			res = lookupKeyStoreBySerialNumber(serialNumber);
+			res = lookupAlias(issuerAndSerialNumber);
 			
 		} else if (signerIdentifier.getChoiceID() == SignerIdentifier._SUBJECTKEYIDENTIFIER) {
 			SubjectKeyIdentifier subjectKeyIdentifier = (SubjectKeyIdentifier) signerIdentifier.getElement();
@@ -632,8 +1086,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		String res = null;
 		if (recipientIdentifier.getChoiceID() == RecipientIdentifier._ISSUERANDSERIALNUMBER) {
 			IssuerAndSerialNumber issuerAndSerialNumber = (IssuerAndSerialNumber) recipientIdentifier.getElement();
-			BigInteger serialNumber = issuerAndSerialNumber.serialNumber.value;
-			res = lookupKeyStoreBySerialNumber(serialNumber);
+			res = lookupAlias(issuerAndSerialNumber);
 			
 		} else if (recipientIdentifier.getChoiceID() == RecipientIdentifier._SUBJECTKEYIDENTIFIER) {
 			SubjectKeyIdentifier subjectKeyIdentifier = (SubjectKeyIdentifier) recipientIdentifier.getElement();
@@ -647,6 +1100,27 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		return res;
 	}
 
+	/**
+	 * Поиск алиаса в хранилище по IssuerAndSerialNumber. Если по паре (издатель, серийный номер) сертификат не найден,
+	 * то поиск повторяется только по серийному номеру.
+	 * @param issuerAndSerialNumber
+	 * @return null - если сертификат не найден в хранилище
+	 * @throws KeyStoreException
+	 */
+	private String lookupAlias(IssuerAndSerialNumber issuerAndSerialNumber) throws KeyStoreException {
+		BigInteger serialNumber = issuerAndSerialNumber.serialNumber.value;
+		String res = null;
+		try {
+			res = lookupKeyStoreByIssuerAndSerialNumber(encodeX500Principal(issuerAndSerialNumber.issuer), serialNumber);
+		} catch (Asn1Exception e) {
+			LOG.fine("Issuer name can't be encoded: " + e.getMessage());
+		}
+		if (res == null) {
+			res = lookupKeyStoreBySerialNumber(serialNumber);
+		}
+		return res;
+	}
+
 	public byte[] detach(byte[] signed) throws Exception {
 		signed = forceBASE64(signed);
 		final Asn1BerDecodeBuffer asnBuf = new Asn1BerDecodeBuffer(signed);
@@ -668,13 +1142,7 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 	}
 	
 	public void verify(byte[] signed) throws Exception {
-		signed = forceBASE64(signed);
-		
-		final Asn1BerDecodeBuffer asnBuf = new Asn1BerDecodeBuffer(signed);
-		final ContentInfo all = new ContentInfo();
-		all.decode(asnBuf);
-		
-		final SignedData signedData = (SignedData) all.content;
+		final SignedData signedData = decodeSignedData(signed);
 		
 		final OID eContTypeOID = new OID(signedData.encapContentInfo.eContentType.value);
 		
@@ -685,12 +1153,181 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		else 
 			throw new Exception("No content for verify");
 		
+		verifySignedData(signedData.digestAlgorithms, eContTypeOID, decodeCertificates(signedData), signedData.signerInfos.elements, payloadBytes, null);
+	}
+	
+	/**
+	 * Проверка отсоединенной подписи: содержимое хэшируется из потока (в память не загружается),
+	 * подписи проверяются по хэшу (с аттрибутами - по их кодировке и message-digest).
+	 * @param signature - CMS-сообщение без eContent (DER или BASE64)
+	 * @param content - подписанные данные (поток не закрывается)
+	 * @throws Exception - подпись или сертификат не прошли проверку
+	 */
+	public void verifyDetached(byte[] signature, InputStream content) throws Exception {
+		if (content == null) {
+			throw new NullPointerException("Detached content is null");
+		}
+		verifyDigest(signature, DigestService.digest(JCP.GOST_DIGEST_NAME, content));
+	}
+	
+	/**
+	 * Проверка отсоединенной подписи по хэшу, вычисленному вызывающей стороной. Подпись с аттрибутами проверяется
+	 * сверкой message-digest и подписи аттрибутов, без аттрибутов - подписью самого хэша.
+	 * @param signature - CMS-сообщение без eContent (DER или BASE64)
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого (32 байта)
+	 * @throws Exception - подпись или сертификат не прошли проверку
+	 */
+	@Override
+	public void verifyDigest(byte[] signature, byte[] messageDigest) throws Exception {
+		checkDigestLength(messageDigest);
+		final SignedData signedData = decodeSignedData(signature);
+		if (signedData.encapContentInfo.eContent != null) {
+			throw new Exception("Detached signature expected, but SignedData contains eContent");
+		}
+		
+		verifySignedData(signedData.digestAlgorithms, new OID(signedData.encapContentInfo.eContentType.value), decodeCertificates(signedData), signedData.signerInfos.elements, null, messageDigest);
+	}
+	
+	/**
+	 * Разбор ContentInfo с SignedData (DER или BASE64).
+	 */
+	private SignedData decodeSignedData(byte[] signed) throws Exception {
+		signed = forceBASE64(signed);
+		
+		final Asn1BerDecodeBuffer asnBuf = new Asn1BerDecodeBuffer(signed);
+		final ContentInfo all = new ContentInfo();
+		all.decode(asnBuf);
+		
+		if (!new OID(SIGNED_DATA_OID).eq(all.contentType.value))
+			throw new Exception("Not supported contentType. SignedData supported only. OID = " + SIGNED_DATA_OID);
+		
+		return (SignedData) all.content;
+	}
+	
+	/**
+	 * Сертификаты из SignedData (пустой список, если их нет).
+	 */
+	private static List<X509Certificate> decodeCertificates(SignedData signedData) throws Exception {
+		List<X509Certificate> signedDataCertificatesList = new ArrayList<X509Certificate>();
+		if (signedData.certificates == null) {
+			return signedDataCertificatesList;
+		}
+		final CertificateFactory cf = CertificateFactory.getInstance("X.509");
+		for (int i = 0; i < signedData.certificates.elements.length; i++) {
+			final Asn1BerEncodeBuffer encBuf = new Asn1BerEncodeBuffer();
+			signedData.certificates.elements[i].encode(encBuf);
+
+			final X509Certificate cert = (X509Certificate) cf.generateCertificate(encBuf.getInputStream());
+			signedDataCertificatesList.add(cert);
+		}
+		return signedDataCertificatesList;
+	}
+	
+	/**
+	 * Потоковая проверка присоединенной подписи. Содержимое (eContent, в том числе составное с неопределенной длиной) хэшируется
+	 * фрагментами по мере чтения и в память не загружается; целиком читаются только сертификаты и SignerInfos.
+	 * Подпись без аттрибутов (signedAttrs) проверяется по хэшу содержимого, с аттрибутами - по их кодировке (message-digest сверяется
+	 * с тем же хэшем). Сообщение принимается в DER/BER (не BASE64). Поток не закрывается.
+	 * @param signed - CMS-сообщение (ContentInfo с SignedData)
+	 * @throws Exception - подпись или сертификат не прошли проверку
+	 */
+	public void verify(InputStream signed) throws Exception {
+		final CmsStreams.Reader reader = new CmsStreams.Reader(signed, "SignedData");
+		
+		// ContentInfo
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		reader.readHeader(CmsStreams.TAG_OBJECT_IDENTIFIER);
+		final Asn1ObjectIdentifier contentType = new Asn1ObjectIdentifier();
+		contentType.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		if (!new OID(SIGNED_DATA_OID).eq(contentType.value)) {
+			throw new Exception("Not supported contentType. SignedData supported only. OID = " + SIGNED_DATA_OID);
+		}
+		reader.readHeader(CmsStreams.TAG_CONTEXT_0);
+		
+		// SignedData: version, digestAlgorithms
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		reader.readHeader(CmsStreams.TAG_INTEGER);
+		reader.skipElement();
+		reader.readHeader(CmsStreams.TAG_SET);
+		final DigestAlgorithmIdentifiers digestAlgorithms = new DigestAlgorithmIdentifiers();
+		digestAlgorithms.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		
+		// EncapsulatedContentInfo: eContentType, eContent [0] EXPLICIT OCTET STRING
+		reader.readHeader(CmsStreams.TAG_SEQUENCE);
+		final boolean indefiniteContentInfo = reader.isIndefiniteLength();
+		reader.readHeader(CmsStreams.TAG_OBJECT_IDENTIFIER);
+		final Asn1ObjectIdentifier eContentType = new Asn1ObjectIdentifier();
+		eContentType.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		reader.readHeader(-1);
+		if (reader.getTag() != CmsStreams.TAG_CONTEXT_0) {
+			throw new Exception("No content for verify");
+		}
+		final boolean indefiniteContent = reader.isIndefiniteLength();
+		reader.readHeader(-1);
+		if (reader.getTag() != CmsStreams.TAG_OCTET_STRING && reader.getTag() != CmsStreams.TAG_CONSTRUCTED_OCTET_STRING) {
+			throw new Exception("eContent is not an OCTET STRING");
+		}
+		final InputStream eContent = reader.openOctetString();
+		final byte[] payloadDigest = DigestService.digest(JCP.GOST_DIGEST_NAME, eContent);
+		eContent.close();
+		
+		// конец [0] и EncapsulatedContentInfo (только для открытых с неопределенной длиной), затем certificates [0], crls [1], signerInfos
+		if (indefiniteContent) {
+			reader.readEndOfContents();
+		}
+		if (indefiniteContentInfo) {
+			reader.readEndOfContents();
+		}
+		reader.readHeader(-1);
+		
+		final List<X509Certificate> signedDataCertificatesList = new ArrayList<X509Certificate>();
+		if (reader.getTag() == CmsStreams.TAG_CONTEXT_0) {
+			final CertificateFactory cf = CertificateFactory.getInstance("X.509");
+			final byte[] certificates = reader.readEncoded();
+			final CmsStreams.Reader certificatesReader = new CmsStreams.Reader(new ByteArrayInputStream(certificates), "SignedData certificates");
+			certificatesReader.readHeader(CmsStreams.TAG_CONTEXT_0);
+			while (certificatesReader.getPosition() < certificates.length) {
+				certificatesReader.readHeader(-1);
+				if (certificatesReader.isEndOfContents()) {
+					break;
+				}
+				// тег запоминается до чтения: после элемента с неопределенной длиной текущим становится его маркер конца
+				final int certificateTag = certificatesReader.getTag();
+				final byte[] encoded = certificatesReader.readEncoded();
+				if (certificateTag == CmsStreams.TAG_SEQUENCE) { // CertificateChoices: только certificate
+					signedDataCertificatesList.add((X509Certificate) cf.generateCertificate(new ByteArrayInputStream(encoded)));
+				}
+			}
+			reader.readHeader(-1);
+		}
+		if (reader.getTag() == CmsStreams.TAG_CONTEXT_1) { // crls не используются
+			reader.skipElement();
+			reader.readHeader(-1);
+		}
+		reader.expect(CmsStreams.TAG_SET);
+		final SignerInfos signerInfos = new SignerInfos();
+		signerInfos.decode(new Asn1BerDecodeBuffer(reader.readEncoded()));
+		
+		verifySignedData(digestAlgorithms, new OID(eContentType.value), signedDataCertificatesList, signerInfos.elements, null, payloadDigest);
+	}
+	
+	/**
+	 * Проверка подписей SignedData (достаточно одной верной подписи) и сертификатов подписчиков.
+	 * Содержимое передается либо целиком (payloadBytes), либо своим хэшем ГОСТ Р 34.11 (payloadDigest).
+	 * @param digestAlgorithms - digestAlgorithms из SignedData
+	 * @param eContTypeOID - eContentType
+	 * @param signedDataCertificatesList - сертификаты из SignedData
+	 * @param signerInfos - SignerInfos
+	 * @param payloadBytes - содержимое или null
+	 * @param payloadDigest - хэш содержимого или null (если передано содержимое)
+	 */
+	private void verifySignedData(DigestAlgorithmIdentifiers digestAlgorithms, OID eContTypeOID, List<X509Certificate> signedDataCertificatesList, SignerInfo[] signerInfos, byte[] payloadBytes, byte[] payloadDigest) throws Exception {
 		// digestAlgorithms - scanning... нужно найти хотябы одину подходящую подпись для проверки
 		OID gostDigestOid = null;
 		final DigestAlgorithmIdentifier digestAlgorithmIdentifier = new DigestAlgorithmIdentifier(new OID(JCP.GOST_DIGEST_OID).value);
-		for (int i = 0; i < signedData.digestAlgorithms.elements.length; i++) {
-			if (signedData.digestAlgorithms.elements[i].algorithm.equals(digestAlgorithmIdentifier.algorithm)) {
-				gostDigestOid = new OID(signedData.digestAlgorithms.elements[i].algorithm.value);
+		for (int i = 0; i < digestAlgorithms.elements.length; i++) {
+			if (digestAlgorithms.elements[i].algorithm.equals(digestAlgorithmIdentifier.algorithm)) {
+				gostDigestOid = new OID(digestAlgorithms.elements[i].algorithm.value);
 				break;
 			}
 		}
@@ -700,28 +1337,20 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		 * algorithm that is not included in this set.  The message digesting
 		 * process is described in Section 5.4.
 		 */
-		if (gostDigestOid == null && signedData.digestAlgorithms.elements != null && signedData.digestAlgorithms.elements.length > 0) {
+		if (gostDigestOid == null && digestAlgorithms.elements != null && digestAlgorithms.elements.length > 0) {
 			throw new DigestException(JCP.GOST_DIGEST_OID + " (GOST_DIGEST_OID) not found in SignedData");
 		}
 		
-		// certificates
-		List<X509Certificate> signedDataCertificatesList = new ArrayList<X509Certificate>();
-		for (int i = 0; i < signedData.certificates.elements.length; i++) {
-			final Asn1BerEncodeBuffer encBuf = new Asn1BerEncodeBuffer();
-			signedData.certificates.elements[i].encode(encBuf);
-
-			final CertificateFactory cf = CertificateFactory.getInstance("X.509");
-			final X509Certificate cert = (X509Certificate) cf.generateCertificate(encBuf.getInputStream());
-			signedDataCertificatesList.add(cert);
-		}
-		
 		// Сертификаты из SignedData
 		CertStore signedDataCertificates = PKIXUtils.createCertStoreFromList(signedDataCertificatesList);
 		List<CertStore> certificates = new ArrayList<CertStore>();
 		certificates.add(signedDataCertificates);
 		
 		// Вращаем подписчиков
-		SignerInfo[] signerInfos = signedData.signerInfos.elements;
+		if (signerInfos.length > 1 && isFlagNotSet(OPT_DISABLE_CERT_VALIDATION) && isFlagNotSet(OPT_STORED_CERT_ONLY)) {
+			// статусы OCSP всех подписантов одним запросом (если подключен клиент OCSP)
+			CertificateVerifier.prefetchOcspStatuses(signedDataCertificatesList, getKeyStore());
+		}
 		
 		boolean signatureValidated = false; // читаем, что достаточно одной верной подписи
 		
@@ -824,9 +1453,9 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		        final byte[] md = hash.value;
 
 		        //вычисление messageDigest
-		        final byte[] dm = digestm(payloadBytes, JCP.GOST_DIGEST_NAME);
+		        final byte[] dm = payloadDigest != null ? payloadDigest : digestm(payloadBytes, JCP.GOST_DIGEST_NAME);
 
-		        if (!Array.toHexString(dm).equals(Array.toHexString(md))) {
+		        if (!DigestService.isEqual(dm, md)) {
 		            throw new Exception("Message-digest attribute verify failed");
 		        }
 
@@ -856,8 +1485,12 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 			// собственно сама подпись
 			final byte[] sign = signerInfo.signature.value;
 			
-			// ... и проверка подписи
-			signatureValidated = verifySignature(cert, sign, data);
+			// ... и проверка подписи (без аттрибутов и без самих данных - по их хэшу)
+			if (data == null) {
+				signatureValidated = verifyDigestSignature(cert, sign, payloadDigest);
+			} else {
+				signatureValidated = verifySignature(cert, sign, data);
+			}
 			String resMsg = "Math verification result: "+ signerIdentifierToString(sid) + " -> " + cert.getSubjectDN() + " -> valid=" + signatureValidated;
 			
 			if (LOG.isLoggable(Level.FINE)) {
@@ -895,13 +1528,15 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		return x500Principal;
 	}
 	
+	/**
+	 * Хэш данных (одним вызовом MessageDigest.update, экземпляр из пула потока - см. {@link DigestService}).
+	 * @param bytes - данные
+	 * @param digestAlgorithmName - алгоритм
+	 * @return хэш
+	 * @throws Exception
+	 */
 	public static byte[] digestm(byte[] bytes, String digestAlgorithmName) throws Exception {
-	    //calculation messageDigest
-	    final ByteArrayInputStream stream = new ByteArrayInputStream(bytes);
-	    final MessageDigest digest = MessageDigest.getInstance(digestAlgorithmName);
-	    final DigestInputStream digestStream = new DigestInputStream(stream, digest);
-	    while (digestStream.available() != 0) digestStream.read();
-	    return digest.digest();
+	    return DigestService.digest(digestAlgorithmName, bytes);
 	}
 	
 	/**
@@ -920,5 +1555,19 @@ public class CryptoProCryptoUtils extends CryptoUtils {
 		signature.update(text);
 		return signature.verify(sign);
 	}
+	
+	/**
+	 * Математическая проверка подписи по хэшу ГОСТ Р 34.11 подписанных данных (без самих данных).
+	 * @param cert - сертификат используемый для проверки 
+	 * @param sign - подпись
+	 * @param digest - хэш данных
+	 * @return true - подпись верна, false - подпись не прошла проверку
+	 */
+	private static boolean verifyDigestSignature(X509Certificate cert, byte[] sign, byte[] digest) throws NoSuchAlgorithmException, InvalidKeyException, SignatureException {
+		final Signature signature = Signature.getInstance(JCP.RAW_GOST_EL_SIGN_NAME);
+		signature.initVerify(cert);
+		signature.update(digest);
+		return signature.verify(sign);
+	}
 
 }
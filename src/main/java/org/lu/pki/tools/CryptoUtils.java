@@ -1,6 +1,7 @@
 package org.lu.pki.tools;
 
 import java.io.FileOutputStream;
+import java.io.InputStream;
 import java.math.BigInteger;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.KeyStore;
@@ -14,9 +15,7 @@ import java.security.cert.CertStoreException;
 import java.security.cert.X509CertSelector;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.logging.Logger;
@@ -54,6 +53,13 @@ public abstract class CryptoUtils {
 	
 	private KeyStore keyStore = null;
 	
+	/**
+	 * Версия индекса хранилища, для которой заполнен кэш закрытых ключей (сам индекс хранится в {@link KeyStoreIndex}).
+	 */
+	private volatile long keyStoreIndexVersion = 0;
+	
+	private volatile PrivateKeyCache privateKeyCache = new PrivateKeyCache(PrivateKeyCache.DEFAULT_MAX_SIZE, 0);
+	
 	private int verificationOptions = 0;
 	
 	public final static int OPT_ALL_FLAGS_DOWN  = 0;
@@ -106,6 +112,22 @@ public abstract class CryptoUtils {
 	
 	public abstract byte[] signAttached(byte[] data) throws Exception;
 	
+	/**
+	 * Отсоединенная подпись: SignedData без содержимого (eContent). Данные читаются из потока и в сообщение не копируются.
+	 * @param content - подписываемые данные (поток не закрывается)
+	 * @return CMS-сообщение (ContentInfo с SignedData)
+	 * @throws Exception
+	 */
+	public abstract byte[] signDetached(InputStream content) throws Exception;
+	
+	/**
+	 * Проверка отсоединенной подписи по данным из потока.
+	 * @param signature - CMS-сообщение без содержимого (DER или BASE64)
+	 * @param content - подписанные данные (поток не закрывается)
+	 * @throws Exception - подпись или сертификат не прошли проверку
+	 */
+	public abstract void verifyDetached(byte[] signature, InputStream content) throws Exception;
+	
 	/**
 	 * Добавление списка получателей сообщения. Используется в RecipientInfo и при генерации ключа сограсования.
 	 * @param recipientsAliases - массив алиасов сертификатов получателей.
@@ -174,11 +196,61 @@ public abstract class CryptoUtils {
 		return cert;
 	}
 	
+	/**
+	 * Получение закрытого ключа. Ключ достается из хранилища только при первом обращении, далее - из кэша (если он включен).
+	 * @param alias
+	 * @param password
+	 * @return null - если ключа по алиасу нет.
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws UnrecoverableKeyException
+	 */
 	protected PrivateKey getKeyFromStore(String alias, char[] password) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
 		if (alias == null) {
 			return null;
-		} else {
-			return (PrivateKey) getKeyStore().getKey(alias, password);
+		}
+		final PrivateKeyCache cache = privateKeyCache;
+		PrivateKey key = cache != null ? cache.get(alias) : null;
+		if (key == null) {
+			key = (PrivateKey) getKeyStore().getKey(alias, password);
+			if (key != null && cache != null) {
+				cache.put(alias, key);
+			}
+		}
+		return key;
+	}
+	
+	/**
+	 * Настройка кэша закрытых ключей.
+	 * @param maxSize - максимальное количество ключей в кэше. 0 - кэш отключен.
+	 * @param idleTimeoutMillis - время простоя, после которого ключ вытесняется из кэша. 0 - без ограничения.
+	 */
+	public final void setPrivateKeyCache(int maxSize, long idleTimeoutMillis) {
+		PrivateKeyCache old = privateKeyCache;
+		privateKeyCache = maxSize > 0 ? new PrivateKeyCache(maxSize, idleTimeoutMillis) : null;
+		if (old != null) {
+			old.invalidateAll();
+		}
+	}
+	
+	/**
+	 * Удаление ключа из кэша (например, после смены ключа в хранилище).
+	 * @param alias
+	 */
+	public final void invalidatePrivateKey(String alias) {
+		final PrivateKeyCache cache = privateKeyCache;
+		if (cache != null) {
+			cache.invalidate(alias);
+		}
+	}
+	
+	/**
+	 * Очистка кэша закрытых ключей.
+	 */
+	public final void invalidatePrivateKeys() {
+		final PrivateKeyCache cache = privateKeyCache;
+		if (cache != null) {
+			cache.invalidateAll();
 		}
 	}
 
@@ -192,11 +264,14 @@ public abstract class CryptoUtils {
 	
 	/**
 	 * Установка хранилища сертификатов. Для инстанса выполняется только одина раз.
+	 * Здесь же строится индекс сертификатов и ключей хранилища (см. KeyStoreIndex).
 	 * @param keyStore
+	 * @throws KeyStoreException
 	 */
-	protected final void setKeyStore(KeyStore keyStore) {
+	protected final void setKeyStore(KeyStore keyStore) throws KeyStoreException {
 		if (this.keyStore == null) {
 			this.keyStore = keyStore;
+			this.keyStoreIndexVersion = KeyStoreIndex.rebuild(keyStore).getVersion();
 		} else {
 			String msg = "KeyStore already set";
 			LOG.severe(msg);
@@ -204,6 +279,30 @@ public abstract class CryptoUtils {
 		}
 	}
 	
+	/**
+	 * Получение индекса хранилища (без обращения к самому хранилищу, см. {@link KeyStoreIndex#of(KeyStore)}).
+	 * Если индекс был перестроен, кэш закрытых ключей очищается.
+	 * @return KeyStoreIndex
+	 * @throws KeyStoreException
+	 */
+	protected final KeyStoreIndex getKeyStoreIndex() throws KeyStoreException {
+		KeyStoreIndex index = KeyStoreIndex.of(getKeyStore());
+		if (index.getVersion() != keyStoreIndexVersion) {
+			keyStoreIndexVersion = index.getVersion();
+			invalidatePrivateKeys();
+		}
+		return index;
+	}
+	
+	/**
+	 * Принудительное перестроение индекса хранилища. Нужно после замены записи хранилища, не изменившей количество записей.
+	 * @throws KeyStoreException
+	 */
+	public final void refreshKeyStoreIndex() throws KeyStoreException {
+		keyStoreIndexVersion = KeyStoreIndex.rebuild(getKeyStore()).getVersion();
+		invalidatePrivateKeys();
+	}
+	
 	/**
 	 * Вызгузка всех сертификатов в хранилище как CertStore
 	 * @return
@@ -212,13 +311,7 @@ public abstract class CryptoUtils {
 	 * @throws NoSuchAlgorithmException
 	 */
 	protected CertStore getAllCertificateFromStore() throws KeyStoreException, InvalidAlgorithmParameterException, NoSuchAlgorithmException {
-		List<X509Certificate> certs = new ArrayList<X509Certificate>();
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cert = getCertificateFromStore(currentAlias);
-			certs.add(cert);
-		}
+		List<X509Certificate> certs = new ArrayList<X509Certificate>(getKeyStoreIndex().getCertificates());
 		return PKIXUtils.createCertStoreFromList(certs);
 	}
 	
@@ -228,12 +321,7 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	public List<String> getAllAliases() throws KeyStoreException {
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		List<String> listAliases = new ArrayList<String>();
-		while(aliasesEnum.hasMoreElements()) {
-			listAliases.add(aliasesEnum.nextElement());
-		}
-		return listAliases;
+		return new ArrayList<String>(getKeyStoreIndex().getAliases());
 	}
 	
 	/**
@@ -242,14 +330,7 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	public List<String> getAllKeyAliases() throws KeyStoreException {
-		List<String> allAliases = getAllAliases();
-		List<String> onlyKeyAliases = new ArrayList<String>();
-		for (String allAelement : allAliases) {
-			if (getKeyStore().isKeyEntry(allAelement)) {
-				onlyKeyAliases.add(allAelement);
-			}
-		}
-		return onlyKeyAliases;
+		return new ArrayList<String>(getKeyStoreIndex().getKeyAliases());
 	}
 	
 	/**
@@ -259,17 +340,28 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	protected final String lookupKeyStoreBySerialNumber(BigInteger serialNumber) throws KeyStoreException {
-		String res = null;
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cer = getCertificateFromStore(currentAlias);
-			if (cer.getSerialNumber().equals(serialNumber) /*&& getKeyStore().isKeyEntry(currentAlias)*/) { // Мы должны получать все алиасы, а не только для ключей
-				res = currentAlias;
-				break;
-			}
-		}
-		return res;
+		return getKeyStoreIndex().lookupBySerialNumber(serialNumber); // Мы должны получать все алиасы, а не только для ключей
+	}
+	
+	/**
+	 * Поиск в хранилище KeyStore алиаса сертификата по издателю и серийному номеру
+	 * @param issuer
+	 * @param serialNumber
+	 * @return null - если сертификат не найден.
+	 * @throws KeyStoreException
+	 */
+	protected final String lookupKeyStoreByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) throws KeyStoreException {
+		return getKeyStoreIndex().lookupByIssuerAndSerialNumber(issuer, serialNumber);
+	}
+	
+	/**
+	 * Поиск в хранилище KeyStore алиаса сертификата (по SHA-256 отпечатку)
+	 * @param cert
+	 * @return null - если сертификат не найден.
+	 * @throws KeyStoreException
+	 */
+	protected final String lookupKeyStoreByCertificate(X509Certificate cert) throws KeyStoreException {
+		return getKeyStoreIndex().lookupAlias(cert);
 	}
 	
 	/**
@@ -279,18 +371,7 @@ public abstract class CryptoUtils {
 	 * @throws KeyStoreException
 	 */
 	protected final String lookupKeyStoreBySubjectKeyIdentefer(byte[] ski) throws KeyStoreException {
-		String res = null;
-		Enumeration<String> aliasesEnum = getKeyStore().aliases();
-		while(aliasesEnum.hasMoreElements()) {
-			String currentAlias = aliasesEnum.nextElement();
-			X509Certificate cer = getCertificateFromStore(currentAlias);
-			byte[] currentSKI = cer.getExtensionValue(SUBJECT_KEY_IDENTEFER_OID);
-			if (Arrays.equals(ski, currentSKI) /*&& getKeyStore().isKeyEntry(currentAlias)*/) {
-				res = currentAlias;
-				break;
-			}
-		}
-		return res;
+		return getKeyStoreIndex().lookupBySubjectKeyIdentifier(ski);
 	}
 	
 	 /**
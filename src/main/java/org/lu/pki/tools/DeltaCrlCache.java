@@ -0,0 +1,253 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.cert.CRLException;
+import java.security.cert.CRLReason;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Кэш delta CRL (RFC 5280, 5.2.4) по адресу из расширения FreshestCRL.
+ * <br>Полный CRL загружается редко (до его nextUpdate он берется из {@link CrlCache} или {@link RevocationIndex}),
+ * delta CRL - часто, и состояние отзыва складывается из полного CRL и последнего delta CRL.</br>
+ * <br>Delta CRL принимаются в порядке номеров CRL: delta с меньшим номером, чем уже сохраненный (например, от отстающего зеркала),
+ * не заменяет более свежий. Delta CRL кумулятивен относительно своего базового CRL, поэтому более свежий delta заменяет предыдущий целиком.</br>
+ * В кэш помещаются только delta CRL с уже проверенной подписью.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class DeltaCrlCache {
+
+	private static final Logger LOG = Logger.getLogger(DeltaCrlCache.class.getName());
+
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	/**
+	 * Запись кэша: отозванные (и возвращенные removeFromCRL) серийные номера delta CRL и его номера.
+	 */
+	public static final class Entry {
+		private final String url;
+		private final X500Principal issuer;
+		private final X509Certificate issuerCert;
+		private final BigInteger baseCrlNumber;
+		private final BigInteger crlNumber;
+		private final Date thisUpdate;
+		private final Date nextUpdate;
+		private final Map<BigInteger, Boolean> revoked; // серийный номер -> отозван (false - removeFromCRL)
+
+		private Entry(String url, X509CRL delta, X509Certificate issuerCert, BigInteger baseCrlNumber, BigInteger crlNumber, Map<BigInteger, Boolean> revoked) {
+			this.url = url;
+			this.issuer = delta.getIssuerX500Principal();
+			this.issuerCert = issuerCert;
+			this.baseCrlNumber = baseCrlNumber;
+			this.crlNumber = crlNumber;
+			this.thisUpdate = delta.getThisUpdate();
+			this.nextUpdate = delta.getNextUpdate();
+			this.revoked = revoked;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public X500Principal getIssuer() {
+			return issuer;
+		}
+
+		/**
+		 * @return сертификат, которым была проверена подпись delta CRL.
+		 */
+		public X509Certificate getIssuerCert() {
+			return issuerCert;
+		}
+
+		/**
+		 * @return номер базового CRL (DeltaCRLIndicator)
+		 */
+		public BigInteger getBaseCrlNumber() {
+			return baseCrlNumber;
+		}
+
+		/**
+		 * @return номер delta CRL
+		 */
+		public BigInteger getCrlNumber() {
+			return crlNumber;
+		}
+
+		public Date getThisUpdate() {
+			return thisUpdate;
+		}
+
+		public Date getNextUpdate() {
+			return nextUpdate;
+		}
+
+		/**
+		 * @param now
+		 * @return true - если наступил nextUpdate и delta CRL нужно загрузить заново.
+		 */
+		public boolean isExpired(Date now) {
+			return nextUpdate == null || !now.before(nextUpdate);
+		}
+
+		/**
+		 * Применим ли delta CRL к полному CRL с заданным номером: базовый номер delta не больше номера полного CRL,
+		 * а номер delta больше него (RFC 5280, 5.2.4).
+		 * @param completeCrlNumber - номер полного CRL
+		 */
+		public boolean appliesTo(BigInteger completeCrlNumber) {
+			return completeCrlNumber != null && baseCrlNumber.compareTo(completeCrlNumber) <= 0 && crlNumber.compareTo(completeCrlNumber) > 0;
+		}
+
+		/**
+		 * Состояние отзыва по полному CRL и этому delta CRL.
+		 * @param serialNumber - серийный номер сертификата
+		 * @param revokedByBase - сертификат отозван по полному CRL
+		 * @return true, если сертификат отозван
+		 */
+		public boolean isRevoked(BigInteger serialNumber, boolean revokedByBase) {
+			Boolean state = revoked.get(serialNumber);
+			return state != null ? state.booleanValue() : revokedByBase;
+		}
+
+		/**
+		 * @return true, если сертификат указан в delta CRL как отозванный (без учета полного CRL)
+		 */
+		public boolean isListedAsRevoked(BigInteger serialNumber) {
+			return Boolean.TRUE.equals(revoked.get(serialNumber));
+		}
+
+		/**
+		 * @return количество записей delta CRL
+		 */
+		public int size() {
+			return revoked.size();
+		}
+
+		@Override
+		public String toString() {
+			return "DeltaCRL [" + url + ", number=" + crlNumber + ", base=" + baseCrlNumber + ", nextUpdate=" + nextUpdate + ", entries=" + revoked.size() + "]";
+		}
+	}
+
+	private final int maxEntries;
+
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true); // access-order -> LRU
+
+	/**
+	 * @param maxEntries - максимальное количество delta CRL в кэше.
+	 */
+	public DeltaCrlCache(int maxEntries) {
+		if (maxEntries < 1) {
+			throw new IllegalArgumentException("maxEntries must be positive: " + maxEntries);
+		}
+		this.maxEntries = maxEntries;
+	}
+
+	/**
+	 * @param url - адрес delta CRL
+	 * @param now - текущее время
+	 * @return запись или null, если delta CRL нет в кэше или наступил его nextUpdate.
+	 */
+	public synchronized Entry get(String url, Date now) {
+		Entry entry = entries.get(url);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.isExpired(now)) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Delta CRL " + url + " expired (next update " + entry.getNextUpdate() + ")");
+			}
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Запись кэша без проверки nextUpdate (сохраненная копия для условной загрузки, см. {@link RevocationHttpFetcher}).
+	 * @param url - адрес delta CRL
+	 * @return запись или null
+	 */
+	public synchronized Entry peek(String url) {
+		return entries.get(url);
+	}
+
+	/**
+	 * Помещение в кэш delta CRL с проверенной подписью. Если в кэше уже есть delta CRL того же издателя с большим номером, он остается.
+	 * @param url - адрес delta CRL
+	 * @param delta - delta CRL
+	 * @param issuerCert - сертификат, которым проверена подпись delta CRL
+	 * @return актуальная запись кэша
+	 * @throws CRLException - CRL не является delta CRL или у него нет номера
+	 * @throws IOException - расширения CRL повреждены
+	 */
+	public Entry merge(String url, X509CRL delta, X509Certificate issuerCert) throws CRLException, IOException {
+		BigInteger baseCrlNumber = PKIXUtils.getBaseCrlNumber(delta);
+		if (baseCrlNumber == null) {
+			throw new CRLException("CRL " + url + " is not a delta CRL");
+		}
+		BigInteger crlNumber = PKIXUtils.getCrlNumber(delta);
+		if (crlNumber == null) {
+			throw new CRLException("Delta CRL " + url + " has no CRL number");
+		}
+		Map<BigInteger, Boolean> revoked = new HashMap<BigInteger, Boolean>();
+		Set<? extends X509CRLEntry> crlEntries = delta.getRevokedCertificates();
+		if (crlEntries != null) {
+			for (X509CRLEntry crlEntry : crlEntries) {
+				revoked.put(crlEntry.getSerialNumber(), Boolean.valueOf(crlEntry.getRevocationReason() != CRLReason.REMOVE_FROM_CRL));
+			}
+		}
+		Entry entry = new Entry(url, delta, issuerCert, baseCrlNumber, crlNumber, Collections.unmodifiableMap(revoked));
+		synchronized (this) {
+			Entry current = entries.get(url);
+			if (current != null && current.issuer.equals(entry.issuer) && current.crlNumber.compareTo(crlNumber) > 0) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Delta CRL " + url + " number " + crlNumber + " is older than cached number " + current.crlNumber + " and ignored");
+				}
+				return current;
+			}
+			entries.put(url, entry);
+			while (entries.size() > maxEntries) {
+				String eldest = entries.keySet().iterator().next();
+				entries.remove(eldest);
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Delta CRL " + eldest + " evicted from cache");
+				}
+			}
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Delta CRL cached: " + entry);
+		}
+		return entry;
+	}
+
+	public synchronized void invalidate(String url) {
+		entries.remove(url);
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxEntries() {
+		return maxEntries;
+	}
+}
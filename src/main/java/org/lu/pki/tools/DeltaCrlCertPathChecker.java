@@ -0,0 +1,86 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Проверка сертификатов цепочки по delta CRL (FreshestCRL) при автоматической валидации CertPathValidator.
+ * Полный CRL проверяет встроенная проверка CRLDP (Sun), которая delta CRL не загружает.
+ * Этот checker отклоняет сертификаты, отозванные после выпуска полного CRL. Запись removeFromCRL в delta CRL
+ * не может отменить результат встроенной проверки, поэтому снятие приостановки учитывается только при ручной проверке.
+ * Недоступный delta CRL не является ошибкой (см. {@link CertificateVerifier#findDeltaCRL}).
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class DeltaCrlCertPathChecker extends PKIXCertPathChecker {
+
+	private static final Logger LOG = Logger.getLogger(DeltaCrlCertPathChecker.class.getName());
+
+	private final TrustSnapshot trustSnapshot;
+
+	private final EarliestNextUpdate nextUpdate = new EarliestNextUpdate();
+
+	/**
+	 * @param trustSnapshot - сертификаты для проверки подписи delta CRL
+	 */
+	public DeltaCrlCertPathChecker(TrustSnapshot trustSnapshot) {
+		this.trustSnapshot = trustSnapshot;
+	}
+
+	@Override
+	public void init(boolean forward) throws CertPathValidatorException {
+		// состояние между сертификатами не требуется
+	}
+
+	@Override
+	public boolean isForwardCheckingSupported() {
+		return true;
+	}
+
+	@Override
+	public Set<String> getSupportedExtensions() {
+		return null;
+	}
+
+	@Override
+	public void check(Certificate c, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+		X509Certificate cert = (X509Certificate) c;
+		List<String> freshestUrls;
+		try {
+			freshestUrls = CertificateMetadata.get(cert).getFreshestCrlUrls();
+		} catch (IOException e) {
+			throw new CertPathValidatorException("FreshestCRL extension of " + cert.getSubjectDN().getName() + " is malformed. " + e.getMessage(), e);
+		}
+		if (freshestUrls.isEmpty()) {
+			return;
+		}
+		DeltaCrlCache.Entry delta = CertificateVerifier.findDeltaCRL(freshestUrls, cert.getIssuerX500Principal(), trustSnapshot, new Date(), false);
+		if (delta == null) {
+			return;
+		}
+		if (delta.isListedAsRevoked(cert.getSerialNumber())) {
+			throw new CertPathValidatorException("The certificate " + cert.getSubjectDN().getName() + " is revoked by delta CRL: " + delta.getUrl());
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Certificate " + cert.getSubjectDN().getName() + " is not listed in " + delta);
+		}
+		nextUpdate.update(delta.getNextUpdate());
+	}
+
+	/**
+	 * @return самый ранний nextUpdate использованных delta CRL (или null)
+	 */
+	public Date getNextUpdate() {
+		return nextUpdate.get();
+	}
+}
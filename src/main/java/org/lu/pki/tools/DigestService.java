@@ -0,0 +1,147 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Вычисление хэшей большими порциями.
+ * <br>Экземпляры MessageDigest (поиск провайдера и инициализация контекста ГОСТ Р 34.11 не бесплатны) хранятся по одному на поток
+ * и алгоритм. На время вычисления экземпляр изымается из пула потока, поэтому вложенные вычисления тем же алгоритмом
+ * (например, из читаемого потока) получают свой экземпляр.</br>
+ * <br>Данные передаются в MessageDigest.update массивом, ByteBuffer (в том числе direct или отображенным в память файлом)
+ * или читаются из потока буфером {@link #BUFFER_SIZE}, а не побайтно.</br>
+ * Хэши сравниваются как массивы байт ({@link #isEqual(byte[], byte[])}), без преобразования в строки.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class DigestService {
+
+	/**
+	 * Размер буфера чтения потока.
+	 */
+	public static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Пул потока: алгоритм -> свободный экземпляр MessageDigest, плюс буфер чтения.
+	 */
+	private static final class Pool {
+		private final Map<String, MessageDigest> digests = new HashMap<String, MessageDigest>();
+		private byte[] buffer = null;
+	}
+
+	private final static ThreadLocal<Pool> pools = new ThreadLocal<Pool>() {
+
+		@Override
+		protected Pool initialValue() {
+			return new Pool();
+		}
+
+	};
+
+	private DigestService() {
+	}
+
+	private static MessageDigest borrow(Pool pool, String algorithm) throws NoSuchAlgorithmException {
+		MessageDigest digest = pool.digests.remove(algorithm);
+		return digest != null ? digest : MessageDigest.getInstance(algorithm);
+	}
+
+	private static void release(Pool pool, String algorithm, MessageDigest digest) {
+		digest.reset();
+		pool.digests.put(algorithm, digest);
+	}
+
+	/**
+	 * Хэш фрагмента массива.
+	 * @param algorithm - алгоритм (например, JCP.GOST_DIGEST_NAME)
+	 * @param data - данные
+	 * @param off - начало фрагмента
+	 * @param len - длина фрагмента
+	 * @return хэш
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] digest(String algorithm, byte[] data, int off, int len) throws NoSuchAlgorithmException {
+		Pool pool = pools.get();
+		MessageDigest digest = borrow(pool, algorithm);
+		try {
+			digest.update(data, off, len);
+			return digest.digest();
+		} finally {
+			release(pool, algorithm, digest);
+		}
+	}
+
+	/**
+	 * Хэш массива.
+	 * @param algorithm - алгоритм
+	 * @param data - данные
+	 * @return хэш
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] digest(String algorithm, byte[] data) throws NoSuchAlgorithmException {
+		return digest(algorithm, data, 0, data.length);
+	}
+
+	/**
+	 * Хэш оставшихся байт буфера (от position до limit). После вычисления position буфера равен limit.
+	 * @param algorithm - алгоритм
+	 * @param data - данные (heap, direct или MappedByteBuffer)
+	 * @return хэш
+	 * @throws NoSuchAlgorithmException
+	 */
+	public static byte[] digest(String algorithm, ByteBuffer data) throws NoSuchAlgorithmException {
+		Pool pool = pools.get();
+		MessageDigest digest = borrow(pool, algorithm);
+		try {
+			digest.update(data);
+			return digest.digest();
+		} finally {
+			release(pool, algorithm, digest);
+		}
+	}
+
+	/**
+	 * Хэш потока (читается до конца, не закрывается).
+	 * @param algorithm - алгоритм
+	 * @param in - данные
+	 * @return хэш
+	 * @throws NoSuchAlgorithmException
+	 * @throws IOException
+	 */
+	public static byte[] digest(String algorithm, InputStream in) throws NoSuchAlgorithmException, IOException {
+		Pool pool = pools.get();
+		MessageDigest digest = borrow(pool, algorithm);
+		byte[] buffer = pool.buffer;
+		pool.buffer = null; // буфер тоже изымается на время чтения
+		if (buffer == null) {
+			buffer = new byte[BUFFER_SIZE];
+		}
+		try {
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, n);
+			}
+			return digest.digest();
+		} finally {
+			pool.buffer = buffer;
+			release(pool, algorithm, digest);
+		}
+	}
+
+	/**
+	 * Сравнение хэшей как массивов байт.
+	 * @return true - хэши совпадают (null равен только null)
+	 */
+	public static boolean isEqual(byte[] a, byte[] b) {
+		if (a == null || b == null) {
+			return a == b;
+		}
+		return MessageDigest.isEqual(a, b);
+	}
+}
@@ -0,0 +1,27 @@
+package org.lu.pki.tools;
+
+/**
+ * Отсоединенная подпись и ее проверка по хэшу содержимого, вычисленному вызывающей стороной (ГОСТ Р 34.11).
+ * Содержимое не читается и не хэшируется повторно.
+ * <br>Реализуется {@link CryptoProCryptoUtils}. SignalCom формирует и проверяет подпись только по самим данным
+ * ({@link CryptoUtils#signDetached}, {@link CryptoUtils#verifyDetached}).</br>
+ */
+public interface DigestSigner {
+
+	/**
+	 * Отсоединенная подпись по хэшу: SignedData без eContent, хэш передается в аттрибуте message-digest (signedAttrs),
+	 * подписываются аттрибуты.
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого
+	 * @return CMS-сообщение (ContentInfo с SignedData)
+	 * @throws Exception
+	 */
+	byte[] signDigest(byte[] messageDigest) throws Exception;
+
+	/**
+	 * Проверка отсоединенной подписи по хэшу содержимого.
+	 * @param signature - CMS-сообщение без eContent (DER или BASE64)
+	 * @param messageDigest - хэш ГОСТ Р 34.11 содержимого
+	 * @throws Exception - подпись или сертификат не прошли проверку
+	 */
+	void verifyDigest(byte[] signature, byte[] messageDigest) throws Exception;
+}
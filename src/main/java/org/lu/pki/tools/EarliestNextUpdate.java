@@ -0,0 +1,31 @@
+package org.lu.pki.tools;
+
+import java.util.Date;
+
+/**
+ * Самый ранний nextUpdate сведений об отзыве (CRL, delta CRL, ответов OCSP), использованных при проверке цепочки.
+ * PKIXParameters хранит копии checker-ов (clone), поэтому checker держит результат в этом объекте, общем для всех копий.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+final class EarliestNextUpdate {
+
+	private Date nextUpdate;
+
+	/**
+	 * @param candidate - nextUpdate очередного источника (null не учитывается)
+	 */
+	synchronized void update(Date candidate) {
+		if (candidate != null && (nextUpdate == null || candidate.before(nextUpdate))) {
+			nextUpdate = candidate;
+		}
+	}
+
+	/**
+	 * @return самый ранний nextUpdate или null, если ни один не был учтен
+	 */
+	synchronized Date get() {
+		return nextUpdate;
+	}
+}
@@ -0,0 +1,418 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Состояние точек загрузки данных об отзыве (CRLDP) с автоматическим выключателем (circuit breaker).
+ * <br>После failureThreshold ошибок подряд точка выключается (OPEN) и запросы к ней сразу отклоняются,
+ * так что проверка переходит к следующему зеркалу, не дожидаясь таймаута соединения.</br>
+ * <br>Через openMillis точка проверяется пробным запросом в фоне (HALF_OPEN): при успехе точка включается (CLOSED),
+ * при ошибке выключается снова с удвоенным временем (не более MAX_OPEN_MILLIS).</br>
+ * Состояние, счетчики и время ответа каждой точки доступны для мониторинга через {@link #getStates()}.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class EndpointHealthTracker {
+
+	private static final Logger LOG = Logger.getLogger(EndpointHealthTracker.class.getName());
+
+	public static enum State {
+		/** точка доступна */
+		CLOSED,
+		/** точка выключена после ошибок */
+		OPEN,
+		/** идет пробный запрос */
+		HALF_OPEN
+	}
+
+	/**
+	 * Пробный запрос к выключенной точке.
+	 */
+	public static interface Probe {
+		/**
+		 * @param url - адрес точки
+		 * @throws IOException - точка недоступна
+		 */
+		void probe(String url) throws IOException;
+	}
+
+	public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+	public static final long DEFAULT_OPEN_MILLIS = 30 * 1000L;
+
+	public static final long MAX_OPEN_MILLIS = 10 * 60 * 1000L;
+
+	public static final int DEFAULT_PROBE_TIMEOUT_MILLIS = 5000;
+
+	static final int MAX_ENDPOINTS = 4096;
+
+	private static final double LATENCY_SMOOTHING = 0.2;
+
+	/**
+	 * Пробный запрос по умолчанию: HEAD для http(s) (ответ с кодом меньше 500 - точка доступна), соединение для остальных схем.
+	 */
+	public static final Probe HTTP_PROBE = new Probe() {
+		@Override
+		public void probe(String url) throws IOException {
+			URLConnection con = new URL(url).openConnection();
+			con.setConnectTimeout(DEFAULT_PROBE_TIMEOUT_MILLIS);
+			con.setReadTimeout(DEFAULT_PROBE_TIMEOUT_MILLIS);
+			con.setUseCaches(false);
+			if (con instanceof HttpURLConnection) {
+				HttpURLConnection http = (HttpURLConnection) con;
+				http.setRequestMethod("HEAD");
+				try {
+					int code = http.getResponseCode();
+					if (code >= 500) {
+						throw new IOException("HTTP " + code + " from " + url);
+					}
+				} finally {
+					http.disconnect();
+				}
+			} else {
+				con.connect();
+				con.getInputStream().close();
+			}
+		}
+	};
+
+	/**
+	 * Состояние точки на момент запроса (для мониторинга).
+	 */
+	public static final class EndpointState {
+		private final String url;
+		private final State state;
+		private final int consecutiveFailures;
+		private final long successCount;
+		private final long failureCount;
+		private final long lastLatencyMillis;
+		private final long averageLatencyMillis;
+		private final String lastFailure;
+		private final Date stateChangedAt;
+
+		private EndpointState(Endpoint e) {
+			this.url = e.url;
+			this.state = e.state;
+			this.consecutiveFailures = e.consecutiveFailures;
+			this.successCount = e.successCount;
+			this.failureCount = e.failureCount;
+			this.lastLatencyMillis = e.lastLatencyMillis;
+			this.averageLatencyMillis = Math.round(e.averageLatencyMillis);
+			this.lastFailure = e.lastFailure;
+			this.stateChangedAt = new Date(e.stateChangedAt);
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public int getConsecutiveFailures() {
+			return consecutiveFailures;
+		}
+
+		public long getSuccessCount() {
+			return successCount;
+		}
+
+		public long getFailureCount() {
+			return failureCount;
+		}
+
+		/**
+		 * @return время последней успешной загрузки, мс (-1, если успешных загрузок не было)
+		 */
+		public long getLastLatencyMillis() {
+			return lastLatencyMillis;
+		}
+
+		/**
+		 * @return сглаженное время успешной загрузки, мс (-1, если успешных загрузок не было)
+		 */
+		public long getAverageLatencyMillis() {
+			return averageLatencyMillis;
+		}
+
+		public String getLastFailure() {
+			return lastFailure;
+		}
+
+		public Date getStateChangedAt() {
+			return stateChangedAt;
+		}
+
+		@Override
+		public String toString() {
+			return url + " " + state + " [success=" + successCount + ", failure=" + failureCount + ", consecutiveFailures=" + consecutiveFailures
+					+ ", latency=" + lastLatencyMillis + "/" + averageLatencyMillis + " ms, since " + stateChangedAt + (lastFailure != null ? ", last failure: " + lastFailure : "") + "]";
+		}
+	}
+
+	/**
+	 * Изменяемое состояние точки, защищено монитором самого объекта.
+	 */
+	private static final class Endpoint {
+		private final String url;
+		private State state = State.CLOSED;
+		private int consecutiveFailures;
+		private long successCount;
+		private long failureCount;
+		private long lastLatencyMillis = -1;
+		private double averageLatencyMillis = -1;
+		private String lastFailure;
+		private long stateChangedAt = System.currentTimeMillis();
+		private long openMillis;
+
+		private Endpoint(String url) {
+			this.url = url;
+		}
+
+		private void changeState(State newState) {
+			state = newState;
+			stateChangedAt = System.currentTimeMillis();
+		}
+	}
+
+	private final ConcurrentMap<String, Endpoint> endpoints = new ConcurrentHashMap<String, Endpoint>();
+
+	private volatile int failureThreshold = DEFAULT_FAILURE_THRESHOLD;
+
+	private volatile long openMillis = DEFAULT_OPEN_MILLIS;
+
+	private volatile Probe probe = HTTP_PROBE;
+
+	private ScheduledExecutorService prober; // создается при первом выключении точки
+
+	/**
+	 * @param url - адрес точки
+	 * @return true, если к точке можно обращаться (точка не выключена)
+	 */
+	public boolean isAvailable(String url) {
+		Endpoint e = endpoints.get(url);
+		if (e == null) {
+			return true;
+		}
+		synchronized (e) {
+			return e.state == State.CLOSED;
+		}
+	}
+
+	/**
+	 * Успешная загрузка.
+	 * @param url - адрес точки
+	 * @param latencyMillis - время загрузки
+	 */
+	public void recordSuccess(String url, long latencyMillis) {
+		Endpoint e = endpoint(url);
+		if (e == null) {
+			return;
+		}
+		synchronized (e) {
+			e.successCount++;
+			e.consecutiveFailures = 0;
+			e.lastLatencyMillis = latencyMillis;
+			e.averageLatencyMillis = e.averageLatencyMillis < 0 ? latencyMillis : e.averageLatencyMillis + LATENCY_SMOOTHING * (latencyMillis - e.averageLatencyMillis);
+			if (e.state != State.CLOSED) {
+				e.changeState(State.CLOSED);
+				LOG.info("Endpoint " + url + " is available again");
+			}
+		}
+	}
+
+	/**
+	 * Ошибка загрузки (соединение, таймаут, ошибка сервера). После failureThreshold ошибок подряд точка выключается.
+	 * @param url - адрес точки
+	 * @param problem - ошибка
+	 */
+	public void recordFailure(String url, Exception problem) {
+		Endpoint e = endpoint(url);
+		if (e == null) {
+			return;
+		}
+		boolean opened = false;
+		long delay;
+		synchronized (e) {
+			e.failureCount++;
+			e.consecutiveFailures++;
+			e.lastFailure = problem.getClass().getName() + ": " + problem.getMessage();
+			if (e.state == State.CLOSED && e.consecutiveFailures >= failureThreshold) {
+				e.openMillis = openMillis;
+				e.changeState(State.OPEN);
+				opened = true;
+			}
+			delay = e.openMillis;
+		}
+		if (opened) {
+			LOG.warning("Endpoint " + url + " is switched off for " + delay + " ms after " + failureThreshold + " failures. Last failure: " + problem.getMessage());
+			scheduleProbe(e, delay);
+		}
+	}
+
+	private Endpoint endpoint(String url) {
+		Endpoint e = endpoints.get(url);
+		if (e == null) {
+			if (endpoints.size() >= MAX_ENDPOINTS) {
+				return null;
+			}
+			Endpoint created = new Endpoint(url);
+			e = endpoints.putIfAbsent(url, created);
+			if (e == null) {
+				e = created;
+			}
+		}
+		return e;
+	}
+
+	private void scheduleProbe(final Endpoint e, long delay) {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			if (prober == null) {
+				ScheduledThreadPoolExecutor pool = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "endpoint-probe");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				pool.setKeepAliveTime(1, TimeUnit.MINUTES);
+				pool.allowCoreThreadTimeOut(true);
+				prober = pool;
+			}
+			executor = prober;
+		}
+		executor.schedule(new Runnable() {
+			@Override
+			public void run() {
+				probe(e);
+			}
+		}, delay, TimeUnit.MILLISECONDS);
+	}
+
+	private void probe(Endpoint e) {
+		if (endpoints.get(e.url) != e) { // точка сброшена
+			return;
+		}
+		synchronized (e) {
+			if (e.state != State.OPEN) { // уже включена успешной загрузкой или сброшена
+				return;
+			}
+			e.changeState(State.HALF_OPEN);
+		}
+		long started = System.currentTimeMillis();
+		try {
+			probe.probe(e.url);
+			recordSuccess(e.url, System.currentTimeMillis() - started);
+		} catch (Exception problem) {
+			long delay;
+			synchronized (e) {
+				e.failureCount++;
+				e.consecutiveFailures++;
+				e.lastFailure = problem.getClass().getName() + ": " + problem.getMessage();
+				e.openMillis = Math.min(e.openMillis * 2, MAX_OPEN_MILLIS);
+				e.changeState(State.OPEN);
+				delay = e.openMillis;
+			}
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Probe of " + e.url + " failed: " + problem.getMessage() + ". Next probe in " + delay + " ms");
+			}
+			scheduleProbe(e, delay);
+		}
+	}
+
+	/**
+	 * @param url - адрес точки
+	 * @return состояние точки или null, если обращений к ней не было
+	 */
+	public EndpointState getState(String url) {
+		Endpoint e = endpoints.get(url);
+		if (e == null) {
+			return null;
+		}
+		synchronized (e) {
+			return new EndpointState(e);
+		}
+	}
+
+	/**
+	 * @return состояние всех известных точек (по адресу)
+	 */
+	public Map<String, EndpointState> getStates() {
+		Map<String, EndpointState> states = new TreeMap<String, EndpointState>();
+		for (Endpoint e : endpoints.values()) {
+			synchronized (e) {
+				states.put(e.url, new EndpointState(e));
+			}
+		}
+		return Collections.unmodifiableMap(states);
+	}
+
+	/**
+	 * Включение точки и сброс ее статистики.
+	 */
+	public void reset(String url) {
+		endpoints.remove(url);
+	}
+
+	public void resetAll() {
+		endpoints.clear();
+	}
+
+	/**
+	 * Остановка фоновых пробных запросов.
+	 */
+	public synchronized void shutdown() {
+		if (prober != null) {
+			prober.shutdownNow();
+			prober = null;
+		}
+	}
+
+	/**
+	 * @param failureThreshold - количество ошибок подряд, после которого точка выключается
+	 */
+	public void setFailureThreshold(int failureThreshold) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("failureThreshold must be positive: " + failureThreshold);
+		}
+		this.failureThreshold = failureThreshold;
+	}
+
+	/**
+	 * @param openMillis - время до первого пробного запроса к выключенной точке
+	 */
+	public void setOpenMillis(long openMillis) {
+		this.openMillis = openMillis;
+	}
+
+	/**
+	 * @param probe - пробный запрос (по умолчанию {@link #HTTP_PROBE})
+	 */
+	public void setProbe(Probe probe) {
+		this.probe = probe;
+	}
+
+	@Override
+	public String toString() {
+		return "EndpointHealthTracker " + getStates().values();
+	}
+}
@@ -0,0 +1,334 @@
+package org.lu.pki.tools;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Индекс сертификатов и ключей хранилища KeyStore.
+ * Строится одним проходом по алиасам, после чего поиск по (issuer, serial), серийному номеру,
+ * SubjectKeyIdentifier и SHA-256 отпечатку сертификата выполняется за O(1), без вызова getCertificate для каждого алиаса.
+ * Индекс неизменяемый и потокобезопасный, поиск по нему не обращается к хранилищу.
+ * <br>{@link #of(KeyStore)} не чаще одного раза в {@link #getCheckIntervalMillis()} сравнивает количество записей хранилища
+ * с индексом и перестраивает индекс, если оно изменилось. Замену записи без изменения их количества
+ * (setCertificateEntry/setKeyEntry по существующему алиасу) так не увидеть - после нее нужен {@link #rebuild(KeyStore)}.</br>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class KeyStoreIndex {
+
+	private static final Logger LOG = Logger.getLogger(KeyStoreIndex.class.getName());
+
+	public static final long DEFAULT_CHECK_INTERVAL_MILLIS = 1000;
+
+	private static volatile long checkIntervalMillis = DEFAULT_CHECK_INTERVAL_MILLIS;
+
+	/**
+	 * Индексы уже загруженных хранилищ. Ключи слабые - индекс не удерживает KeyStore от сборки мусора.
+	 * Чтение без блокировок: ключи сравниваются по ссылке на KeyStore.
+	 */
+	private static final ConcurrentMap<StoreKey, KeyStoreIndex> INDEXES = new ConcurrentHashMap<StoreKey, KeyStoreIndex>();
+
+	private static final ReferenceQueue<KeyStore> COLLECTED = new ReferenceQueue<KeyStore>();
+
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	private final long version;
+
+	private final int storeSize;
+
+	/**
+	 * Время последней проверки количества записей хранилища.
+	 */
+	private final AtomicLong checkedAt = new AtomicLong(System.currentTimeMillis());
+
+	private final List<String> aliases;
+
+	private final List<String> keyAliases;
+
+	private final Map<String, X509Certificate> certificates;
+
+	private final Map<String, String> byIssuerAndSerial = new HashMap<String, String>();
+
+	private final Map<BigInteger, String> bySerial = new HashMap<BigInteger, String>();
+
+	private final Map<String, String> bySubjectKeyIdentifier = new HashMap<String, String>();
+
+	private final Map<String, String> byFingerprint = new HashMap<String, String>();
+
+	/**
+	 * Построение индекса полным проходом по хранилищу.
+	 * @param keyStore - загруженное хранилище
+	 * @throws KeyStoreException
+	 */
+	public KeyStoreIndex(KeyStore keyStore) throws KeyStoreException {
+		List<String> allAliases = new ArrayList<String>();
+		List<String> onlyKeyAliases = new ArrayList<String>();
+		Map<String, X509Certificate> certs = new LinkedHashMap<String, X509Certificate>();
+
+		Enumeration<String> aliasesEnum = keyStore.aliases();
+		while (aliasesEnum.hasMoreElements()) {
+			String alias = aliasesEnum.nextElement();
+			allAliases.add(alias);
+			boolean keyEntry = keyStore.isKeyEntry(alias);
+			if (keyEntry) {
+				onlyKeyAliases.add(alias);
+			}
+			Certificate c = keyStore.getCertificate(alias);
+			if (!PKIXUtils.isX509Certificate(c)) {
+				continue;
+			}
+			X509Certificate cert = (X509Certificate) c;
+			certs.put(alias, cert);
+			putFirst(byIssuerAndSerial, issuerAndSerialKey(cert.getIssuerX500Principal(), cert.getSerialNumber()), alias);
+			putFirst(bySerial, cert.getSerialNumber(), alias);
+
+			CertificateMetadata metadata;
+			try {
+				metadata = CertificateMetadata.of(cert);
+				putFirst(byFingerprint, metadata.getFingerprint(), alias);
+			} catch (CertificateEncodingException e) {
+				LOG.warning("Fingerprint for alias '" + alias + "' can't be calculated: " + e.getMessage());
+				metadata = CertificateMetadata.get(cert);
+			}
+
+			// SKI индексируется и в виде значения расширения целиком (как его отдает getExtensionValue), и в виде самого keyIdentifier
+			byte[] skiExtension = cert.getExtensionValue(CryptoUtils.SUBJECT_KEY_IDENTEFER_OID);
+			if (skiExtension != null) {
+				putFirst(bySubjectKeyIdentifier, PKIXUtils.toHex(skiExtension), alias);
+				byte[] keyIdentifier = metadata.getSubjectKeyIdentifier();
+				if (keyIdentifier != null) {
+					putFirst(bySubjectKeyIdentifier, PKIXUtils.toHex(keyIdentifier), alias);
+				}
+			}
+		}
+
+		this.aliases = Collections.unmodifiableList(allAliases);
+		this.keyAliases = Collections.unmodifiableList(onlyKeyAliases);
+		this.certificates = Collections.unmodifiableMap(certs);
+		this.storeSize = keyStore.size();
+		this.version = VERSIONS.incrementAndGet();
+
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("KeyStore index #" + version + " built: " + allAliases.size() + " aliases, " + certs.size() + " X509 certificates, " + onlyKeyAliases.size() + " keys");
+		}
+	}
+
+	/**
+	 * Получение индекса хранилища. Индекс строится при первом обращении; дальше не чаще одного раза
+	 * в {@link #getCheckIntervalMillis()} один из вызывающих потоков сравнивает количество записей хранилища с индексом
+	 * и перестраивает индекс, если оно изменилось. Остальные потоки получают текущий индекс без блокировок.
+	 * @param keyStore
+	 * @return KeyStoreIndex
+	 * @throws KeyStoreException
+	 */
+	public static KeyStoreIndex of(KeyStore keyStore) throws KeyStoreException {
+		KeyStoreIndex index = INDEXES.get(new StoreKey(keyStore, null));
+		if (index == null) {
+			// при одновременном первом обращении все потоки получают индекс, построенный первым
+			KeyStoreIndex built = new KeyStoreIndex(keyStore);
+			expungeCollected();
+			index = INDEXES.putIfAbsent(new StoreKey(keyStore, COLLECTED), built);
+			return index != null ? index : built;
+		}
+		if (index.isCheckDue() && keyStore.size() != index.storeSize) {
+			return rebuild(keyStore);
+		}
+		return index;
+	}
+
+	/**
+	 * Принудительное перестроение индекса. Нужно после замены записи хранилища, не изменившей количество записей.
+	 * @param keyStore
+	 * @return новый KeyStoreIndex
+	 * @throws KeyStoreException
+	 */
+	public static KeyStoreIndex rebuild(KeyStore keyStore) throws KeyStoreException {
+		KeyStoreIndex index = new KeyStoreIndex(keyStore);
+		expungeCollected();
+		INDEXES.put(new StoreKey(keyStore, COLLECTED), index);
+		return index;
+	}
+
+	/**
+	 * Интервал между проверками количества записей хранилища в {@link #of(KeyStore)}. 0 - проверять при каждом обращении.
+	 * @param millis
+	 */
+	public static void setCheckIntervalMillis(long millis) {
+		if (millis < 0) {
+			throw new IllegalArgumentException("Check interval must not be negative: " + millis);
+		}
+		checkIntervalMillis = millis;
+	}
+
+	public static long getCheckIntervalMillis() {
+		return checkIntervalMillis;
+	}
+
+	private static void expungeCollected() {
+		Reference<? extends KeyStore> collected;
+		while ((collected = COLLECTED.poll()) != null) {
+			INDEXES.remove(collected);
+		}
+	}
+
+	/**
+	 * @return true - если пора проверить хранилище. Возвращает true только одному потоку за интервал.
+	 */
+	private boolean isCheckDue() {
+		long last = checkedAt.get();
+		long now = System.currentTimeMillis();
+		return now - last >= checkIntervalMillis && checkedAt.compareAndSet(last, now);
+	}
+
+	private static <K> void putFirst(Map<K, String> map, K key, String alias) {
+		if (!map.containsKey(key)) { // как и при переборе - побеждает первый найденный алиас
+			map.put(key, alias);
+		}
+	}
+
+	private static String issuerAndSerialKey(X500Principal issuer, BigInteger serialNumber) {
+		return issuer.getName(X500Principal.CANONICAL) + '#' + serialNumber.toString(16);
+	}
+
+	/**
+	 * Версия индекса. Уникальна в пределах JVM и растет при каждом перестроении.
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public List<String> getAliases() {
+		return aliases;
+	}
+
+	public List<String> getKeyAliases() {
+		return keyAliases;
+	}
+
+	/**
+	 * @return все X509 сертификаты хранилища.
+	 */
+	public Collection<X509Certificate> getCertificates() {
+		return certificates.values();
+	}
+
+	/**
+	 * @param alias
+	 * @return null - если по алиасу нет X509 сертификата.
+	 */
+	public X509Certificate getCertificate(String alias) {
+		return certificates.get(alias);
+	}
+
+	/**
+	 * @param issuer
+	 * @param serialNumber
+	 * @return null - если сертификат не найден.
+	 */
+	public String lookupByIssuerAndSerialNumber(X500Principal issuer, BigInteger serialNumber) {
+		return byIssuerAndSerial.get(issuerAndSerialKey(issuer, serialNumber));
+	}
+
+	/**
+	 * @param serialNumber
+	 * @return null - если сертификат не найден.
+	 */
+	public String lookupBySerialNumber(BigInteger serialNumber) {
+		return bySerial.get(serialNumber);
+	}
+
+	/**
+	 * @param ski - keyIdentifier или значение расширения 2.5.29.14 целиком.
+	 * @return null - если сертификат не найден.
+	 */
+	public String lookupBySubjectKeyIdentifier(byte[] ski) {
+		if (ski == null) {
+			return null;
+		}
+		return bySubjectKeyIdentifier.get(PKIXUtils.toHex(ski));
+	}
+
+	/**
+	 * @param fingerprint - SHA-256 отпечаток сертификата (см. {@link PKIXUtils#getFingerprint(X509Certificate)})
+	 * @return null - если сертификат не найден.
+	 */
+	public String lookupByFingerprint(String fingerprint) {
+		return byFingerprint.get(fingerprint);
+	}
+
+	/**
+	 * Поиск алиаса сертификата (аналог KeyStore.getCertificateAlias, но без перебора хранилища).
+	 * @param cert
+	 * @return null - если сертификат не найден.
+	 */
+	public String lookupAlias(X509Certificate cert) {
+		try {
+			return lookupByFingerprint(PKIXUtils.getFingerprint(cert));
+		} catch (CertificateEncodingException e) {
+			LOG.warning("Fingerprint can't be calculated for " + cert.getSubjectDN().getName() + ": " + e.getMessage());
+			return lookupByIssuerAndSerialNumber(cert.getIssuerX500Principal(), cert.getSerialNumber());
+		}
+	}
+
+	/**
+	 * @param cert
+	 * @return true - если в хранилище есть сертификат с тем же издателем и серийным номером.
+	 */
+	public boolean contains(X509Certificate cert) {
+		return lookupByIssuerAndSerialNumber(cert.getIssuerX500Principal(), cert.getSerialNumber()) != null;
+	}
+
+	/**
+	 * Слабая ссылка на KeyStore с равенством по ссылке (KeyStore не переопределяет equals/hashCode).
+	 */
+	private static final class StoreKey extends WeakReference<KeyStore> {
+
+		private final int hash;
+
+		StoreKey(KeyStore keyStore, ReferenceQueue<KeyStore> queue) {
+			super(keyStore, queue);
+			this.hash = System.identityHashCode(keyStore);
+		}
+
+		@Override
+		public int hashCode() {
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof StoreKey)) {
+				return false;
+			}
+			KeyStore keyStore = get();
+			return keyStore != null && keyStore == ((StoreKey) obj).get();
+		}
+	}
+}
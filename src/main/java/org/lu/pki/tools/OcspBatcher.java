@@ -0,0 +1,327 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.lu.pki.tools.OcspClient.CertRequest;
+
+/**
+ * Пакетные запросы OCSP: статусы нескольких сертификатов (вся цепочка, все подписанты, параллельные проверки)
+ * запрашиваются одним OCSP-запросом с несколькими CertID на каждый OCSP-сервер.
+ * <br>Запросы к одному серверу, поступившие в течение окна (windowMillis), объединяются в один.
+ * Окно 0 (по умолчанию) объединяет только сертификаты одной проверки и одновременно отправляемые запросы.</br>
+ * <br>Статусы, которые не удалось получить пакетом (сервер не доступен, некорректный ответ), в результат не попадают,
+ * их запрашивает {@link OcspCertPathChecker} по одному с перебором всех адресов OCSP.</br>
+ * <br>Пакеты отправляются в пуле не более чем из maxSenders потоков. Если все потоки заняты или батчер остановлен
+ * ({@link #shutdown()}), пакет отправляет сам вызывающий поток.</br>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class OcspBatcher {
+
+	private static final Logger LOG = Logger.getLogger(OcspBatcher.class.getName());
+
+	public static final int DEFAULT_MAX_BATCH_SIZE = 32;
+
+	public static final int DEFAULT_MAX_SENDERS = 8;
+
+	private static final long SENDER_KEEP_ALIVE_SECONDS = 60;
+
+	/**
+	 * Пакет запросов к одному OCSP-серверу. Отправляет первый присоединившийся поток (лидер), остальные ждут результата.
+	 */
+	private static final class Batch {
+		private final String url;
+		private final List<CertRequest> requests = new ArrayList<CertRequest>();
+		private final Set<String> keys = new HashSet<String>();
+		private boolean done;
+		private Map<String, OcspStatus> statuses;
+		private Exception failure;
+
+		private Batch(String url) {
+			this.url = url;
+		}
+
+		private void add(List<CertRequest> newRequests) {
+			for (CertRequest request : newRequests) {
+				if (keys.add(request.key)) { // один и тот же сертификат из параллельных проверок запрашивается один раз
+					requests.add(request);
+				}
+			}
+		}
+
+		private synchronized void complete(Map<String, OcspStatus> statuses, Exception failure) {
+			this.statuses = statuses;
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+
+		private synchronized Map<String, OcspStatus> await() throws Exception {
+			while (!done) {
+				wait();
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return statuses;
+		}
+	}
+
+	private final OcspClient client;
+
+	private final Map<String, Batch> pending = new HashMap<String, Batch>(); // по адресу OCSP-сервера
+
+	private final ThreadPoolExecutor senders;
+
+	private volatile long windowMillis = 0;
+
+	private volatile int maxBatchSize = DEFAULT_MAX_BATCH_SIZE;
+
+	private final AtomicLong batchCount = new AtomicLong();
+
+	private final AtomicLong batchedCertCount = new AtomicLong();
+
+	/**
+	 * @param client - клиент OCSP, через который выполняются запросы
+	 */
+	public OcspBatcher(OcspClient client) {
+		this(client, DEFAULT_MAX_SENDERS);
+	}
+
+	/**
+	 * @param client - клиент OCSP, через который выполняются запросы
+	 * @param maxSenders - максимальное количество потоков отправки пакетов
+	 */
+	public OcspBatcher(OcspClient client, int maxSenders) {
+		if (maxSenders < 1) {
+			throw new IllegalArgumentException("maxSenders must be positive: " + maxSenders);
+		}
+		this.client = client;
+		this.senders = new ThreadPoolExecutor(0, maxSenders, SENDER_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+			private final AtomicInteger threadNumber = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ocsp-batch-" + threadNumber.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public OcspClient getClient() {
+		return client;
+	}
+
+	/**
+	 * Статусы сертификатов цепочки.
+	 * @param chain - цепочка от конечного сертификата (как в CertPath), без доверенного
+	 * @param trustedCert - доверенный сертификат, издатель последнего сертификата цепочки
+	 * @return полученные статусы (только для сертификатов с адресом OCSP)
+	 */
+	public Map<X509Certificate, OcspStatus> getChainStatuses(List<? extends X509Certificate> chain, X509Certificate trustedCert) {
+		Map<X509Certificate, X509Certificate> issuers = new LinkedHashMap<X509Certificate, X509Certificate>();
+		for (int i = 0; i < chain.size(); i++) {
+			issuers.put(chain.get(i), i + 1 < chain.size() ? chain.get(i + 1) : trustedCert);
+		}
+		return getStatuses(issuers);
+	}
+
+	/**
+	 * Статусы сертификатов, по одному OCSP-запросу на сервер (первый адрес OCSP сертификата).
+	 * @param issuers - сертификат -> сертификат его издателя
+	 * @return полученные статусы (только для сертификатов с адресом OCSP)
+	 */
+	public Map<X509Certificate, OcspStatus> getStatuses(Map<X509Certificate, X509Certificate> issuers) {
+		Date now = new Date();
+		Map<X509Certificate, OcspStatus> result = new HashMap<X509Certificate, OcspStatus>();
+		Map<String, List<CertRequest>> byUrl = new LinkedHashMap<String, List<CertRequest>>();
+		for (Map.Entry<X509Certificate, X509Certificate> entry : issuers.entrySet()) {
+			X509Certificate cert = entry.getKey();
+			List<String> urls = CertificateMetadata.get(cert).getOcspUrls();
+			if (urls.isEmpty()) {
+				continue;
+			}
+			CertRequest request;
+			try {
+				request = OcspClient.newRequest(cert, entry.getValue());
+			} catch (CertificateVerificationException e) {
+				LOG.warning(e.getMessage());
+				continue;
+			}
+			OcspStatus cached = client.getCachedStatus(request, now);
+			if (cached != null) {
+				result.put(cert, cached);
+				continue;
+			}
+			List<CertRequest> group = byUrl.get(urls.get(0));
+			if (group == null) {
+				group = new ArrayList<CertRequest>();
+				byUrl.put(urls.get(0), group);
+			}
+			group.add(request);
+		}
+
+		// сначала присоединяемся ко всем пакетам, затем ждем: запросы к разным серверам идут одновременно
+		boolean inline = byUrl.size() == 1 && windowMillis <= 0; // окно выключено и сервер один - отправка в текущем потоке
+		Map<String, Batch> joined = new LinkedHashMap<String, Batch>();
+		for (Map.Entry<String, List<CertRequest>> group : byUrl.entrySet()) {
+			joined.put(group.getKey(), join(group.getKey(), group.getValue(), inline));
+		}
+		for (Map.Entry<String, Batch> entry : joined.entrySet()) {
+			Batch batch = entry.getValue();
+			Map<String, OcspStatus> statuses;
+			try {
+				statuses = batch.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return result;
+			} catch (Exception e) {
+				LOG.warning("Batched OCSP request to " + batch.url + " failed: " + e.getMessage() + ". Statuses will be requested one by one.");
+				continue;
+			}
+			for (CertRequest request : byUrl.get(entry.getKey())) {
+				OcspStatus status = statuses.get(request.key);
+				if (status != null) {
+					result.put(request.cert, status);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Присоединение к открытому пакету для адреса или создание нового. Созданный пакет отправляется
+	 * по окончании окна в пуле потоков, поэтому ожидание пакетов к разным серверам не складывается.
+	 */
+	private Batch join(String url, List<CertRequest> requests, boolean inline) {
+		final Batch batch;
+		boolean leader = false;
+		synchronized (pending) {
+			Batch open = pending.get(url);
+			if (open == null || open.requests.size() + requests.size() > maxBatchSize) {
+				open = new Batch(url);
+				pending.put(url, open);
+				leader = true;
+			}
+			open.add(requests);
+			batch = open;
+		}
+		if (leader) {
+			if (inline) {
+				send(batch);
+			} else {
+				try {
+					senders.execute(new Runnable() {
+						@Override
+						public void run() {
+							send(batch);
+						}
+					});
+				} catch (RejectedExecutionException e) { // все потоки заняты или батчер остановлен
+					send(batch);
+				}
+			}
+		}
+		return batch;
+	}
+
+	private void send(Batch batch) {
+		long window = windowMillis;
+		if (window > 0) {
+			try {
+				Thread.sleep(window);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		List<CertRequest> requests;
+		synchronized (pending) {
+			if (pending.get(batch.url) == batch) {
+				pending.remove(batch.url);
+			}
+			requests = new ArrayList<CertRequest>(batch.requests);
+		}
+		batchCount.incrementAndGet();
+		batchedCertCount.addAndGet(requests.size());
+		try {
+			Map<String, OcspStatus> statuses = client.query(batch.url, requests, new Date());
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Batched OCSP request to " + batch.url + ": " + statuses.size() + "/" + requests.size() + " status(es)");
+			}
+			batch.complete(statuses, null);
+		} catch (IOException e) {
+			batch.complete(null, e);
+		} catch (CertificateVerificationException e) {
+			batch.complete(null, e);
+		} catch (RuntimeException e) {
+			batch.complete(null, e);
+		}
+	}
+
+	/**
+	 * Остановка пула отправки. Уже отправляемые пакеты завершаются, новые отправляет вызывающий поток.
+	 * Вызывается при замене батчера ({@link CertificateVerifier#setOcspClient}).
+	 */
+	public void shutdown() {
+		senders.shutdown();
+	}
+
+	public boolean isShutdown() {
+		return senders.isShutdown();
+	}
+
+	/**
+	 * @param windowMillis - время накопления запросов к одному серверу от параллельных проверок (0 - без ожидания)
+	 */
+	public void setWindowMillis(long windowMillis) {
+		this.windowMillis = windowMillis;
+	}
+
+	public long getWindowMillis() {
+		return windowMillis;
+	}
+
+	/**
+	 * @param maxBatchSize - максимальное количество CertID в одном запросе
+	 */
+	public void setMaxBatchSize(int maxBatchSize) {
+		if (maxBatchSize < 1) {
+			throw new IllegalArgumentException("maxBatchSize must be positive: " + maxBatchSize);
+		}
+		this.maxBatchSize = maxBatchSize;
+	}
+
+	/**
+	 * @return количество отправленных пакетных запросов
+	 */
+	public long getBatchCount() {
+		return batchCount.get();
+	}
+
+	/**
+	 * @return количество CertID во всех отправленных пакетных запросах
+	 */
+	public long getBatchedCertCount() {
+		return batchedCertCount.get();
+	}
+}
@@ -0,0 +1,124 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.security.cert.CertPathValidatorException;
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathChecker;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Проверка отзыва сертификатов цепочки через {@link OcspClient} при валидации CertPathValidator.
+ * Используется вместо встроенной проверки OCSP (ocsp.enable) и одинаково работает в Sun и IBM J9.
+ * Сертификаты проверяются от доверенного к конечному, издателем первого сертификата считается доверенный сертификат.
+ * Сертификаты без адреса OCSP пропускаются.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class OcspCertPathChecker extends PKIXCertPathChecker {
+
+	private static final Logger LOG = Logger.getLogger(OcspCertPathChecker.class.getName());
+
+	private final OcspClient ocspClient;
+
+	private final X509Certificate trustedCert;
+
+	private final Map<X509Certificate, OcspStatus> knownStatuses;
+
+	private final EarliestNextUpdate nextUpdate = new EarliestNextUpdate();
+
+	private X509Certificate issuerCert;
+
+	/**
+	 * @param ocspClient - клиент OCSP
+	 * @param trustedCert - доверенный сертификат (TrustAnchor) цепочки
+	 */
+	public OcspCertPathChecker(OcspClient ocspClient, X509Certificate trustedCert) {
+		this(ocspClient, trustedCert, Collections.<X509Certificate, OcspStatus>emptyMap());
+	}
+
+	/**
+	 * @param ocspClient - клиент OCSP
+	 * @param trustedCert - доверенный сертификат (TrustAnchor) цепочки
+	 * @param knownStatuses - статусы, уже полученные пакетным запросом ({@link OcspBatcher}). Остальные запрашиваются по одному.
+	 */
+	public OcspCertPathChecker(OcspClient ocspClient, X509Certificate trustedCert, Map<X509Certificate, OcspStatus> knownStatuses) {
+		this.ocspClient = ocspClient;
+		this.trustedCert = trustedCert;
+		this.knownStatuses = knownStatuses;
+	}
+
+	@Override
+	public void init(boolean forward) throws CertPathValidatorException {
+		if (forward) {
+			throw new CertPathValidatorException("Forward checking is not supported");
+		}
+		issuerCert = trustedCert;
+	}
+
+	@Override
+	public boolean isForwardCheckingSupported() {
+		return false;
+	}
+
+	@Override
+	public Set<String> getSupportedExtensions() {
+		return null;
+	}
+
+	@Override
+	public void check(Certificate c, Collection<String> unresolvedCritExts) throws CertPathValidatorException {
+		X509Certificate cert = (X509Certificate) c;
+		X509Certificate issuer = issuerCert;
+		issuerCert = cert;
+		if (issuer == null) {
+			throw new CertPathValidatorException("Issuer of " + cert.getSubjectDN().getName() + " is unknown. OCSP status can't be checked.");
+		}
+		if (CertificateMetadata.get(cert).getOcspUrls().isEmpty()) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Certificate " + cert.getSubjectDN().getName() + " doesn't have OCSP url and skipped");
+			}
+			return;
+		}
+		OcspStatus status = knownStatuses.get(cert);
+		if (status == null) {
+			try {
+				status = ocspClient.getStatus(cert, issuer);
+			} catch (IOException e) {
+				throw new CertPathValidatorException("OCSP status of " + cert.getSubjectDN().getName() + " can't be obtained. " + e.getMessage(), e);
+			} catch (CertificateVerificationException e) {
+				throw new CertPathValidatorException(e.getMessage(), e);
+			}
+		}
+		checkStatus(cert, status);
+	}
+
+	/**
+	 * Реакция на статус: отозванный и неизвестный сертификат - ошибка валидации.
+	 */
+	void checkStatus(X509Certificate cert, OcspStatus status) throws CertPathValidatorException {
+		switch (status.getStatus()) {
+		case GOOD:
+			nextUpdate.update(status.getNextUpdate());
+			break;
+		case REVOKED:
+			throw new CertPathValidatorException("The certificate " + cert.getSubjectDN().getName() + " is revoked by OCSP: " + status);
+		default:
+			throw new CertPathValidatorException("The certificate " + cert.getSubjectDN().getName() + " status is unknown to OCSP: " + status);
+		}
+	}
+
+	/**
+	 * @return самый ранний nextUpdate полученных статусов (или null)
+	 */
+	public Date getNextUpdate() {
+		return nextUpdate.get();
+	}
+}
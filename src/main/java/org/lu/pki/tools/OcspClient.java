@@ -0,0 +1,438 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.CertificateID;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPException;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPReqBuilder;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.cert.ocsp.SingleResp;
+import org.bouncycastle.operator.ContentVerifierProvider;
+import org.bouncycastle.operator.DigestCalculator;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentVerifierProviderBuilder;
+import org.bouncycastle.operator.jcajce.JcaDigestCalculatorProviderBuilder;
+
+/**
+ * Клиент OCSP (RFC 2560) вместо встроенной в JVM проверки по ocsp.enable.
+ * Адреса OCSP-серверов берутся из AuthorityInformationAccess сертификата, серверы перебираются по порядку.
+ * Подпись ответа проверяется ключом издателя сертификата или делегированного им OCSP-сервера (id-kp-OCSPSigning).
+ * Статусы кэшируются до nextUpdate ответа ({@link OcspResponseCache}). Nonce не используется, т.к. ответ кэшируется.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class OcspClient {
+
+	private static final Logger LOG = Logger.getLogger(OcspClient.class.getName());
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+	private static final long MAX_CLOCK_SKEW_MILLIS = 5 * 60 * 1000L;
+
+	private static final int MAX_RESPONSE_SIZE = 1024 * 1024;
+
+	private static final String OCSP_REQUEST_CONTENT_TYPE = "application/ocsp-request";
+
+	private static final String OCSP_RESPONSE_CONTENT_TYPE = "application/ocsp-response";
+
+	private static final String OCSP_SIGNING_EKU_OID = "1.3.6.1.5.5.7.3.9";
+
+	/**
+	 * Запрос статуса одного сертификата.
+	 */
+	static final class CertRequest {
+		final X509Certificate cert;
+		final X509Certificate issuerCert;
+		final CertificateID certId;
+		final String key;
+
+		CertRequest(X509Certificate cert, X509Certificate issuerCert, CertificateID certId) {
+			this.cert = cert;
+			this.issuerCert = issuerCert;
+			this.certId = certId;
+			this.key = certIdKey(certId);
+		}
+	}
+
+	private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+	private volatile String signatureProvider = null;
+
+	private volatile OcspResponseCache cache = new OcspResponseCache(OcspResponseCache.DEFAULT_MAX_SIZE);
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final SingleFlight<String, OcspStatus> inFlight = new SingleFlight<String, OcspStatus>();
+
+	/**
+	 * Статус сертификата (из кэша или от OCSP-сервера).
+	 * @param cert - проверяемый сертификат
+	 * @param issuerCert - сертификат издателя
+	 * @return статус
+	 * @throws IOException - ни один OCSP-сервер не доступен
+	 * @throws CertificateVerificationException - в сертификате нет адреса OCSP или ответ сервера некорректен
+	 */
+	public OcspStatus getStatus(X509Certificate cert, X509Certificate issuerCert) throws IOException, CertificateVerificationException {
+		final List<String> urls = CertificateMetadata.get(cert).getOcspUrls();
+		if (urls.isEmpty()) {
+			throw new CertificateVerificationException("Certificate " + cert.getSubjectDN().getName() + " doesn't have OCSP url");
+		}
+		final CertRequest request = newRequest(cert, issuerCert);
+		final Date now = new Date();
+		OcspStatus cached = getCachedStatus(request, now);
+		if (cached != null) {
+			return cached;
+		}
+		// одновременные запросы статуса одного сертификата ждут один ответ
+		try {
+			return inFlight.execute(request.key, new Callable<OcspStatus>() {
+				@Override
+				public OcspStatus call() throws Exception {
+					return fetchStatus(request, urls, now);
+				}
+			});
+		} catch (IOException e) {
+			throw e;
+		} catch (CertificateVerificationException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new CertificateVerificationException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Запрос статуса с перебором адресов OCSP-серверов.
+	 */
+	private OcspStatus fetchStatus(CertRequest request, List<String> urls, Date now) throws IOException, CertificateVerificationException {
+		X509Certificate cert = request.cert;
+		IOException lastProblem = null;
+		for (String url : urls) {
+			try {
+				OcspStatus status = query(url, Collections.singletonList(request), now).get(request.key);
+				if (status == null) {
+					throw new CertificateVerificationException("OCSP response from " + url + " doesn't contain status of " + cert.getSubjectDN().getName());
+				}
+				return status;
+			} catch (IOException connectionProblem) {
+				LOG.severe("Problem occured with OCSP " + url + " because " + connectionProblem.getMessage() + " and we going th the next OCSP url... (if failorev available)");
+				lastProblem = connectionProblem;
+			}
+		}
+		throw lastProblem;
+	}
+
+	/**
+	 * @param request - запрос статуса
+	 * @param now - текущее время
+	 * @return статус из кэша или null
+	 */
+	OcspStatus getCachedStatus(CertRequest request, Date now) {
+		final OcspResponseCache statusCache = cache;
+		if (statusCache == null) {
+			return null;
+		}
+		OcspStatus cached = statusCache.get(request.key, now);
+		if (cached != null && LOG.isLoggable(Level.FINE)) {
+			LOG.fine("OCSP status of " + request.cert.getSubjectDN().getName() + " taken from cache: " + cached);
+		}
+		return cached;
+	}
+
+	/**
+	 * Подготовка CertID для сертификата.
+	 * @param cert
+	 * @param issuerCert
+	 * @return запрос статуса
+	 * @throws CertificateVerificationException
+	 */
+	static CertRequest newRequest(X509Certificate cert, X509Certificate issuerCert) throws CertificateVerificationException {
+		try {
+			DigestCalculator sha1 = new JcaDigestCalculatorProviderBuilder().build().get(CertificateID.HASH_SHA1);
+			CertificateID certId = new CertificateID(sha1, new JcaX509CertificateHolder(issuerCert), cert.getSerialNumber());
+			return new CertRequest(cert, issuerCert, certId);
+		} catch (OperatorCreationException e) {
+			throw new CertificateVerificationException("OCSP CertID can't be created for " + cert.getSubjectDN().getName() + ". " + e.getMessage(), e);
+		} catch (OCSPException e) {
+			throw new CertificateVerificationException("OCSP CertID can't be created for " + cert.getSubjectDN().getName() + ". " + e.getMessage(), e);
+		} catch (CertificateException e) {
+			throw new CertificateVerificationException("OCSP CertID can't be created for " + cert.getSubjectDN().getName() + ". " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Ключ кэша для CertID.
+	 * @param certId
+	 * @return hex(issuerNameHash):hex(issuerKeyHash):serial
+	 */
+	public static String certIdKey(CertificateID certId) {
+		return PKIXUtils.toHex(certId.getIssuerNameHash()) + ':' + PKIXUtils.toHex(certId.getIssuerKeyHash()) + ':' + certId.getSerialNumber().toString(16);
+	}
+
+	/**
+	 * Один запрос к OCSP-серверу со всеми CertID. Полученные статусы помещаются в кэш.
+	 * @param url - адрес OCSP-сервера
+	 * @param requests - запросы статуса
+	 * @param now - текущее время
+	 * @return статусы по ключу CertID (статусы, которых нет в ответе, отсутствуют)
+	 * @throws IOException - сервер не доступен или временно не может ответить (tryLater, internalError)
+	 * @throws CertificateVerificationException - ответ некорректен или не подписан уполномоченным сервером
+	 */
+	Map<String, OcspStatus> query(String url, List<CertRequest> requests, Date now) throws IOException, CertificateVerificationException {
+		OCSPReqBuilder builder = new OCSPReqBuilder();
+		for (CertRequest request : requests) {
+			builder.addRequest(request.certId);
+		}
+		byte[] responseBytes;
+		try {
+			OCSPReq ocspReq = builder.build();
+			requestCount.incrementAndGet();
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("OCSP request to " + url + " for " + requests.size() + " certificate(s)");
+			}
+			responseBytes = post(url, ocspReq.getEncoded());
+		} catch (OCSPException e) {
+			throw new CertificateVerificationException("OCSP request can't be built. " + e.getMessage(), e);
+		}
+
+		BasicOCSPResp basic;
+		try {
+			OCSPResp resp = new OCSPResp(responseBytes);
+			int status = resp.getStatus();
+			if (status == OCSPRespBuilder.TRY_LATER || status == OCSPRespBuilder.INTERNAL_ERROR) {
+				throw new IOException("OCSP responder " + url + " returned status " + status);
+			}
+			if (status != OCSPRespBuilder.SUCCESSFUL) {
+				throw new CertificateVerificationException("OCSP responder " + url + " returned status " + status);
+			}
+			basic = (BasicOCSPResp) resp.getResponseObject();
+		} catch (OCSPException e) {
+			throw new CertificateVerificationException("OCSP response from " + url + " can't be parsed. " + e.getMessage(), e);
+		} catch (ClassCastException e) {
+			throw new CertificateVerificationException("OCSP response from " + url + " is not a basic OCSP response", e);
+		}
+
+		// ответ должен быть подписан уполномоченным сервером для каждого издателя в запросе
+		Set<X509Certificate> issuers = new LinkedHashSet<X509Certificate>();
+		for (CertRequest request : requests) {
+			issuers.add(request.issuerCert);
+		}
+		for (X509Certificate issuerCert : issuers) {
+			verifyResponseSignature(basic, issuerCert, url, now);
+		}
+
+		Map<String, SingleResp> responses = new HashMap<String, SingleResp>();
+		for (SingleResp singleResp : basic.getResponses()) {
+			responses.put(certIdKey(singleResp.getCertID()), singleResp);
+		}
+		Map<String, OcspStatus> statuses = new HashMap<String, OcspStatus>();
+		final OcspResponseCache statusCache = cache;
+		for (CertRequest request : requests) {
+			SingleResp singleResp = responses.get(request.key);
+			if (singleResp == null) {
+				LOG.warning("OCSP response from " + url + " doesn't contain status of " + request.cert.getSubjectDN().getName());
+				continue;
+			}
+			OcspStatus status = toStatus(singleResp, url, now);
+			statuses.put(request.key, status);
+			if (statusCache != null) {
+				statusCache.put(request.key, status);
+			}
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("OCSP status of " + request.cert.getSubjectDN().getName() + ": " + status);
+			}
+		}
+		return statuses;
+	}
+
+	private static OcspStatus toStatus(SingleResp singleResp, String url, Date now) throws CertificateVerificationException {
+		Date thisUpdate = singleResp.getThisUpdate();
+		Date nextUpdate = singleResp.getNextUpdate();
+		if (thisUpdate.getTime() > now.getTime() + MAX_CLOCK_SKEW_MILLIS) {
+			throw new CertificateVerificationException("OCSP response from " + url + " is not yet valid. This update " + thisUpdate);
+		}
+		if (nextUpdate != null && nextUpdate.getTime() < now.getTime() - MAX_CLOCK_SKEW_MILLIS) {
+			throw new CertificateVerificationException("OCSP response from " + url + " is out of date. Next update " + nextUpdate);
+		}
+		CertificateStatus certStatus = singleResp.getCertStatus();
+		if (certStatus == CertificateStatus.GOOD) {
+			return new OcspStatus(OcspStatus.Status.GOOD, thisUpdate, nextUpdate, null, -1, url);
+		} else if (certStatus instanceof RevokedStatus) {
+			RevokedStatus revoked = (RevokedStatus) certStatus;
+			return new OcspStatus(OcspStatus.Status.REVOKED, thisUpdate, nextUpdate, revoked.getRevocationTime(), revoked.hasRevocationReason() ? revoked.getRevocationReason() : -1, url);
+		} else {
+			return new OcspStatus(OcspStatus.Status.UNKNOWN, thisUpdate, nextUpdate, null, -1, url);
+		}
+	}
+
+	/**
+	 * Ответ подписан издателем сертификата или делегированным OCSP-сервером, сертификат которого выпущен издателем и содержит id-kp-OCSPSigning.
+	 */
+	private void verifyResponseSignature(BasicOCSPResp basic, X509Certificate issuerCert, String url, Date now) throws CertificateVerificationException {
+		try {
+			if (basic.isSignatureValid(verifierProvider(issuerCert))) {
+				return;
+			}
+		} catch (Exception e) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("OCSP response from " + url + " is not signed by " + issuerCert.getSubjectDN().getName() + ": " + e.getMessage());
+			}
+		}
+		X509CertificateHolder[] certs = basic.getCerts();
+		if (certs != null) {
+			JcaX509CertificateConverter converter = new JcaX509CertificateConverter();
+			for (X509CertificateHolder holder : certs) {
+				try {
+					X509Certificate responderCert = converter.getCertificate(holder);
+					if (!responderCert.getIssuerX500Principal().equals(issuerCert.getSubjectX500Principal())) {
+						continue;
+					}
+					List<String> eku = responderCert.getExtendedKeyUsage();
+					if (eku == null || !eku.contains(OCSP_SIGNING_EKU_OID)) {
+						continue;
+					}
+					responderCert.checkValidity(now);
+					if (signatureProvider != null) {
+						responderCert.verify(issuerCert.getPublicKey(), signatureProvider);
+					} else {
+						responderCert.verify(issuerCert.getPublicKey());
+					}
+					if (basic.isSignatureValid(verifierProvider(responderCert))) {
+						if (LOG.isLoggable(Level.FINE)) {
+							LOG.fine("OCSP response from " + url + " signed by delegated responder " + responderCert.getSubjectDN().getName());
+						}
+						return;
+					}
+				} catch (Exception e) {
+					if (LOG.isLoggable(Level.FINE)) {
+						LOG.fine(e.getClass().getName() + " problem with OCSP responder certificate " + holder.getSubject() + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+		throw new CertificateVerificationException("OCSP response from " + url + " signature invalid or responder is not authorized by " + issuerCert.getSubjectDN().getName());
+	}
+
+	private ContentVerifierProvider verifierProvider(X509Certificate cert) throws OperatorCreationException {
+		JcaContentVerifierProviderBuilder builder = new JcaContentVerifierProviderBuilder();
+		String provider = signatureProvider;
+		if (provider != null) {
+			builder.setProvider(provider);
+		}
+		return builder.build(cert);
+	}
+
+	private byte[] post(String url, byte[] request) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(url).openConnection();
+		try {
+			con.setConnectTimeout(connectTimeoutMillis);
+			con.setReadTimeout(readTimeoutMillis);
+			con.setUseCaches(false);
+			con.setDoOutput(true);
+			con.setRequestMethod("POST");
+			con.setRequestProperty("Content-Type", OCSP_REQUEST_CONTENT_TYPE);
+			con.setRequestProperty("Accept", OCSP_RESPONSE_CONTENT_TYPE);
+			con.setFixedLengthStreamingMode(request.length);
+			OutputStream out = con.getOutputStream();
+			try {
+				out.write(request);
+			} finally {
+				out.close();
+			}
+			int code = con.getResponseCode();
+			if (code != HttpURLConnection.HTTP_OK) {
+				throw new IOException("OCSP responder " + url + " returned HTTP " + code);
+			}
+			InputStream in = con.getInputStream();
+			try {
+				ByteArrayOutputStream response = new ByteArrayOutputStream(2048);
+				byte[] buf = new byte[4096];
+				int n;
+				while ((n = in.read(buf)) != -1) {
+					response.write(buf, 0, n);
+					if (response.size() > MAX_RESPONSE_SIZE) {
+						throw new IOException("OCSP response from " + url + " is too large");
+					}
+				}
+				return response.toByteArray();
+			} finally {
+				in.close();
+			}
+		} finally {
+			con.disconnect();
+		}
+	}
+
+	/**
+	 * Настройка кэша статусов.
+	 * @param maxSize - максимальное количество статусов в кэше. 0 - кэш отключен.
+	 */
+	public void setResponseCache(int maxSize) {
+		OcspResponseCache old = cache;
+		cache = maxSize > 0 ? new OcspResponseCache(maxSize) : null;
+		if (old != null) {
+			old.invalidateAll();
+		}
+	}
+
+	/**
+	 * @return кэш статусов или null, если кэш отключен.
+	 */
+	public OcspResponseCache getResponseCache() {
+		return cache;
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * @param signatureProvider - провайдер для проверки подписи ответа (например, JCP для ГОСТ) или null
+	 */
+	public void setSignatureProvider(String signatureProvider) {
+		this.signatureProvider = signatureProvider;
+	}
+
+	/**
+	 * @return количество запросов к OCSP-серверам
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+}
@@ -0,0 +1,105 @@
+package org.lu.pki.tools;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Кэш статусов OCSP по CertID (хэши имени и ключа издателя + серийный номер).
+ * Статус выдается из кэша до nextUpdate ответа. Ответы без nextUpdate не кэшируются.
+ * Размер кэша ограничен, вытесняются давно неиспользованные статусы.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class OcspResponseCache {
+
+	public static final int DEFAULT_MAX_SIZE = 4096;
+
+	private final int maxSize;
+
+	private final LinkedHashMap<String, OcspStatus> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize - максимальное количество статусов в кэше
+	 */
+	public OcspResponseCache(final int maxSize) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		this.maxSize = maxSize;
+		this.entries = new LinkedHashMap<String, OcspStatus>(16, 0.75f, true) { // access-order -> LRU
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, OcspStatus> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param certId - ключ CertID (см. {@link OcspClient#certIdKey(org.bouncycastle.cert.ocsp.CertificateID)})
+	 * @param now - текущее время
+	 * @return статус или null, если статуса нет в кэше или наступил его nextUpdate.
+	 */
+	public OcspStatus get(String certId, Date now) {
+		OcspStatus status;
+		synchronized (this) {
+			status = entries.get(certId);
+			if (status != null && !now.before(status.getNextUpdate())) {
+				entries.remove(certId);
+				status = null;
+			}
+		}
+		if (status == null) {
+			misses.incrementAndGet();
+		} else {
+			hits.incrementAndGet();
+		}
+		return status;
+	}
+
+	/**
+	 * @param certId - ключ CertID
+	 * @param status - статус. Без nextUpdate не кэшируется.
+	 */
+	public void put(String certId, OcspStatus status) {
+		if (status.getNextUpdate() == null) {
+			return;
+		}
+		synchronized (this) {
+			entries.put(certId, status);
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "OcspResponseCache [size=" + size() + "/" + maxSize + ", hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+}
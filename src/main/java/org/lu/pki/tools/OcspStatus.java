@@ -0,0 +1,88 @@
+package org.lu.pki.tools;
+
+import java.util.Date;
+
+/**
+ * Статус сертификата, полученный от OCSP-сервера (SingleResponse).
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class OcspStatus {
+
+	public static enum Status {
+		GOOD, REVOKED, UNKNOWN
+	}
+
+	private final Status status;
+
+	private final Date thisUpdate;
+
+	private final Date nextUpdate;
+
+	private final Date revocationTime;
+
+	private final int revocationReason;
+
+	private final String responderUrl;
+
+	/**
+	 * @param status
+	 * @param thisUpdate
+	 * @param nextUpdate - может быть null
+	 * @param revocationTime - только для REVOKED
+	 * @param revocationReason - CRLReason или -1, если причина не указана
+	 * @param responderUrl - адрес OCSP-сервера
+	 */
+	public OcspStatus(Status status, Date thisUpdate, Date nextUpdate, Date revocationTime, int revocationReason, String responderUrl) {
+		this.status = status;
+		this.thisUpdate = thisUpdate;
+		this.nextUpdate = nextUpdate;
+		this.revocationTime = revocationTime;
+		this.revocationReason = revocationReason;
+		this.responderUrl = responderUrl;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isGood() {
+		return status == Status.GOOD;
+	}
+
+	public boolean isRevoked() {
+		return status == Status.REVOKED;
+	}
+
+	public Date getThisUpdate() {
+		return thisUpdate;
+	}
+
+	/**
+	 * @return nextUpdate или null, если сервер его не указал (ответ не кэшируется).
+	 */
+	public Date getNextUpdate() {
+		return nextUpdate;
+	}
+
+	public Date getRevocationTime() {
+		return revocationTime;
+	}
+
+	/**
+	 * @return CRLReason или -1, если причина не указана
+	 */
+	public int getRevocationReason() {
+		return revocationReason;
+	}
+
+	public String getResponderUrl() {
+		return responderUrl;
+	}
+
+	@Override
+	public String toString() {
+		return status + (status == Status.REVOKED ? " at " + revocationTime + (revocationReason >= 0 ? ", reason " + revocationReason : "") : "") + " (" + responderUrl + ", this update " + thisUpdate + ", next update " + nextUpdate + ")";
+	}
+}
@@ -0,0 +1,384 @@
+package org.lu.pki.tools;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.cert.CRL;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509CRL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.IssuingDistributionPoint;
+import org.bouncycastle.x509.extension.X509ExtensionUtil;
+
+/**
+ * Каталог CRL для изолированных от сети контуров, куда CRL доставляются копированием файлов.
+ * <br>Все файлы каталога (DER или PEM, в файле может быть несколько CRL) загружаются в память и сопоставляются:
+ * <ul>
+ * <li>с адресами CRLDP из расширения IssuingDistributionPoint CRL;</li>
+ * <li>с последним сегментом адреса CRLDP (файл ca.crl для http://host/path/ca.crl);</li>
+ * <li>с именем издателя CRL (только CRL без IssuingDistributionPoint, т.е. на все сертификаты издателя).</li>
+ * </ul>
+ * CRL с IssuingDistributionPoint, найденный по адресу, используется как есть. В остальных случаях используется
+ * самый новый из CRL, найденного по адресу (или имени файла), и CRL издателя.
+ * Если для одного ключа есть несколько CRL, выбирается CRL с большим номером (при равных номерах - с более поздним thisUpdate).
+ * Delta CRL сопоставляются отдельно от полных.</br>
+ * <br>Изменения каталога отслеживаются {@link WatchService} в daemon-потоке: новые и измененные файлы перечитываются,
+ * удаленные - исключаются. Файл, который не удалось разобрать (например, копирование еще не закончено), не заменяет
+ * ранее загруженную версию.</br>
+ * <br>Подпись и даты CRL проверяет {@link CertificateVerifier}, поэтому каталог не обязан быть доверенным.</br>
+ * <pre>
+ * OfflineCrlDirectory crls = new OfflineCrlDirectory(new File("/opt/pki/crl"));
+ * CertificateVerifier.setCrlSource(crls);
+ * ...
+ * crls.close();
+ * </pre>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class OfflineCrlDirectory implements CrlSource, Closeable {
+
+	private static final Logger LOG = Logger.getLogger(OfflineCrlDirectory.class.getName());
+
+	/**
+	 * Задержка перечитывания после события: файл может еще копироваться.
+	 */
+	public static final long DEFAULT_SETTLE_MILLIS = 500;
+
+	private static final AtomicLong WATCHERS = new AtomicLong();
+
+	/**
+	 * Сопоставление CRL каталога (неизменяемое, заменяется целиком при перечитывании).
+	 */
+	private static final class Mapping {
+		private final Map<String, X509CRL> byUrl = new HashMap<String, X509CRL>();
+		private final Map<String, X509CRL> byFileName = new HashMap<String, X509CRL>();
+		private final Map<X500Principal, X509CRL> byIssuer = new HashMap<X500Principal, X509CRL>();
+		private final Map<String, X509CRL> deltaByUrl = new HashMap<String, X509CRL>();
+		private final Map<String, X509CRL> deltaByFileName = new HashMap<String, X509CRL>();
+		private final Map<X500Principal, X509CRL> deltaByIssuer = new HashMap<X500Principal, X509CRL>();
+		private int count = 0;
+	}
+
+	private final File directory;
+
+	private final WatchService watchService;
+
+	private final Thread watcher;
+
+	private final Map<String, List<X509CRL>> files = new HashMap<String, List<X509CRL>>(); // имя файла -> CRL файла
+
+	private volatile Mapping mapping = new Mapping();
+
+	private volatile long settleMillis = DEFAULT_SETTLE_MILLIS;
+
+	private final AtomicLong reloadCount = new AtomicLong();
+
+	/**
+	 * Загрузка всех CRL каталога и запуск отслеживания изменений.
+	 * @param directory - каталог CRL
+	 * @throws IOException - каталог не существует или не может отслеживаться
+	 */
+	public OfflineCrlDirectory(File directory) throws IOException {
+		if (!directory.isDirectory()) {
+			throw new IOException("CRL directory " + directory + " doesn't exist");
+		}
+		this.directory = directory;
+		Path path = directory.toPath();
+		this.watchService = FileSystems.getDefault().newWatchService();
+		path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+		reload();
+		this.watcher = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				watch();
+			}
+		}, "offline-crl-watch-" + WATCHERS.incrementAndGet());
+		watcher.setDaemon(true);
+		watcher.start();
+	}
+
+	@Override
+	public X509CRL getCRL(String url, X500Principal issuer) {
+		final Mapping current = mapping;
+		return find(current.byUrl, current.byFileName, current.byIssuer, url, issuer);
+	}
+
+	@Override
+	public X509CRL getDeltaCRL(String url, X500Principal issuer) {
+		final Mapping current = mapping;
+		return find(current.deltaByUrl, current.deltaByFileName, current.deltaByIssuer, url, issuer);
+	}
+
+	private static X509CRL find(Map<String, X509CRL> byUrl, Map<String, X509CRL> byFileName, Map<X500Principal, X509CRL> byIssuer, String url, X500Principal issuer) {
+		X509CRL crl = byUrl.get(url);
+		if (crl == null) {
+			crl = byFileName.get(lastSegment(url));
+		}
+		if (crl != null && !crl.getIssuerX500Principal().equals(issuer)) {
+			crl = null;
+		}
+		if (crl != null && hasDistributionPoint(crl)) {
+			return crl; // CRL части сертификатов издателя
+		}
+		X509CRL issuerCrl = byIssuer.get(issuer);
+		return crl == null || (issuerCrl != null && isNewer(issuerCrl, crl)) ? issuerCrl : crl;
+	}
+
+	/**
+	 * Перечитывание всех файлов каталога.
+	 */
+	public void reload() {
+		File[] list = directory.listFiles();
+		Set<String> names = new HashSet<String>();
+		if (list != null) {
+			for (File file : list) {
+				if (file.isFile()) {
+					names.add(file.getName());
+				}
+			}
+		}
+		synchronized (files) {
+			files.keySet().retainAll(names);
+			for (String name : names) {
+				load(name);
+			}
+			rebuild();
+		}
+	}
+
+	/**
+	 * Перечитывание одного файла (или исключение удаленного).
+	 * @return true, если набор CRL изменился
+	 */
+	private boolean load(String name) {
+		File file = new File(directory, name);
+		if (!file.isFile()) {
+			return files.remove(name) != null;
+		}
+		try {
+			List<X509CRL> crls = parse(file);
+			files.put(name, crls);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Offline CRL file " + file + " loaded: " + crls.size() + " CRL(s)");
+			}
+			return true;
+		} catch (IOException e) {
+			LOG.warning("Offline CRL file " + file + " can't be read: " + e.getMessage() + ". Previous version kept.");
+		} catch (CertificateException e) {
+			LOG.warning("Offline CRL file " + file + " is not a CRL: " + e.getMessage() + ". Previous version kept.");
+		} catch (CRLException e) {
+			LOG.warning("Offline CRL file " + file + " is malformed: " + e.getMessage() + ". Previous version kept.");
+		}
+		return false;
+	}
+
+	private static List<X509CRL> parse(File file) throws IOException, CertificateException, CRLException {
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		try {
+			Collection<? extends CRL> parsed = CertificateFactory.getInstance("X.509").generateCRLs(in);
+			List<X509CRL> crls = new ArrayList<X509CRL>(parsed.size());
+			for (CRL crl : parsed) {
+				crls.add((X509CRL) crl);
+			}
+			if (crls.isEmpty()) {
+				throw new CRLException("no CRL in file");
+			}
+			return crls;
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Построение нового сопоставления из загруженных файлов (вызывается под блокировкой files).
+	 */
+	private void rebuild() {
+		Mapping rebuilt = new Mapping();
+		for (Map.Entry<String, List<X509CRL>> entry : files.entrySet()) {
+			String fileName = entry.getKey().toLowerCase(Locale.ENGLISH);
+			for (X509CRL crl : entry.getValue()) {
+				boolean delta = PKIXUtils.isDeltaCRL(crl);
+				put(delta ? rebuilt.deltaByFileName : rebuilt.byFileName, fileName, crl);
+				if (!hasDistributionPoint(crl)) {
+					put(delta ? rebuilt.deltaByIssuer : rebuilt.byIssuer, crl.getIssuerX500Principal(), crl);
+				}
+				for (String url : getDistributionPointUrls(crl)) {
+					put(delta ? rebuilt.deltaByUrl : rebuilt.byUrl, url, crl);
+				}
+				rebuilt.count++;
+			}
+		}
+		mapping = rebuilt;
+		reloadCount.incrementAndGet();
+		LOG.info("Offline CRL directory " + directory + ": " + rebuilt.count + " CRL(s) in " + files.size() + " file(s)");
+	}
+
+	/**
+	 * Сохранение более нового CRL для ключа.
+	 */
+	private static <K> void put(Map<K, X509CRL> map, K key, X509CRL crl) {
+		X509CRL current = map.get(key);
+		if (current == null || isNewer(crl, current)) {
+			map.put(key, crl);
+		}
+	}
+
+	private static boolean isNewer(X509CRL crl, X509CRL than) {
+		try {
+			BigInteger number = PKIXUtils.getCrlNumber(crl);
+			BigInteger thanNumber = PKIXUtils.getCrlNumber(than);
+			if (number != null && thanNumber != null && number.compareTo(thanNumber) != 0) {
+				return number.compareTo(thanNumber) > 0;
+			}
+		} catch (IOException e) {
+			LOG.fine("CRL number is malformed: " + e.getMessage());
+		}
+		return crl.getThisUpdate().after(than.getThisUpdate());
+	}
+
+	private static boolean hasDistributionPoint(X509CRL crl) {
+		return crl.getExtensionValue("2.5.29.28") != null; // IssuingDistributionPoint
+	}
+
+	/**
+	 * Адреса из IssuingDistributionPoint CRL.
+	 */
+	private static List<String> getDistributionPointUrls(X509CRL crl) {
+		byte[] value = crl.getExtensionValue("2.5.29.28"); // IssuingDistributionPoint
+		if (value == null) {
+			return Collections.emptyList();
+		}
+		List<String> urls = new ArrayList<String>(2);
+		try {
+			DistributionPointName dpn = IssuingDistributionPoint.getInstance(X509ExtensionUtil.fromExtensionValue(value)).getDistributionPoint();
+			if (dpn != null && dpn.getType() == DistributionPointName.FULL_NAME) {
+				for (GeneralName name : GeneralNames.getInstance(dpn.getName()).getNames()) {
+					if (name.getTagNo() == GeneralName.uniformResourceIdentifier) {
+						urls.add(name.getName().toString());
+					}
+				}
+			}
+		} catch (IOException e) {
+			LOG.warning("IssuingDistributionPoint of CRL " + crl.getIssuerX500Principal() + " is malformed: " + e.getMessage());
+		} catch (IllegalArgumentException e) {
+			LOG.warning("IssuingDistributionPoint of CRL " + crl.getIssuerX500Principal() + " is malformed: " + e.getMessage());
+		}
+		return urls;
+	}
+
+	private static String lastSegment(String url) {
+		int end = url.length();
+		int query = url.indexOf('?');
+		if (query >= 0) {
+			end = query;
+		}
+		return url.substring(url.lastIndexOf('/', end - 1) + 1, end).toLowerCase(Locale.ENGLISH);
+	}
+
+	private void watch() {
+		try {
+			while (true) {
+				WatchKey key = watchService.take();
+				Thread.sleep(settleMillis); // копирование файла могло еще не закончиться
+				Set<String> changed = new HashSet<String>();
+				boolean overflow = false;
+				do {
+					for (WatchEvent<?> event : key.pollEvents()) {
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+							overflow = true;
+						} else {
+							changed.add(((Path) event.context()).getFileName().toString());
+						}
+					}
+					if (!key.reset()) {
+						LOG.severe("Offline CRL directory " + directory + " is no longer watched");
+						return;
+					}
+					key = watchService.poll(); // события, пришедшие за время ожидания
+				} while (key != null);
+				if (overflow) {
+					reload();
+					continue;
+				}
+				synchronized (files) {
+					boolean modified = false;
+					for (String name : changed) {
+						modified |= load(name);
+					}
+					if (modified) {
+						rebuild();
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ClosedWatchServiceException e) {
+			LOG.fine("Offline CRL directory " + directory + " watcher stopped");
+		}
+	}
+
+	/**
+	 * @param settleMillis - задержка перечитывания после изменения файла
+	 */
+	public void setSettleMillis(long settleMillis) {
+		this.settleMillis = settleMillis;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+
+	/**
+	 * @return количество загруженных CRL
+	 */
+	public int size() {
+		return mapping.count;
+	}
+
+	/**
+	 * @return количество перестроений сопоставления (для мониторинга и тестов)
+	 */
+	public long getReloadCount() {
+		return reloadCount.get();
+	}
+
+	/**
+	 * Остановка отслеживания изменений. Загруженные CRL остаются доступны.
+	 */
+	@Override
+	public void close() throws IOException {
+		watchService.close();
+		watcher.interrupt();
+	}
+}
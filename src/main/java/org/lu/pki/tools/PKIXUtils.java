@@ -10,8 +10,11 @@ import java.security.*;
 import java.security.cert.*;
 import java.security.cert.Certificate;
 import java.util.ArrayList;
-import java.util.Enumeration;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -33,6 +36,18 @@ public class PKIXUtils {
 	private static final String COM_SUN_SECURITY_ENABLE_CRLDP = "com.sun.security.enableCRLDP";
 	private static final String OCSP_ENABLE = "ocsp.enable";
 	private static final String CRLDP_EXTENSION_OID = "2.5.29.31";
+	private static final String FRESHEST_CRL_EXTENSION_OID = "2.5.29.46";
+	private static final String CRL_NUMBER_EXTENSION_OID = "2.5.29.20";
+	private static final String DELTA_CRL_INDICATOR_EXTENSION_OID = "2.5.29.27";
+	private static final String FINGERPRINT_DIGEST_ALG = "SHA-256";
+	private static final String AUTHORITY_KEY_IDENTIFIER_OID = "2.5.29.35";
+	
+	private static final int SELF_SIGNED_CACHE_MAX_SIZE = 10000;
+	
+	/**
+	 * Результаты проверки на самоподписанность: fingerprint -> self-signed
+	 */
+	private static final ConcurrentMap<String, Boolean> selfSignedCache = new ConcurrentHashMap<String, Boolean>();
 
 	/**
 	 * Extracts all CRL distribution point URLs from the
@@ -40,7 +55,49 @@ public class PKIXUtils {
 	 * distribution point extension is unavailable, returns an empty list.
 	 */
 	public static List<String> getCrlDistributionPoints(X509Certificate cert) throws CertificateParsingException, IOException {
-		byte[] crldpExt = cert.getExtensionValue(CRLDP_EXTENSION_OID);
+		return getDistributionPointUrls(cert.getExtensionValue(CRLDP_EXTENSION_OID));
+	}
+
+	/**
+	 * Адреса delta CRL из расширения FreshestCRL (2.5.29.46) сертификата или базового CRL.
+	 * @param certOrCrl - X509Certificate или X509CRL
+	 * @return список URL (пустой, если расширения нет)
+	 * @throws IOException - расширение повреждено
+	 */
+	public static List<String> getFreshestCrlUrls(java.security.cert.X509Extension certOrCrl) throws IOException {
+		return getDistributionPointUrls(certOrCrl.getExtensionValue(FRESHEST_CRL_EXTENSION_OID));
+	}
+
+	/**
+	 * @return номер CRL (расширение CRLNumber) или null, если номера нет
+	 * @throws IOException - расширение повреждено
+	 */
+	public static BigInteger getCrlNumber(X509CRL crl) throws IOException {
+		return getIntegerExtension(crl, CRL_NUMBER_EXTENSION_OID);
+	}
+
+	/**
+	 * @return номер базового CRL из DeltaCRLIndicator или null, если это не delta CRL
+	 * @throws IOException - расширение повреждено
+	 */
+	public static BigInteger getBaseCrlNumber(X509CRL crl) throws IOException {
+		return getIntegerExtension(crl, DELTA_CRL_INDICATOR_EXTENSION_OID);
+	}
+
+	public static boolean isDeltaCRL(X509CRL crl) {
+		return crl.getExtensionValue(DELTA_CRL_INDICATOR_EXTENSION_OID) != null;
+	}
+
+	private static BigInteger getIntegerExtension(X509CRL crl, String oid) throws IOException {
+		byte[] value = crl.getExtensionValue(oid);
+		if (value == null) {
+			return null;
+		}
+		ASN1OctetString octets = ASN1OctetString.getInstance(ASN1Primitive.fromByteArray(value));
+		return DERInteger.getInstance(ASN1Primitive.fromByteArray(octets.getOctets())).getValue();
+	}
+
+	private static List<String> getDistributionPointUrls(byte[] crldpExt) throws IOException {
 		if (crldpExt == null) {
 			List<String> emptyList = new ArrayList<String>();
 			return emptyList;
@@ -109,6 +166,39 @@ public class PKIXUtils {
 		return ocspLocationUrls;
 	}
 
+	/**
+	 * Адреса OCSP-серверов из AuthorityInformationAccess (только accessMethod id-ad-ocsp, без caIssuers)
+	 * 
+	 * @param cert
+	 *            X509Certificate, который возможно содержит адрес OCSP
+	 * @return List<String> of OSCP URLs
+	 */
+	public static List<String> getOcspUrls(X509Certificate cert) {
+		List<String> ocspLocationUrls = new ArrayList<String>();
+		byte[] value = cert.getExtensionValue(AUTHORITY_INFO_ACCESS_OID);
+		if (value == null) {
+			return ocspLocationUrls; // extension unavailable
+		}
+		AuthorityInformationAccess authorityInformationAccess;
+		try {
+			DEROctetString oct = (DEROctetString) (new ASN1InputStream(new ByteArrayInputStream(value)).readObject());
+			authorityInformationAccess = AuthorityInformationAccess.getInstance(new ASN1InputStream(oct.getOctets()).readObject());
+		} catch (IOException e) {
+			throw new RuntimeException("IO error: " + e.getMessage(), e);
+		}
+		AccessDescription[] accessDescriptions = authorityInformationAccess.getAccessDescriptions();
+		if (accessDescriptions == null) {
+			return ocspLocationUrls;
+		}
+		for (AccessDescription accessDescription : accessDescriptions) {
+			GeneralName gn = accessDescription.getAccessLocation();
+			if (AccessDescription.id_ad_ocsp.equals(accessDescription.getAccessMethod()) && gn.getTagNo() == GeneralName.uniformResourceIdentifier) {
+				ocspLocationUrls.add(DERIA5String.getInstance(gn.getName()).getString());
+			}
+		}
+		return ocspLocationUrls;
+	}
+
 	/**
 	 * Загрузка CRL через url
 	 * @param crlURL
@@ -119,8 +209,7 @@ public class PKIXUtils {
 	 * @throws CRLException
 	 */
 	public static X509CRL downloadCRLFromWebDP(String crlURL) throws MalformedURLException, IOException, CertificateException, CRLException {
-		URL url = new URL(crlURL);
-		InputStream crlStream = url.openStream();
+		InputStream crlStream = openCRLStream(crlURL);
 		try {
 			CertificateFactory cf = CertificateFactory.getInstance("X.509");
 			X509CRL crl = (X509CRL) cf.generateCRL(crlStream);
@@ -130,6 +219,18 @@ public class PKIXUtils {
 		}
 	}
 
+	/**
+	 * Открытие потока загрузки CRL через url (для потокового разбора, см. {@link StreamingCrlParser}).
+	 * Соединение с таймаутами, ответ в gzip распаковывается (см. {@link RevocationHttpFetcher}).
+	 * @param crlURL
+	 * @return поток DER-кодировки CRL. Закрывается вызывающим.
+	 * @throws MalformedURLException
+	 * @throws IOException
+	 */
+	public static InputStream openCRLStream(String crlURL) throws MalformedURLException, IOException {
+		return RevocationHttpFetcher.openStream(crlURL);
+	}
+
 	/**
 	 * Search given certificate in given key store.
 	 * 
@@ -141,37 +242,9 @@ public class PKIXUtils {
 	 */
 	public static boolean containsCertificateInStore(X509Certificate cert, KeyStore keyStore) {
 		boolean res = false;
-		BigInteger requestedSerialNumber = cert.getSerialNumber();
-		Enumeration<String> aliasesSet;
 		try {
-			aliasesSet = keyStore.aliases();
-
-			String aliasTmpValue = null;
-			Certificate certificateTmpValue = null;
-			X509Certificate x509CertTempValue = null;
-			// iterate over all certificates (X509 only) in key store
-			while (aliasesSet.hasMoreElements()) {
-				aliasTmpValue = aliasesSet.nextElement();
-				certificateTmpValue = keyStore.getCertificate(aliasTmpValue);
-				if (!isX509Certificate(certificateTmpValue)) { // don't accept
-																// not X509
-																// certificates
-					continue;
-				}
-				x509CertTempValue = (X509Certificate) certificateTmpValue;
-				if (x509CertTempValue.getSerialNumber().compareTo(requestedSerialNumber) == 0) { // we
-																									// found
-																									// this
-																									// cert
-																									// in
-																									// store
-																									// by
-																									// serial
-																									// number
-					res = true;
-					break;
-				}
-			}
+			// lookup by issuer and serial number in prebuilt index instead of iterating over all aliases
+			res = KeyStoreIndex.of(keyStore).contains(cert);
 		} catch (KeyStoreException e) {
 			LOG.log(Level.SEVERE, "Key store access problem Method 'containsCertificateInStore' failed. " + e.getMessage(), e);
 		}
@@ -200,29 +273,111 @@ public class PKIXUtils {
 	public static Certificate[] getAllCertificatesInStore(KeyStore keyStore) {
 		Certificate[] res = new Certificate[0];
 		try {
-			Enumeration<String> aliasesSet =  keyStore.aliases();
-			List<Certificate> certList = new ArrayList<Certificate>();
-			Certificate cert = null;
-			while (aliasesSet.hasMoreElements()) {
-				cert = keyStore.getCertificate(aliasesSet.nextElement());
-				if (!isX509Certificate(cert)) {
-					continue;
-				}
-				certList.add(cert);
-			}
+			Collection<X509Certificate> certList = KeyStoreIndex.of(keyStore).getCertificates();
 			if (certList.size() > 0) {
 				res = certList.toArray(new Certificate[0]);
 			}
 		} catch (KeyStoreException e) {
-			LOG.log(Level.SEVERE, "Key store access problem Method 'containsCertificateInStore' failed. " + e.getMessage(), e);
+			LOG.log(Level.SEVERE, "Key store access problem Method 'getAllCertificatesInStore' failed. " + e.getMessage(), e);
 		}
 		return res;
 	}
 	
+	/**
+	 * SHA-256 отпечаток сертификата в виде HEX-строки.
+	 * @param cert
+	 * @return отпечаток (верхний регистр, без разделителей)
+	 * @throws CertificateEncodingException
+	 */
+	public static String getFingerprint(X509Certificate cert) throws CertificateEncodingException {
+		try {
+			return toHex(DigestService.digest(FINGERPRINT_DIGEST_ALG, cert.getEncoded()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(FINGERPRINT_DIGEST_ALG + " not available", e);
+		}
+	}
+	
+	/**
+	 * Извлечение keyIdentifier из расширения SubjectKeyIdentifier (2.5.29.14).
+	 * @param cert
+	 * @return keyIdentifier или null, если расширение отсутствует или не разбирается.
+	 */
+	public static byte[] getSubjectKeyIdentifier(X509Certificate cert) {
+		byte[] skiExt = cert.getExtensionValue(CryptoUtils.SUBJECT_KEY_IDENTEFER_OID);
+		if (skiExt == null) {
+			return null;
+		}
+		try {
+			ASN1OctetString extOctets = ASN1OctetString.getInstance(ASN1Primitive.fromByteArray(skiExt));
+			return ASN1OctetString.getInstance(ASN1Primitive.fromByteArray(extOctets.getOctets())).getOctets();
+		} catch (Exception e) {
+			LOG.fine("SubjectKeyIdentifier can't be parsed in " + cert.getSubjectDN().getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	/**
+	 * Извлечение keyIdentifier из расширения AuthorityKeyIdentifier (2.5.29.35).
+	 * @param cert
+	 * @return keyIdentifier или null, если расширение (или keyIdentifier в нем) отсутствует или не разбирается.
+	 */
+	public static byte[] getAuthorityKeyIdentifier(X509Certificate cert) {
+		byte[] akiExt = cert.getExtensionValue(AUTHORITY_KEY_IDENTIFIER_OID);
+		if (akiExt == null) {
+			return null;
+		}
+		try {
+			ASN1OctetString extOctets = ASN1OctetString.getInstance(ASN1Primitive.fromByteArray(akiExt));
+			return AuthorityKeyIdentifier.getInstance(ASN1Primitive.fromByteArray(extOctets.getOctets())).getKeyIdentifier();
+		} catch (Exception e) {
+			LOG.fine("AuthorityKeyIdentifier can't be parsed in " + cert.getSubjectDN().getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private static final char[] HEX_CHARS = "0123456789ABCDEF".toCharArray();
+	
+	public static String toHex(byte[] bytes) {
+		char[] res = new char[bytes.length * 2];
+		for (int z = 0; z < bytes.length; z++) {
+			res[z * 2] = HEX_CHARS[(bytes[z] >> 4) & 0x0F];
+			res[z * 2 + 1] = HEX_CHARS[bytes[z] & 0x0F];
+		}
+		return new String(res);
+	}
+	
 	/**
 	 * Checks whether given X.509 certificate is self-signed.
+	 * Certificates with subject != issuer (or with AKI != SKI) are rejected without signature verification.
+	 * The result of signature verification is memoized by certificate fingerprint.
 	 */
 	public static boolean isSelfSigned(X509Certificate cert) throws CertificateException, NoSuchAlgorithmException, NoSuchProviderException {
+		// cheap pre-filter: self-signed certificate is always self-issued
+		if (!cert.getSubjectX500Principal().equals(cert.getIssuerX500Principal())) {
+			return false;
+		}
+		CertificateMetadata metadata = CertificateMetadata.of(cert);
+		byte[] ski = metadata.getSubjectKeyIdentifier();
+		byte[] aki = metadata.getAuthorityKeyIdentifier();
+		if (ski != null && aki != null && !Arrays.equals(ski, aki)) {
+			return false;
+		}
+		
+		String fingerprint = metadata.getFingerprint();
+		Boolean cached = selfSignedCache.get(fingerprint);
+		if (cached != null) {
+			return cached.booleanValue();
+		}
+		boolean res = verifySelfSignature(cert);
+		if (selfSignedCache.size() >= SELF_SIGNED_CACHE_MAX_SIZE) {
+			LOG.fine("Self-signed cache is full and will be cleared");
+			selfSignedCache.clear();
+		}
+		selfSignedCache.putIfAbsent(fingerprint, Boolean.valueOf(res));
+		return res;
+	}
+	
+	private static boolean verifySelfSignature(X509Certificate cert) throws CertificateException, NoSuchAlgorithmException, NoSuchProviderException {
 		try {
 			// Try to verify certificate signature with its own public key
 			PublicKey key = cert.getPublicKey();
@@ -0,0 +1,125 @@
+package org.lu.pki.tools;
+
+import java.security.PrivateKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Кэш "разблокированных" закрытых ключей по алиасу.
+ * Получение ключа из HDImageStore или PKCS#12 - это чтение контейнера и (или) выработка ключа из пароля,
+ * поэтому для потока сообщений ключ достается из хранилища один раз, а дальше берется из кэша.
+ * Размер кэша ограничен (вытесняется давно неиспользованный ключ), опционально ключ вытесняется после простоя.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class PrivateKeyCache {
+
+	private static final Logger LOG = Logger.getLogger(PrivateKeyCache.class.getName());
+
+	public static final int DEFAULT_MAX_SIZE = 16;
+
+	private static final class Entry {
+		private final PrivateKey key;
+		private long lastAccess;
+
+		private Entry(PrivateKey key, long lastAccess) {
+			this.key = key;
+			this.lastAccess = lastAccess;
+		}
+	}
+
+	private final int maxSize;
+
+	private final long idleTimeoutMillis;
+
+	private final LinkedHashMap<String, Entry> entries;
+
+	/**
+	 * @param maxSize - максимальное количество ключей в кэше
+	 * @param idleTimeoutMillis - время простоя ключа, после которого он вытесняется. 0 - без ограничения.
+	 */
+	public PrivateKeyCache(final int maxSize, long idleTimeoutMillis) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		if (idleTimeoutMillis < 0) {
+			throw new IllegalArgumentException("idleTimeoutMillis must not be negative: " + idleTimeoutMillis);
+		}
+		this.maxSize = maxSize;
+		this.idleTimeoutMillis = idleTimeoutMillis;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) { // access-order -> LRU
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * @param alias
+	 * @return ключ или null, если ключа нет в кэше (или он вытеснен по простою).
+	 */
+	public synchronized PrivateKey get(String alias) {
+		Entry entry = entries.get(alias);
+		if (entry == null) {
+			return null;
+		}
+		long now = System.currentTimeMillis();
+		if (isIdle(entry, now)) {
+			entries.remove(alias);
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Private key '" + alias + "' evicted after " + idleTimeoutMillis + "ms idle");
+			}
+			return null;
+		}
+		entry.lastAccess = now;
+		return entry.key;
+	}
+
+	public synchronized void put(String alias, PrivateKey key) {
+		entries.put(alias, new Entry(key, System.currentTimeMillis()));
+	}
+
+	public synchronized void invalidate(String alias) {
+		entries.remove(alias);
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	/**
+	 * Удаление всех ключей, простаивающих дольше idleTimeoutMillis.
+	 */
+	public synchronized void evictIdle() {
+		long now = System.currentTimeMillis();
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext()) {
+			if (isIdle(it.next(), now)) {
+				it.remove();
+			}
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getIdleTimeoutMillis() {
+		return idleTimeoutMillis;
+	}
+
+	private boolean isIdle(Entry entry, long now) {
+		return idleTimeoutMillis > 0 && now - entry.lastAccess > idleTimeoutMillis;
+	}
+}
@@ -0,0 +1,303 @@
+package org.lu.pki.tools;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Загрузка данных об отзыве (CRL) по HTTP с условными запросами.
+ * <br>Для каждого адреса запоминаются ETag и Last-Modified последнего успешно обработанного ответа,
+ * и при наличии у вызывающего кода сохраненной копии отправляются If-None-Match / If-Modified-Since.
+ * Ответ 304 означает, что сохраненная копия актуальна и загружать CRL заново не нужно.</br>
+ * <br>Соединение выполняется с явными таймаутами, ответ принимается в gzip (распаковка потоковая).
+ * Адреса не-HTTP (file, ldap и т.п.) загружаются безусловно.</br>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class RevocationHttpFetcher {
+
+	private static final Logger LOG = Logger.getLogger(RevocationHttpFetcher.class.getName());
+
+	public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 10000;
+
+	public static final int DEFAULT_READ_TIMEOUT_MILLIS = 30000;
+
+	static final int MAX_VALIDATORS = 4096;
+
+	/**
+	 * Валидаторы сохраненной копии (ETag, Last-Modified).
+	 */
+	private static final class Validators {
+		private final String etag;
+		private final long lastModified;
+
+		private Validators(String etag, long lastModified) {
+			this.etag = etag;
+			this.lastModified = lastModified;
+		}
+	}
+
+	/**
+	 * Ответ сервера: либо 304 (копия не изменилась), либо поток тела ответа (распакованный). Закрывается вызывающим.
+	 */
+	public static final class Response {
+		private final String url;
+		private final boolean notModified;
+		private final InputStream stream;
+		private final Validators validators;
+
+		private Response(String url, boolean notModified, InputStream stream, Validators validators) {
+			this.url = url;
+			this.notModified = notModified;
+			this.stream = stream;
+			this.validators = validators;
+		}
+
+		public String getUrl() {
+			return url;
+		}
+
+		/**
+		 * @return true, если сервер ответил 304 и сохраненная копия актуальна
+		 */
+		public boolean isNotModified() {
+			return notModified;
+		}
+
+		/**
+		 * @return поток тела ответа (null для 304)
+		 */
+		public InputStream getStream() {
+			return stream;
+		}
+
+		public void close() throws IOException {
+			if (stream != null) {
+				stream.close();
+			}
+		}
+	}
+
+	/**
+	 * Отмена запроса из другого потока: соединение закрывается, и заблокированное чтение завершается ошибкой.
+	 * Прерывание потока (Future.cancel) блокирующее чтение HttpURLConnection не останавливает.
+	 */
+	public static final class Cancellation {
+		private boolean cancelled;
+		private URLConnection connection;
+		private InputStream stream;
+
+		/**
+		 * Закрытие текущего соединения. Последующие запросы с этой отменой сразу завершаются InterruptedIOException.
+		 */
+		public void cancel() {
+			URLConnection con;
+			InputStream in;
+			synchronized (this) {
+				cancelled = true;
+				con = connection;
+				in = stream;
+				connection = null;
+				stream = null;
+			}
+			if (con instanceof HttpURLConnection) {
+				((HttpURLConnection) con).disconnect();
+			}
+			release(in);
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		private synchronized void attach(URLConnection con) throws InterruptedIOException {
+			if (cancelled) {
+				throw new InterruptedIOException("Request to " + con.getURL() + " is cancelled");
+			}
+			connection = con;
+		}
+
+		private void attach(InputStream in) throws InterruptedIOException {
+			synchronized (this) {
+				if (!cancelled) {
+					stream = in;
+					return;
+				}
+			}
+			release(in);
+			throw new InterruptedIOException("Request is cancelled");
+		}
+	}
+
+	private final Map<String, Validators> validators = new LinkedHashMap<String, Validators>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Validators> eldest) {
+			return size() > MAX_VALIDATORS;
+		}
+	};
+
+	private volatile int connectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+
+	private volatile int readTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+	private final AtomicLong fullCount = new AtomicLong();
+
+	private final AtomicLong notModifiedCount = new AtomicLong();
+
+	/**
+	 * Запрос CRL.
+	 * @param url - адрес CRL
+	 * @param conditional - у вызывающего есть сохраненная копия: отправить условный запрос, если известны ее валидаторы
+	 * @return ответ (304 возможен только при conditional)
+	 * @throws IOException - сервер недоступен, таймаут или код ответа не 200/304
+	 */
+	public Response fetch(String url, boolean conditional) throws IOException {
+		return fetch(url, conditional, null);
+	}
+
+	/**
+	 * Запрос CRL, который можно отменить из другого потока.
+	 * @param url - адрес CRL
+	 * @param conditional - у вызывающего есть сохраненная копия: отправить условный запрос, если известны ее валидаторы
+	 * @param cancellation - отмена запроса или null
+	 * @return ответ (304 возможен только при conditional)
+	 * @throws IOException - сервер недоступен, таймаут, код ответа не 200/304 или запрос отменен
+	 */
+	public Response fetch(String url, boolean conditional, Cancellation cancellation) throws IOException {
+		URLConnection con = new URL(url).openConnection();
+		con.setConnectTimeout(connectTimeoutMillis);
+		con.setReadTimeout(readTimeoutMillis);
+		if (cancellation != null) {
+			cancellation.attach(con);
+		}
+		if (!(con instanceof HttpURLConnection)) {
+			fullCount.incrementAndGet();
+			InputStream in = con.getInputStream();
+			if (cancellation != null) {
+				cancellation.attach(in);
+			}
+			return new Response(url, false, in, null);
+		}
+		HttpURLConnection http = (HttpURLConnection) con;
+		http.setUseCaches(false);
+		http.setRequestProperty("Accept-Encoding", "gzip");
+		Validators known = null;
+		if (conditional) {
+			synchronized (validators) {
+				known = validators.get(url);
+			}
+			if (known != null) {
+				if (known.etag != null) {
+					http.setRequestProperty("If-None-Match", known.etag);
+				}
+				if (known.lastModified > 0) {
+					http.setIfModifiedSince(known.lastModified);
+				}
+			}
+		}
+		int code = http.getResponseCode();
+		if (code == HttpURLConnection.HTTP_NOT_MODIFIED && known != null) {
+			release(http.getInputStream());
+			notModifiedCount.incrementAndGet();
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine(url + " not modified");
+			}
+			return new Response(url, true, null, known);
+		}
+		if (code != HttpURLConnection.HTTP_OK) {
+			release(http.getErrorStream());
+			throw new IOException("Server returned HTTP response code: " + code + " for URL: " + url);
+		}
+		fullCount.incrementAndGet();
+		InputStream in = http.getInputStream();
+		if ("gzip".equalsIgnoreCase(http.getContentEncoding())) {
+			in = new GZIPInputStream(in, 8192);
+		}
+		String etag = http.getHeaderField("ETag");
+		long lastModified = http.getLastModified();
+		Validators received = etag != null || lastModified > 0 ? new Validators(etag, lastModified) : null;
+		return new Response(url, false, in, received);
+	}
+
+	/**
+	 * Закрытие потока без тела ответа (соединение остается в keep-alive).
+	 */
+	private static void release(InputStream in) {
+		if (in == null) {
+			return;
+		}
+		try {
+			in.close();
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Connection release problem: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Запоминание валидаторов ответа после того, как его содержимое успешно обработано (проверено и сохранено).
+	 * Валидаторы не запоминаются заранее, чтобы 304 не подтвердил копию, которая не была сохранена.
+	 * @param response - ответ {@link #fetch(String, boolean)}
+	 */
+	public void commit(Response response) {
+		if (response.notModified) {
+			return;
+		}
+		synchronized (validators) {
+			if (response.validators != null) {
+				validators.put(response.url, response.validators);
+			} else {
+				validators.remove(response.url);
+			}
+		}
+	}
+
+	/**
+	 * Безусловная загрузка с таймаутами по умолчанию и поддержкой gzip.
+	 * @param url - адрес CRL
+	 * @return поток тела ответа. Закрывается вызывающим.
+	 * @throws IOException
+	 */
+	public static InputStream openStream(String url) throws IOException {
+		return new RevocationHttpFetcher().fetch(url, false).getStream();
+	}
+
+	public void setConnectTimeoutMillis(int connectTimeoutMillis) {
+		this.connectTimeoutMillis = connectTimeoutMillis;
+	}
+
+	public void setReadTimeoutMillis(int readTimeoutMillis) {
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+
+	/**
+	 * @return количество полных загрузок
+	 */
+	public long getFullCount() {
+		return fullCount.get();
+	}
+
+	/**
+	 * @return количество ответов 304
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	public void invalidateAll() {
+		synchronized (validators) {
+			validators.clear();
+		}
+	}
+}
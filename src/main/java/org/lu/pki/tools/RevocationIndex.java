@@ -0,0 +1,537 @@
+package org.lu.pki.tools;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.cert.X509CRL;
+import java.security.cert.X509CRLEntry;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Компактный индекс отозванных серийных номеров CRL в файле, читаемый через {@link MappedByteBuffer}.
+ * Индекс строится один раз из проверенного CRL, после чего проверка отзыва - это двоичный поиск по отображенному в память файлу:
+ * записи CRL не занимают heap, а страницы файла разделяются всеми JVM на хосте через page cache.
+ * <pre>
+ * Формат (big-endian):
+ * magic        8 байт  "LUCRLIDX"
+ * version      int     1
+ * headerLength int     смещение первой записи
+ * entryWidth   int     ширина записи в байтах
+ * entryCount   int     количество записей
+ * thisUpdate   long    мс
+ * nextUpdate   long    мс, 0 - не задан
+ * crlHash      32 байта SHA-256 от DER-кодировки CRL
+ * issuerLength int
+ * issuer       DER-кодировка имени издателя CRL
+ * numberLength int     0 - у CRL нет расширения CRLNumber
+ * number       номер CRL (для сопоставления с delta CRL)
+ * signerLength int     0 - сертификат издателя не записан
+ * signer       SHA-256 отпечаток (HEX, ASCII) сертификата, которым проверена подпись CRL
+ * entries      entryCount * entryWidth байт, отсортированы по возрастанию
+ * </pre>
+ * Серийный номер хранится в дополнительном коде, расширенном знаком до entryWidth байт, с инвертированным старшим битом,
+ * поэтому побайтовое беззнаковое сравнение записей совпадает с числовым сравнением серийных номеров.
+ * <br>Файл индекса после публикации не изменяется. Каждое построение публикуется в новом файле (поколении)
+ * name.thisUpdate.N.idx, поэтому отображенный в память прежний файл не нужно ни заменять, ни удалять сразу -
+ * последнее поколение находится по имени (см. {@link #listFiles(File, String)}).</br>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class RevocationIndex {
+
+	private static final Logger LOG = Logger.getLogger(RevocationIndex.class.getName());
+
+	private static final byte[] MAGIC = { 'L', 'U', 'C', 'R', 'L', 'I', 'D', 'X' };
+
+	private static final int FORMAT_VERSION = 1;
+
+	/**
+	 * Длина отпечатка сертификата издателя в заголовке (SHA-256 в HEX).
+	 */
+	private static final int MAX_SIGNER_LENGTH = 64;
+
+	public static final String CRL_HASH_ALG = "SHA-256";
+
+	public static final String FILE_SUFFIX = ".idx";
+
+	private static final int CRL_HASH_LENGTH = 32;
+
+	private static final int FIXED_HEADER_LENGTH = MAGIC.length + 4 + 4 + 4 + 4 + 8 + 8 + CRL_HASH_LENGTH + 4;
+
+	/**
+	 * Максимальная ширина записи: 20 октетов серийного номера (RFC 5280) и байт знака.
+	 */
+	static final int MAX_ENTRY_WIDTH = 21;
+
+	private final File file;
+
+	private final ByteBuffer entries;
+
+	private final int entryWidth;
+
+	private final int entryCount;
+
+	private final Date thisUpdate;
+
+	private final Date nextUpdate;
+
+	private final byte[] crlHash;
+
+	private final X500Principal issuer;
+
+	private final BigInteger crlNumber;
+
+	private final String issuerCertFingerprint;
+
+	private RevocationIndex(File file, MappedByteBuffer buffer) throws IOException {
+		this.file = file;
+		byte[] magic = new byte[MAGIC.length];
+		buffer.get(magic);
+		if (!Arrays.equals(MAGIC, magic)) {
+			throw new IOException(file + " is not a revocation index");
+		}
+		int version = buffer.getInt();
+		if (version != FORMAT_VERSION) {
+			throw new IOException(file + " has unsupported revocation index version " + version);
+		}
+		int headerLength = buffer.getInt();
+		this.entryWidth = buffer.getInt();
+		this.entryCount = buffer.getInt();
+		this.thisUpdate = new Date(buffer.getLong());
+		long next = buffer.getLong();
+		this.nextUpdate = next != 0 ? new Date(next) : null;
+		this.crlHash = new byte[CRL_HASH_LENGTH];
+		buffer.get(crlHash);
+		byte[] issuerEncoded = new byte[buffer.getInt()];
+		buffer.get(issuerEncoded);
+		this.issuer = new X500Principal(issuerEncoded);
+		int numberLength = buffer.getInt();
+		if (numberLength < 0 || numberLength > MAX_ENTRY_WIDTH) {
+			throw new IOException(file + " is corrupted: CRL number length " + numberLength);
+		}
+		byte[] number = new byte[numberLength];
+		buffer.get(number);
+		this.crlNumber = numberLength > 0 ? new BigInteger(number) : null;
+		int signerLength = buffer.getInt();
+		if (signerLength < 0 || signerLength > MAX_SIGNER_LENGTH) {
+			throw new IOException(file + " is corrupted: signer length " + signerLength);
+		}
+		byte[] signer = new byte[signerLength];
+		buffer.get(signer);
+		this.issuerCertFingerprint = signerLength > 0 ? new String(signer, "US-ASCII") : null;
+		if (entryWidth < 1 || entryWidth > MAX_ENTRY_WIDTH || entryCount < 0 || (long) headerLength + (long) entryWidth * entryCount > buffer.capacity()) {
+			throw new IOException(file + " is corrupted: width " + entryWidth + ", count " + entryCount + ", size " + buffer.capacity());
+		}
+		buffer.position(headerLength);
+		this.entries = buffer.slice();
+	}
+
+	/**
+	 * Открытие индекса. Файл отображается в память целиком только для чтения.
+	 * @param file
+	 * @return RevocationIndex
+	 * @throws IOException - файл не найден, поврежден или имеет другой формат
+	 */
+	public static RevocationIndex open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// отображение остается действительным и после закрытия канала
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new RevocationIndex(file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Поколения индекса в каталоге, от старых к новым (по thisUpdate CRL).
+	 * @param directory - каталог индекса
+	 * @param name - имя индекса
+	 * @return файлы индекса; пустой массив, если индекса нет
+	 */
+	public static File[] listFiles(File directory, final String name) {
+		File[] files = directory.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String fileName = file.getName();
+				return fileName.startsWith(name + '.') && fileName.endsWith(FILE_SUFFIX) && file.isFile();
+			}
+		});
+		if (files == null) {
+			return new File[0];
+		}
+		// thisUpdate записан в имени в HEX фиксированной ширины, поэтому порядок имен совпадает с порядком поколений
+		Arrays.sort(files);
+		return files;
+	}
+
+	/**
+	 * Построение индекса из CRL с уже проверенной подписью.
+	 * @param crl
+	 * @param directory - каталог индекса
+	 * @param name - имя индекса. Индекс публикуется новым поколением, см. {@link Writer#finish}.
+	 * @param issuerCert - сертификат, которым проверена подпись CRL (его отпечаток сохраняется в индексе), или null
+	 * @return открытый индекс
+	 * @throws IOException
+	 * @throws CRLException
+	 */
+	public static RevocationIndex write(X509CRL crl, File directory, String name, X509Certificate issuerCert) throws IOException, CRLException {
+		byte[] crlHash;
+		try {
+			crlHash = MessageDigest.getInstance(CRL_HASH_ALG).digest(crl.getEncoded());
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(CRL_HASH_ALG + " is not available", e);
+		}
+		Writer writer = new Writer(directory, name);
+		try {
+			Set<? extends X509CRLEntry> revoked = crl.getRevokedCertificates();
+			if (revoked != null) {
+				for (X509CRLEntry entry : revoked) {
+					writer.add(entry.getSerialNumber());
+				}
+			}
+			return writer.finish(crl.getIssuerX500Principal(), crl.getThisUpdate(), crl.getNextUpdate(), PKIXUtils.getCrlNumber(crl), crlHash, issuerCert);
+		} finally {
+			writer.abort();
+		}
+	}
+
+	/**
+	 * Построитель индекса. Серийные номера добавляются в произвольном порядке и пишутся во временный файл,
+	 * сортировка выполняется на месте в отображенном в память файле, поэтому heap не зависит от размера CRL.
+	 */
+	public static final class Writer {
+
+		private final File directory;
+
+		private final String name;
+
+		private final File tmpFile;
+
+		private OutputStream out;
+
+		private int count = 0;
+
+		private int maxWidth = 1;
+
+		private final byte[] entry = new byte[MAX_ENTRY_WIDTH];
+
+		/**
+		 * @param directory - каталог индекса
+		 * @param name - имя индекса
+		 * @throws IOException
+		 */
+		public Writer(File directory, String name) throws IOException {
+			this.directory = directory;
+			this.name = name;
+			this.tmpFile = File.createTempFile(name, ".tmp", directory);
+			this.out = new BufferedOutputStream(new FileOutputStream(tmpFile), 64 * 1024);
+		}
+
+		/**
+		 * @param serialNumber - серийный номер отозванного сертификата
+		 * @throws IOException
+		 */
+		public void add(BigInteger serialNumber) throws IOException {
+			byte[] serial = serialNumber.toByteArray();
+			if (serial.length > MAX_ENTRY_WIDTH) {
+				throw new IOException("Serial number " + serialNumber.toString(16) + " is too long (" + serial.length + " bytes)");
+			}
+			maxWidth = Math.max(maxWidth, serial.length);
+			encode(serial, entry, MAX_ENTRY_WIDTH);
+			out.write(entry);
+			count++;
+		}
+
+		/**
+		 * @return количество добавленных серийных номеров
+		 */
+		public int getCount() {
+			return count;
+		}
+
+		/**
+		 * Сортировка записей, запись заголовка и публикация индекса новым файлом name.thisUpdate.N.idx.
+		 * Существующие файлы индекса не заменяются: их могут держать отображенными в память этот и другие процессы.
+		 * @param issuer - издатель CRL
+		 * @param thisUpdate
+		 * @param nextUpdate - может быть null
+		 * @param crlNumber - номер CRL или null
+		 * @param crlHash - SHA-256 от DER-кодировки CRL
+		 * @param issuerCert - сертификат, которым проверена подпись CRL, или null
+		 * @return открытый индекс
+		 * @throws IOException
+		 */
+		public RevocationIndex finish(X500Principal issuer, Date thisUpdate, Date nextUpdate, BigInteger crlNumber, byte[] crlHash, X509Certificate issuerCert) throws IOException {
+			if (crlHash.length != CRL_HASH_LENGTH) {
+				throw new IllegalArgumentException("CRL hash must be " + CRL_HASH_LENGTH + " bytes");
+			}
+			out.close();
+			out = null;
+
+			byte[] issuerEncoded = issuer.getEncoded();
+			byte[] number = crlNumber != null ? crlNumber.toByteArray() : new byte[0];
+			if (number.length > MAX_ENTRY_WIDTH) {
+				throw new IOException("CRL number " + crlNumber.toString(16) + " is too long (" + number.length + " bytes)");
+			}
+			byte[] signer = new byte[0];
+			if (issuerCert != null) {
+				try {
+					signer = PKIXUtils.getFingerprint(issuerCert).getBytes("US-ASCII");
+				} catch (CertificateEncodingException e) {
+					throw new IOException("Fingerprint of CRL issuer " + issuerCert.getSubjectDN().getName() + " can't be calculated: " + e.getMessage(), e);
+				}
+			}
+			int headerLength = FIXED_HEADER_LENGTH + issuerEncoded.length + 4 + number.length + 4 + signer.length;
+			File sortedFile = File.createTempFile(name + '.' + String.format("%016x", thisUpdate.getTime()) + '.', ".tmp", directory);
+			// имя поколения уникально, так как уникально имя временного файла
+			String sortedName = sortedFile.getName();
+			File file = new File(directory, sortedName.substring(0, sortedName.length() - ".tmp".length()) + FILE_SUFFIX);
+			try {
+				RandomAccessFile rawRaf = new RandomAccessFile(tmpFile, "rw");
+				RandomAccessFile sortedRaf = new RandomAccessFile(sortedFile, "rw");
+				try {
+					MappedByteBuffer raw = rawRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, (long) count * MAX_ENTRY_WIDTH);
+					sort(raw, MAX_ENTRY_WIDTH, count);
+
+					long size = headerLength + (long) count * maxWidth;
+					MappedByteBuffer sorted = sortedRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+					sorted.put(MAGIC);
+					sorted.putInt(FORMAT_VERSION);
+					sorted.putInt(headerLength);
+					sorted.putInt(maxWidth);
+					sorted.putInt(count);
+					sorted.putLong(thisUpdate.getTime());
+					sorted.putLong(nextUpdate != null ? nextUpdate.getTime() : 0);
+					sorted.put(crlHash);
+					sorted.putInt(issuerEncoded.length);
+					sorted.put(issuerEncoded);
+					sorted.putInt(number.length);
+					sorted.put(number);
+					sorted.putInt(signer.length);
+					sorted.put(signer);
+					// сжатие записей до maxWidth: отбрасываются байты расширения знака
+					int skip = MAX_ENTRY_WIDTH - maxWidth;
+					for (int i = 0; i < count; i++) {
+						int offset = i * MAX_ENTRY_WIDTH;
+						sorted.put((byte) (raw.get(offset + skip) ^ (skip > 0 ? 0x80 : 0)));
+						for (int j = skip + 1; j < MAX_ENTRY_WIDTH; j++) {
+							sorted.put(raw.get(offset + j));
+						}
+					}
+					sorted.force();
+				} finally {
+					sortedRaf.close();
+					rawRaf.close();
+				}
+				if (file.exists() || !sortedFile.renameTo(file)) {
+					throw new IOException("Can't publish revocation index " + file);
+				}
+			} finally {
+				sortedFile.delete();
+				tmpFile.delete();
+			}
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Revocation index " + file + " written: " + count + " serials, " + maxWidth + " bytes per entry, next update " + nextUpdate);
+			}
+			return open(file);
+		}
+
+		/**
+		 * Удаление временного файла, если индекс не был построен.
+		 */
+		public void abort() {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOG.fine("Can't close " + tmpFile + ": " + e.getMessage());
+				}
+				out = null;
+			}
+			tmpFile.delete();
+		}
+	}
+
+	/**
+	 * Кодирование серийного номера (DER-значение INTEGER) в запись заданной ширины.
+	 */
+	private static void encode(byte[] serial, byte[] dest, int width) {
+		byte sign = (byte) (serial[0] < 0 ? 0xFF : 0x00);
+		int pad = width - serial.length;
+		for (int i = 0; i < pad; i++) {
+			dest[i] = sign;
+		}
+		System.arraycopy(serial, 0, dest, pad, serial.length);
+		dest[0] ^= 0x80;
+	}
+
+	private static int compare(ByteBuffer buffer, int offset, byte[] key, int width) {
+		for (int i = 0; i < width; i++) {
+			int a = buffer.get(offset + i) & 0xFF;
+			int b = key[i] & 0xFF;
+			if (a != b) {
+				return a - b;
+			}
+		}
+		return 0;
+	}
+
+	private static int compare(ByteBuffer buffer, int a, int b, int width) {
+		for (int i = 0; i < width; i++) {
+			int x = buffer.get(a + i) & 0xFF;
+			int y = buffer.get(b + i) & 0xFF;
+			if (x != y) {
+				return x - y;
+			}
+		}
+		return 0;
+	}
+
+	private static void swap(ByteBuffer buffer, int a, int b, int width) {
+		for (int i = 0; i < width; i++) {
+			byte t = buffer.get(a + i);
+			buffer.put(a + i, buffer.get(b + i));
+			buffer.put(b + i, t);
+		}
+	}
+
+	/**
+	 * Пирамидальная сортировка записей на месте (без дополнительной памяти).
+	 */
+	private static void sort(ByteBuffer buffer, int width, int count) {
+		for (int i = count / 2 - 1; i >= 0; i--) {
+			siftDown(buffer, width, i, count);
+		}
+		for (int end = count - 1; end > 0; end--) {
+			swap(buffer, 0, end * width, width);
+			siftDown(buffer, width, 0, end);
+		}
+	}
+
+	private static void siftDown(ByteBuffer buffer, int width, int root, int count) {
+		while (true) {
+			int child = 2 * root + 1;
+			if (child >= count) {
+				return;
+			}
+			if (child + 1 < count && compare(buffer, child * width, (child + 1) * width, width) < 0) {
+				child++;
+			}
+			if (compare(buffer, root * width, child * width, width) >= 0) {
+				return;
+			}
+			swap(buffer, root * width, child * width, width);
+			root = child;
+		}
+	}
+
+	/**
+	 * Проверка серийного номера двоичным поиском по индексу.
+	 * @param serialNumber
+	 * @return true - если серийный номер есть в CRL.
+	 */
+	public boolean isRevoked(BigInteger serialNumber) {
+		byte[] serial = serialNumber.toByteArray();
+		if (serial.length > entryWidth) {
+			return false;
+		}
+		byte[] key = new byte[entryWidth];
+		encode(serial, key, entryWidth);
+		int low = 0;
+		int high = entryCount - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int cmp = compare(entries, mid * entryWidth, key, entryWidth);
+			if (cmp < 0) {
+				low = mid + 1;
+			} else if (cmp > 0) {
+				high = mid - 1;
+			} else {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @param now
+	 * @return true - если наступил nextUpdate (или он не задан) и индекс нужно построить заново.
+	 */
+	public boolean isExpired(Date now) {
+		return nextUpdate == null || !now.before(nextUpdate);
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public X500Principal getIssuer() {
+		return issuer;
+	}
+
+	/**
+	 * @return номер CRL или null, если у CRL нет номера
+	 */
+	public BigInteger getCrlNumber() {
+		return crlNumber;
+	}
+
+	/**
+	 * @return SHA-256 отпечаток сертификата, которым проверена подпись CRL, или null, если он не записан
+	 */
+	public String getIssuerCertFingerprint() {
+		return issuerCertFingerprint;
+	}
+
+	public Date getThisUpdate() {
+		return thisUpdate;
+	}
+
+	/**
+	 * @return nextUpdate CRL или null, если не задан
+	 */
+	public Date getNextUpdate() {
+		return nextUpdate;
+	}
+
+	/**
+	 * @return SHA-256 от DER-кодировки CRL
+	 */
+	public byte[] getCrlHash() {
+		return crlHash.clone();
+	}
+
+	/**
+	 * @return количество отозванных серийных номеров
+	 */
+	public int size() {
+		return entryCount;
+	}
+
+	@Override
+	public String toString() {
+		return "RevocationIndex [" + file + ", issuer=" + issuer + ", thisUpdate=" + thisUpdate + ", nextUpdate=" + nextUpdate + ", entries=" + entryCount + "]";
+	}
+}
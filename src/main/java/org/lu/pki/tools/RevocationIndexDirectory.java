@@ -0,0 +1,224 @@
+package org.lu.pki.tools;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CRLException;
+import java.security.cert.X509CRL;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Каталог индексов отозванных серийных номеров ({@link RevocationIndex}), по одному индексу на адрес CRLDP.
+ * Каталог может использоваться несколькими JVM одновременно: индекс, построенный одним процессом, открывается остальными.
+ * Каждое построение индекса публикуется новым файлом (поколением), читатели открывают последнее поколение,
+ * а прежние поколения удаляются при следующих построениях (в Windows файл, отображенный в память, удалить нельзя -
+ * удаление повторяется позже). Файлы индексов доверенные (строятся только из CRL с проверенной подписью),
+ * поэтому каталог должен быть защищен от записи посторонними так же, как хранилище сертификатов.
+ * Индекс хранит отпечаток сертификата, которым проверена подпись CRL: {@link #get(String, Date, TrustSnapshot)} отдает индекс,
+ * только если этот сертификат есть в текущем снимке доверенных сертификатов.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class RevocationIndexDirectory {
+
+	private static final Logger LOG = Logger.getLogger(RevocationIndexDirectory.class.getName());
+
+	/**
+	 * Сколько последних поколений индекса не удаляется: предыдущее поколение может открывать процесс,
+	 * который нашел его до публикации нового.
+	 */
+	private static final int KEEP_GENERATIONS = 2;
+
+	private final File directory;
+
+	private final Map<String, RevocationIndex> opened = new HashMap<String, RevocationIndex>();
+
+	/**
+	 * @param directory - каталог индексов. Создается, если не существует.
+	 * @throws IOException - если каталог не удалось создать
+	 */
+	public RevocationIndexDirectory(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Can't create revocation index directory " + directory);
+		}
+		this.directory = directory;
+	}
+
+	/**
+	 * @param url - адрес CRLDP
+	 * @return имя индекса для CRLDP (SHA-256 от адреса)
+	 */
+	public String getIndexName(String url) {
+		try {
+			byte[] hash = MessageDigest.getInstance(RevocationIndex.CRL_HASH_ALG).digest(url.getBytes("UTF-8"));
+			return PKIXUtils.toHex(hash);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(RevocationIndex.CRL_HASH_ALG + " is not available", e);
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Актуальный индекс для CRLDP. Если открытый ранее индекс устарел, то открывается последнее поколение индекса
+	 * (возможно, уже построенное другим процессом).
+	 * @param url - адрес CRLDP
+	 * @param now - текущее время
+	 * @return индекс или null, если индекса нет или наступил его nextUpdate.
+	 */
+	public synchronized RevocationIndex get(String url, Date now) {
+		RevocationIndex index = opened.get(url);
+		if (index != null && !index.isExpired(now)) {
+			return index;
+		}
+		index = openLatest(url);
+		if (index != null && index.isExpired(now)) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Revocation index for " + url + " expired (next update " + index.getNextUpdate() + ")");
+			}
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * Актуальный индекс для CRLDP, подпись CRL которого проверена сертификатом из снимка. Индекс, построенный по CRL издателя,
+	 * удаленного из хранилища (или индекс без отпечатка издателя), не используется.
+	 * @param url - адрес CRLDP
+	 * @param now - текущее время
+	 * @param trustSnapshot - текущий снимок доверенных сертификатов
+	 * @return индекс или null, если индекса нет, наступил его nextUpdate или его издатель не в снимке
+	 */
+	public RevocationIndex get(String url, Date now, TrustSnapshot trustSnapshot) {
+		RevocationIndex index = get(url, now);
+		if (index != null && !isTrusted(index, trustSnapshot)) {
+			if (LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Revocation index for " + url + " was verified with certificate " + index.getIssuerCertFingerprint() + " which is not in trust snapshot #" + trustSnapshot.getVersion());
+			}
+			return null;
+		}
+		return index;
+	}
+
+	/**
+	 * @return true, если сертификат, которым проверена подпись CRL индекса, есть в снимке
+	 */
+	public static boolean isTrusted(RevocationIndex index, TrustSnapshot trustSnapshot) {
+		return trustSnapshot.getCertificateByFingerprint(index.getIssuerCertFingerprint()) != null;
+	}
+
+	/**
+	 * Индекс без проверки nextUpdate (сохраненная копия для условной загрузки, см. {@link RevocationHttpFetcher}).
+	 * Возвращается уже открытый индекс; файл открывается, только если индекс для адреса еще не открывался.
+	 * @param url - адрес CRLDP
+	 * @return индекс или null, если индекса нет
+	 */
+	public synchronized RevocationIndex peek(String url) {
+		RevocationIndex index = opened.get(url);
+		return index != null ? index : openLatest(url);
+	}
+
+	/**
+	 * Открытие последнего поколения индекса. Если это поколение уже открыто, повторно файл не отображается.
+	 */
+	private RevocationIndex openLatest(String url) {
+		RevocationIndex current = opened.get(url);
+		String name = getIndexName(url);
+		for (int attempt = 0; attempt < 2; attempt++) {
+			File[] files = RevocationIndex.listFiles(directory, name);
+			if (files.length == 0) {
+				opened.remove(url);
+				return null;
+			}
+			File latest = files[files.length - 1];
+			if (current != null && latest.equals(current.getFile())) {
+				return current;
+			}
+			try {
+				RevocationIndex index = RevocationIndex.open(latest);
+				opened.put(url, index);
+				return index;
+			} catch (FileNotFoundException e) {
+				// поколение удалено после просмотра каталога - вышло более новое
+				LOG.fine("Revocation index " + latest + " for " + url + " was removed: " + e.getMessage());
+			} catch (IOException e) {
+				LOG.warning("Revocation index " + latest + " for " + url + " can't be opened: " + e.getMessage());
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Удаление поколений индекса, кроме последних {@value #KEEP_GENERATIONS}. Файл, который не удалось удалить
+	 * (отображен в память в Windows), удаляется при следующем построении индекса.
+	 */
+	private void deleteOldGenerations(String url) {
+		File[] files = RevocationIndex.listFiles(directory, getIndexName(url));
+		for (int i = 0; i < files.length - KEEP_GENERATIONS; i++) {
+			if (!files[i].delete() && LOG.isLoggable(Level.FINE)) {
+				LOG.fine("Old revocation index " + files[i] + " for " + url + " is still in use, will be removed later");
+			}
+		}
+	}
+
+	/**
+	 * Построение индекса из CRL с проверенной подписью.
+	 * @param url - адрес CRLDP
+	 * @param crl
+	 * @param issuerCert - сертификат, которым проверена подпись CRL
+	 * @return открытый индекс
+	 * @throws IOException
+	 * @throws CRLException
+	 */
+	public RevocationIndex put(String url, X509CRL crl, X509Certificate issuerCert) throws IOException, CRLException {
+		RevocationIndex index = RevocationIndex.write(crl, directory, getIndexName(url), issuerCert);
+		synchronized (this) {
+			opened.put(url, index);
+		}
+		deleteOldGenerations(url);
+		return index;
+	}
+
+	/**
+	 * Построение индекса потоковым разбором CRL (без X509CRL в памяти). Подпись CRL проверяется при разборе.
+	 * @param url - адрес CRLDP
+	 * @param crlStream - DER-кодировка CRL
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param currentDate - текущее время
+	 * @return открытый индекс
+	 * @throws CertificateVerificationException - CRL просрочен или его подпись не проверена
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public RevocationIndex put(String url, InputStream crlStream, TrustSnapshot trustSnapshot, Date currentDate) throws CertificateVerificationException, IOException, GeneralSecurityException {
+		RevocationIndex index = StreamingCrlParser.parse(crlStream, url, trustSnapshot, directory, getIndexName(url), currentDate);
+		synchronized (this) {
+			opened.put(url, index);
+		}
+		deleteOldGenerations(url);
+		return index;
+	}
+
+	/**
+	 * Забыть открытые индексы (файлы не удаляются).
+	 */
+	public synchronized void invalidateAll() {
+		opened.clear();
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
@@ -159,7 +159,7 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @throws UnrecoverableKeyException
      */
 	private X509Certificate addSignerToList(String alias) throws KeyStoreException, NoSuchAlgorithmException, UnrecoverableKeyException {
-		PrivateKey priv = (PrivateKey) getKeyStore().getKey(alias, storePassword);
+		PrivateKey priv = getKeyFromStore(alias, storePassword);
 		X509Certificate cert = getCertificateFromStore(alias);
 		signers.add(new Signer(priv, cert, random));
 		return cert;
@@ -173,15 +173,14 @@ public final class SignalComCryptoUtils extends CryptoUtils {
 
     /**
      * Пример формирования подписанного (SignedData) сообщения.
-     * @param data подписываемые данные.
+     * @param in подписываемые данные (поток не закрывается).
      * @param type идентификатор типа подписываемых данных.
      * @param detached если true, то формируется отсоединённая подпись.
      * @return подписанное сообщение.
      * @throws Exception
      */
-    private byte[] sign(byte[] data, String type, boolean detached) throws Exception {
+    private byte[] sign(InputStream in, String type, boolean detached) throws Exception {
         LOG.fine("Signing...");
-        InputStream in = new ByteArrayInputStream(data);
         ByteArrayOutputStream out = new ByteArrayOutputStream();
 
         SignedDataGenerator generator = new SignedDataGenerator(out);
@@ -191,18 +190,21 @@ public final class SignalComCryptoUtils extends CryptoUtils {
 
         OutputStream sigOut = generator.open();
 
-        byte[] buf = new byte[1024];
+        byte[] buf = new byte[DigestService.BUFFER_SIZE];
         int len;
         while ((len = in.read(buf)) > 0) {
             sigOut.write(buf, 0, len);
         }
         generator.close();
-        in.close();
         return out.toByteArray();
     }
 
     public byte[] signAttached(byte[] data) throws Exception {
-        return sign(data, ContentType.DATA, false);
+        return sign(new ByteArrayInputStream(data), ContentType.DATA, false);
+    }
+    
+    public byte[] signDetached(InputStream content) throws Exception {
+        return sign(content, ContentType.DATA, true);
     }
 
    
@@ -222,8 +224,16 @@ public final class SignalComCryptoUtils extends CryptoUtils {
     	
         X509Certificate signerCert = null;
         
-        // поиск сертификата в хранилище
+        // поиск сертификата в хранилище (по индексу), а затем в остальных CertStore
+        String signerAlias = null;
         if (signerInfo.getSubjectKeyIdentifier() == null) {
+        	signerAlias = lookupKeyStoreByIssuerAndSerialNumber(signerInfo.getIssuer(), signerInfo.getSerialNumber());
+        } else {
+        	signerAlias = lookupKeyStoreBySubjectKeyIdentefer(signerInfo.getSubjectKeyIdentifier());
+        }
+        if (signerAlias != null) {
+        	signerCert = getCertificateFromStore(signerAlias);
+        } else if (signerInfo.getSubjectKeyIdentifier() == null) {
         	signerCert = lookupCertificateBySerialNumber(allStoredCertificates, signerInfo.getIssuer(), signerInfo.getSerialNumber());
         } else {
         	signerCert = lookupCertificateBySubjectKeyIdentefer(allStoredCertificates, signerInfo.getSubjectKeyIdentifier());
@@ -271,7 +281,7 @@ public final class SignalComCryptoUtils extends CryptoUtils {
      * @param data данные, используемые при проверке отсоединённой подписи.
      * @throws Exception
      */
-    private void verify(byte[] signed, byte[] data) throws Exception {
+    private void verify(byte[] signed, InputStream data) throws Exception {
 
     	LOG.fine("Signature(s) verifying...");
         InputStream in = new ByteArrayInputStream(signed);
@@ -286,7 +296,7 @@ public final class SignalComCryptoUtils extends CryptoUtils {
             if (data == null) {
                 throw new RuntimeException("detached signed data required");
             }
-            parser.setContent(new ByteArrayInputStream(data));
+            parser.setContent(data);
         }
         parser.process();
         in.close();
@@ -304,6 +314,12 @@ public final class SignalComCryptoUtils extends CryptoUtils {
         if (LOG.isLoggable(Level.FINE)) {
         	LOG.fine("Total SignerInfo collection size is " + (signerInfos != null ? signerInfos.size() : 0));
         }
+        if (signerInfos.size() > 1 && isFlagNotSet(OPT_DISABLE_CERT_VALIDATION) && isFlagNotSet(OPT_STORED_CERT_ONLY)) {
+        	// статусы OCSP всех подписантов одним запросом (если подключен клиент OCSP)
+        	@SuppressWarnings("unchecked")
+        	Collection<X509Certificate> cmsCerts = (Collection<X509Certificate>) cmsCertificates.getCertificates(null);
+        	CertificateVerifier.prefetchOcspStatuses(cmsCerts, getKeyStore());
+        }
         Iterator<SignerInfo> it = signerInfos.iterator();
         while (it.hasNext()) {
             SignerInfo signerInfo = it.next();
@@ -316,6 +332,14 @@ public final class SignalComCryptoUtils extends CryptoUtils {
     	signed = forceBASE64(signed);
         verify(signed, null);
     }
+    
+    public void verifyDetached(byte[] signature, InputStream content) throws Exception {
+    	if (content == null) {
+    		throw new NullPointerException("Detached content is null");
+    	}
+    	signature = forceBASE64(signature);
+    	verify(signature, content);
+    }
 
     /**
      * Пример отделения подписанных данных от подписей.
@@ -390,19 +414,19 @@ public final class SignalComCryptoUtils extends CryptoUtils {
         @SuppressWarnings("unchecked")
 		Collection<RecipientInfo> recInfos = parser.getRecipientInfos();
         Iterator<RecipientInfo> it = recInfos.iterator();
-        KeyStore keyStore = getKeyStore();
         while (it.hasNext()) {
             RecipientInfo recInfo = (RecipientInfo) it.next();
-            X509Certificate cert = null;
+            String alias = null;
             LOG.fine("Try decrypt for RecipientInfo serial=" + recInfo.getSerialNumber()+ " RI: " + recInfo.getRecipientIdentifier().toString());
+            // ключ получателя может быть только в хранилище, поэтому ищем сразу алиас по индексу хранилища
             if (recInfo.getSubjectKeyIdentifier() == null) {
-            	cert = lookupCertificateBySerialNumber(allStoredCertificates, recInfo.getIssuer(), recInfo.getSerialNumber());
+            	alias = lookupKeyStoreByIssuerAndSerialNumber(recInfo.getIssuer(), recInfo.getSerialNumber());
             } else {
-            	cert = lookupCertificateBySubjectKeyIdentefer(allStoredCertificates, recInfo.getSubjectKeyIdentifier());
+            	alias = lookupKeyStoreBySubjectKeyIdentefer(recInfo.getSubjectKeyIdentifier());
             }
     
-            if (cert != null) {
-                PrivateKey priv = (PrivateKey) keyStore.getKey(keyStore.getCertificateAlias(cert), storePassword);
+            if (alias != null) {
+                PrivateKey priv = getKeyFromStore(alias, storePassword);
                 if (priv != null) {
                     InputStream content = recInfo.getEncryptedContent(priv, random);
                     ByteArrayOutputStream bOut = new ByteArrayOutputStream();
@@ -0,0 +1,126 @@
+package org.lu.pki.tools;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Объединение одновременных загрузок по одному ключу (single-flight).
+ * Первый поток выполняет загрузку, остальные потоки с тем же ключом ждут ее окончания
+ * и получают тот же результат или то же исключение. Результат не сохраняется: следующая загрузка
+ * после завершения текущей выполняется заново (кэширование - дело вызывающего кода).
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ * @param <K> ключ (например, адрес CRLDP)
+ * @param <V> результат загрузки
+ */
+public final class SingleFlight<K, V> {
+
+	private static final class Call<V> {
+		private boolean done;
+		private V value;
+		private Exception failure;
+
+		private synchronized void complete(V value, Exception failure) {
+			this.value = value;
+			this.failure = failure;
+			this.done = true;
+			notifyAll();
+		}
+
+		private synchronized V await() throws Exception {
+			while (!done) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting for a shared download");
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+			return value;
+		}
+	}
+
+	private final ConcurrentMap<K, Call<V>> calls = new ConcurrentHashMap<K, Call<V>>();
+
+	private final AtomicLong executedCount = new AtomicLong();
+
+	private final AtomicLong sharedCount = new AtomicLong();
+
+	/**
+	 * Выполнение загрузки или ожидание уже идущей загрузки с тем же ключом.
+	 * @param key - ключ
+	 * @param loader - загрузка
+	 * @return результат загрузки
+	 * @throws Exception - исключение загрузки (одно и то же для всех ожидавших потоков)
+	 * или InterruptedIOException, если ожидание прервано
+	 */
+	public V execute(K key, Callable<V> loader) throws Exception {
+		Call<V> call = new Call<V>();
+		Call<V> inFlight = calls.putIfAbsent(key, call);
+		if (inFlight != null) {
+			sharedCount.incrementAndGet();
+			return inFlight.await();
+		}
+		executedCount.incrementAndGet();
+		try {
+			V value = loader.call();
+			call.complete(value, null);
+			return value;
+		} catch (Exception e) {
+			call.complete(null, e);
+			throw e;
+		} catch (Error e) {
+			call.complete(null, new IllegalStateException("Shared download failed: " + e, e));
+			throw e;
+		} finally {
+			calls.remove(key, call);
+		}
+	}
+
+	/**
+	 * Ожидание уже идущей загрузки с тем же ключом или выполнение загрузки без объединения:
+	 * другие потоки результат этой загрузки не ждут. Для загрузок, которые могут быть отменены
+	 * (опережающие запросы к зеркалам), чтобы отмена не передавалась посторонним потокам.
+	 * @param key - ключ
+	 * @param loader - загрузка
+	 * @return результат загрузки
+	 * @throws Exception - исключение загрузки или InterruptedIOException, если ожидание прервано
+	 */
+	public V joinOrCall(K key, Callable<V> loader) throws Exception {
+		Call<V> inFlight = calls.get(key);
+		if (inFlight != null) {
+			sharedCount.incrementAndGet();
+			return inFlight.await();
+		}
+		executedCount.incrementAndGet();
+		return loader.call();
+	}
+
+	/**
+	 * @return количество выполненных загрузок
+	 */
+	public long getExecutedCount() {
+		return executedCount.get();
+	}
+
+	/**
+	 * @return количество запросов, получивших результат чужой загрузки
+	 */
+	public long getSharedCount() {
+		return sharedCount.get();
+	}
+
+	/**
+	 * @return количество загрузок, идущих в данный момент
+	 */
+	public int getInFlightCount() {
+		return calls.size();
+	}
+}
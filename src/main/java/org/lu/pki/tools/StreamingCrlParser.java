@@ -0,0 +1,398 @@
+package org.lu.pki.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.Signature;
+import java.security.cert.CRLException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.DERInteger;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.Extensions;
+import org.bouncycastle.asn1.x509.Time;
+
+/**
+ * Потоковый разбор CRL без построения X509CRL.
+ * CRL читается из потока по одному элементу: записи revokedCertificates разбираются по одной (ASN1InputStream)
+ * и их серийные номера сразу пишутся в {@link RevocationIndex.Writer}. Подпись проверяется по байтам TBSCertList
+ * по мере их прохождения через парсер, а индекс публикуется только после успешной проверки подписи.
+ * Потребление памяти не зависит от размера CRL.
+ * <pre>
+ * CertificateList  ::=  SEQUENCE  {
+ *      tbsCertList          TBSCertList,
+ *      signatureAlgorithm   AlgorithmIdentifier,
+ *      signatureValue       BIT STRING  }
+ *
+ * TBSCertList  ::=  SEQUENCE  {
+ *      version                 Version OPTIONAL,
+ *      signature               AlgorithmIdentifier,
+ *      issuer                  Name,
+ *      thisUpdate              Time,
+ *      nextUpdate              Time OPTIONAL,
+ *      revokedCertificates     SEQUENCE OF SEQUENCE  { ... } OPTIONAL,
+ *      crlExtensions           [0]  EXPLICIT Extensions OPTIONAL }
+ * </pre>
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class StreamingCrlParser {
+
+	private static final Logger LOG = Logger.getLogger(StreamingCrlParser.class.getName());
+
+	private static final int TAG_INTEGER = 0x02;
+
+	private static final int TAG_SEQUENCE = 0x30;
+
+	private static final int TAG_UTC_TIME = 0x17;
+
+	private static final int TAG_GENERALIZED_TIME = 0x18;
+
+	private static final int TAG_BIT_STRING = 0x03;
+
+	private static final int TAG_CRL_EXTENSIONS = 0xA0;
+
+	/**
+	 * Ограничение на размер отдельного элемента, который читается в память целиком (имя издателя, запись CRL, расширения).
+	 */
+	private static final int MAX_ELEMENT_LENGTH = 1024 * 1024;
+
+	private final InputStream in;
+
+	private final String source;
+
+	private final MessageDigest crlDigest;
+
+	/**
+	 * Проверяемые подписи (по одной на сертификат-кандидат издателя). До того, как стал известен издатель, байты TBS копятся в prefix.
+	 */
+	private List<Signature> signatures = null;
+
+	private List<X509Certificate> signers = null;
+
+	private ByteArrayOutputStream prefix = null;
+
+	private BigInteger crlNumber = null;
+
+	private long position = 0;
+
+	private int tag;
+
+	private int length;
+
+	private final byte[] header = new byte[6];
+
+	private int headerLength;
+
+	private StreamingCrlParser(InputStream in, String source) {
+		this.in = in;
+		this.source = source;
+		try {
+			this.crlDigest = MessageDigest.getInstance(RevocationIndex.CRL_HASH_ALG);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(RevocationIndex.CRL_HASH_ALG + " is not available", e);
+		}
+	}
+
+	/**
+	 * Разбор CRL из потока в индекс отозванных серийных номеров.
+	 * @param in - DER-кодировка CRL (поток не закрывается)
+	 * @param source - источник CRL (адрес CRLDP) для сообщений
+	 * @param trustSnapshot - сертификаты для проверки подписи CRL
+	 * @param indexDirectory - каталог индекса
+	 * @param indexName - имя индекса (см. {@link RevocationIndex.Writer})
+	 * @param currentDate - текущее время для проверки thisUpdate/nextUpdate
+	 * @return открытый индекс
+	 * @throws CertificateVerificationException - CRL просрочен, издатель CRL не найден или подпись неверна
+	 * @throws CRLException - CRL поврежден
+	 * @throws IOException
+	 * @throws GeneralSecurityException
+	 */
+	public static RevocationIndex parse(InputStream in, String source, TrustSnapshot trustSnapshot, File indexDirectory, String indexName, Date currentDate) throws CertificateVerificationException, IOException, GeneralSecurityException {
+		RevocationIndex.Writer writer = new RevocationIndex.Writer(indexDirectory, indexName);
+		try {
+			return new StreamingCrlParser(in, source).parse(trustSnapshot, writer, currentDate);
+		} finally {
+			writer.abort();
+		}
+	}
+
+	private RevocationIndex parse(TrustSnapshot trustSnapshot, RevocationIndex.Writer writer, Date currentDate) throws CertificateVerificationException, IOException, GeneralSecurityException {
+		readHeader(TAG_SEQUENCE); // CertificateList
+
+		prefix = new ByteArrayOutputStream(1024); // подпись начинается с заголовка TBSCertList
+		readHeader(TAG_SEQUENCE); // TBSCertList
+		long tbsEnd = position + length;
+
+		readHeader(-1);
+		if (tag == TAG_INTEGER) { // version
+			readContent();
+			readHeader(-1);
+		}
+		expect(TAG_SEQUENCE);
+		AlgorithmIdentifier tbsSignatureAlgorithm = AlgorithmIdentifier.getInstance(readElement());
+
+		readHeader(TAG_SEQUENCE);
+		X500Principal issuer = new X500Principal(readEncoded());
+
+		readHeader(-1);
+		Date thisUpdate = readTime();
+		Date nextUpdate = null;
+
+		// издатель известен - можно начинать проверку подписи
+		startVerification(issuer, tbsSignatureAlgorithm, trustSnapshot);
+
+		if (position < tbsEnd) {
+			readHeader(-1);
+			if (tag == TAG_UTC_TIME || tag == TAG_GENERALIZED_TIME) {
+				nextUpdate = readTime();
+				if (position < tbsEnd) {
+					readHeader(-1);
+				} else {
+					tag = -1;
+				}
+			}
+			if (tag == TAG_SEQUENCE) { // revokedCertificates
+				long revokedEnd = position + length;
+				while (position < revokedEnd) {
+					readHeader(TAG_SEQUENCE);
+					ASN1Sequence entry = ASN1Sequence.getInstance(readElement());
+					writer.add(DERInteger.getInstance(entry.getObjectAt(0)).getValue());
+				}
+				if (position != revokedEnd) {
+					throw new CRLException("Malformed revokedCertificates in CRL " + source);
+				}
+			} else if (tag != -1) {
+				readExtensions();
+			}
+			while (position < tbsEnd) {
+				readHeader(-1);
+				readExtensions();
+			}
+		}
+		if (position != tbsEnd) {
+			throw new CRLException("Malformed TBSCertList in CRL " + source);
+		}
+
+		// дальше подписанные данные закончились
+		List<Signature> verifying = signatures;
+		signatures = null;
+		readHeader(TAG_SEQUENCE);
+		AlgorithmIdentifier signatureAlgorithm = AlgorithmIdentifier.getInstance(readElement());
+		if (!signatureAlgorithm.getAlgorithm().equals(tbsSignatureAlgorithm.getAlgorithm())) {
+			throw new CRLException("Signature algorithm mismatch in CRL " + source + ": " + signatureAlgorithm.getAlgorithm() + " and " + tbsSignatureAlgorithm.getAlgorithm());
+		}
+		readHeader(TAG_BIT_STRING);
+		byte[] signatureValue = DERBitString.getInstance(readElement()).getBytes();
+
+		X509Certificate crlsTrueCert = null;
+		for (int i = 0; i < verifying.size() && crlsTrueCert == null; i++) {
+			try {
+				if (verifying.get(i).verify(signatureValue)) {
+					crlsTrueCert = signers.get(i);
+				}
+			} catch (java.security.SignatureException signatureException) {
+				LOG.fine(signatureException.getMessage() + " for " + signers.get(i).getSubjectDN().getName());
+			}
+		}
+		if (crlsTrueCert == null) {
+			throw new CertificateVerificationException(source + " signature invalid. May be you don't have CRL's issuer cert in store.");
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("CRL " + source + " signature validated with " + crlsTrueCert.getSubjectDN().getName() + " Serial: " + crlsTrueCert.getSerialNumber() + ", " + writer.getCount() + " revoked serials, " + position + " bytes");
+		}
+
+		// check CRL valid dates -----
+		boolean validRevoDates = currentDate.after(thisUpdate) && nextUpdate != null && currentDate.before(nextUpdate);
+		if (!validRevoDates) {
+			throw new CertificateVerificationException("CRL " + source + " is out of date. Next update " + nextUpdate + ", thisUpdate " + thisUpdate);
+		}
+		return writer.finish(issuer, thisUpdate, nextUpdate, crlNumber, crlDigest.digest(), crlsTrueCert);
+	}
+
+	/**
+	 * Чтение crlExtensions: номер CRL сохраняется в индексе (для delta CRL), delta CRL вместо полного CRL не принимается.
+	 */
+	private void readExtensions() throws IOException, GeneralSecurityException {
+		if (tag != TAG_CRL_EXTENSIONS) {
+			readContent();
+			return;
+		}
+		Extensions extensions = Extensions.getInstance(ASN1Primitive.fromByteArray(readContent()));
+		if (extensions.getExtension(Extension.deltaCRLIndicator) != null) {
+			throw new CRLException("CRL " + source + " is a delta CRL, complete CRL expected");
+		}
+		Extension number = extensions.getExtension(Extension.cRLNumber);
+		if (number != null) {
+			crlNumber = DERInteger.getInstance(number.getParsedValue()).getValue();
+		}
+	}
+
+	private void startVerification(X500Principal issuer, AlgorithmIdentifier algorithm, TrustSnapshot trustSnapshot) throws CertificateVerificationException, NoSuchAlgorithmException {
+		List<X509Certificate> potencialCRLCerts = trustSnapshot.getCertificatesBySubject(issuer);
+		if (potencialCRLCerts.size() == 0) {
+			throw new CertificateVerificationException("CRL " + source + " not verified. Principal of CRL not found in store. May be you don't have CRL's issuer cert in store.");
+		}
+		String algorithmOid = algorithm.getAlgorithm().getId();
+		signatures = new ArrayList<Signature>(potencialCRLCerts.size());
+		signers = new ArrayList<X509Certificate>(potencialCRLCerts.size());
+		byte[] signedPrefix = prefix.toByteArray();
+		prefix = null;
+		for (X509Certificate crlCert : potencialCRLCerts) {
+			try {
+				Signature signature = getSignature(algorithmOid);
+				signature.initVerify(crlCert.getPublicKey());
+				signature.update(signedPrefix);
+				signatures.add(signature);
+				signers.add(crlCert);
+			} catch (GeneralSecurityException e) {
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine(e.getClass().getName() + " problem with CRL: " + e.getMessage() + " for " + crlCert.getSubjectDN().getName());
+				}
+			}
+		}
+		if (signatures.isEmpty()) {
+			throw new CertificateVerificationException(source + " signature invalid. May be you don't have CRL's issuer cert in store.");
+		}
+	}
+
+	private static Signature getSignature(String algorithmOid) throws NoSuchAlgorithmException {
+		try {
+			return Signature.getInstance(algorithmOid);
+		} catch (NoSuchAlgorithmException e) {
+			return Signature.getInstance("OID." + algorithmOid);
+		}
+	}
+
+	/**
+	 * Передача подписанных байтов всем проверяемым подписям.
+	 */
+	private void signed(byte[] b, int off, int len) throws GeneralSecurityException {
+		if (prefix != null) {
+			prefix.write(b, off, len);
+		} else if (signatures != null) {
+			for (Signature signature : signatures) {
+				signature.update(b, off, len);
+			}
+		}
+	}
+
+	private int readByte() throws IOException {
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("Unexpected end of CRL " + source + " at " + position);
+		}
+		position++;
+		return b;
+	}
+
+	/**
+	 * Чтение тега и длины очередного элемента. Заголовок передается в дайджест CRL и, внутри TBSCertList, в подпись.
+	 * @param expectedTag - ожидаемый тег или -1
+	 */
+	private void readHeader(int expectedTag) throws IOException, GeneralSecurityException {
+		headerLength = 0;
+		tag = readByte();
+		header[headerLength++] = (byte) tag;
+		if ((tag & 0x1F) == 0x1F) {
+			throw new CRLException("High tag numbers are not supported in CRL " + source);
+		}
+		int first = readByte();
+		header[headerLength++] = (byte) first;
+		if (first < 0x80) {
+			length = first;
+		} else {
+			int count = first & 0x7F;
+			if (count == 0 || count > 4) {
+				throw new CRLException("Unsupported length encoding in CRL " + source + " (DER required)");
+			}
+			long len = 0;
+			for (int i = 0; i < count; i++) {
+				int b = readByte();
+				header[headerLength++] = (byte) b;
+				len = (len << 8) | b;
+			}
+			if (len > Integer.MAX_VALUE) {
+				throw new CRLException("Element too long in CRL " + source);
+			}
+			length = (int) len;
+		}
+		crlDigest.update(header, 0, headerLength);
+		signed(header, 0, headerLength);
+		if (expectedTag != -1) {
+			expect(expectedTag);
+		}
+	}
+
+	private void expect(int expectedTag) throws CRLException {
+		if (tag != expectedTag) {
+			throw new CRLException("Malformed CRL " + source + ": tag 0x" + Integer.toHexString(tag) + " at " + position + ", expected 0x" + Integer.toHexString(expectedTag));
+		}
+	}
+
+	/**
+	 * Чтение содержимого текущего элемента.
+	 */
+	private byte[] readContent() throws IOException, GeneralSecurityException {
+		if (length > MAX_ELEMENT_LENGTH) {
+			throw new CRLException("Element too long in CRL " + source + ": " + length + " bytes at " + position);
+		}
+		byte[] content = new byte[length];
+		int off = 0;
+		while (off < length) {
+			int n = in.read(content, off, length - off);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of CRL " + source + " at " + position);
+			}
+			off += n;
+		}
+		position += length;
+		crlDigest.update(content);
+		signed(content, 0, length);
+		return content;
+	}
+
+	/**
+	 * Чтение текущего элемента целиком (заголовок и содержимое) в ASN1Primitive.
+	 */
+	private ASN1Primitive readElement() throws IOException, GeneralSecurityException {
+		byte[] encoded = readEncoded();
+		return new ASN1InputStream(encoded).readObject();
+	}
+
+	private byte[] readEncoded() throws IOException, GeneralSecurityException {
+		int hl = headerLength;
+		byte[] h = header.clone();
+		byte[] content = readContent();
+		byte[] encoded = new byte[hl + content.length];
+		System.arraycopy(h, 0, encoded, 0, hl);
+		System.arraycopy(content, 0, encoded, hl, content.length);
+		return encoded;
+	}
+
+	private Date readTime() throws IOException, GeneralSecurityException {
+		if (tag != TAG_UTC_TIME && tag != TAG_GENERALIZED_TIME) {
+			throw new CRLException("Malformed CRL " + source + ": time expected at " + position);
+		}
+		return Time.getInstance(readElement()).getDate();
+	}
+}
@@ -0,0 +1,333 @@
+package org.lu.pki.tools;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyStore;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.CertStore;
+import java.security.cert.CollectionCertStoreParameters;
+import java.security.cert.PKIXBuilderParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509CertSelector;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Подготовленное для построения цепочек состояние хранилища: корневые (доверенные) и промежуточные сертификаты,
+ * TrustAnchor-ы, CertStore промежуточных сертификатов и шаблон PKIXBuilderParameters.
+ * Снимок неизменяемый и используется совместно всеми потоками. Для KeyStore снимок строится один раз на версию
+ * хранилища (см. {@link KeyStoreIndex#getVersion()}) и перестраивается, когда истекает срок действия
+ * одного из включенных сертификатов или наступает срок действия одного из отброшенных.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class TrustSnapshot {
+
+	private static final Logger LOG = Logger.getLogger(TrustSnapshot.class.getName());
+
+	private static final Map<KeyStore, TrustSnapshot> SNAPSHOTS = new WeakHashMap<KeyStore, TrustSnapshot>();
+
+	static final int MAX_SET_SNAPSHOTS = 32;
+
+	/**
+	 * Снимки для наборов сертификатов (ключ - копия набора), вытесняются давно не используемые.
+	 */
+	private static final Map<Set<X509Certificate>, TrustSnapshot> SET_SNAPSHOTS = new LinkedHashMap<Set<X509Certificate>, TrustSnapshot>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Set<X509Certificate>, TrustSnapshot> eldest) {
+			return size() > MAX_SET_SNAPSHOTS;
+		}
+
+	};
+
+	private static final AtomicLong VERSIONS = new AtomicLong();
+
+	private final long version;
+
+	private final long keyStoreIndexVersion;
+
+	private final Date validUntil;
+
+	private final Set<X509Certificate> trustedRootCerts;
+
+	private final Set<X509Certificate> intermediateCerts;
+
+	private final Set<X509Certificate> allCerts;
+
+	private final Set<TrustAnchor> trustAnchors;
+
+	private final Map<X500Principal, List<X509Certificate>> certsBySubject;
+
+	private final Map<String, X509Certificate> certsByFingerprint;
+
+	private final PKIXBuilderParameters template;
+
+	private TrustSnapshot(Set<X509Certificate> trustedRootCerts, Set<X509Certificate> intermediateCerts, long keyStoreIndexVersion, Date validUntil) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		this.version = VERSIONS.incrementAndGet();
+		this.keyStoreIndexVersion = keyStoreIndexVersion;
+		this.validUntil = validUntil;
+		this.trustedRootCerts = Collections.unmodifiableSet(new HashSet<X509Certificate>(trustedRootCerts));
+		this.intermediateCerts = Collections.unmodifiableSet(new HashSet<X509Certificate>(intermediateCerts));
+
+		Set<X509Certificate> all = new HashSet<X509Certificate>(trustedRootCerts);
+		all.addAll(intermediateCerts);
+		this.allCerts = Collections.unmodifiableSet(all);
+
+		Map<X500Principal, List<X509Certificate>> bySubject = new HashMap<X500Principal, List<X509Certificate>>();
+		for (X509Certificate cert : all) {
+			List<X509Certificate> list = bySubject.get(cert.getSubjectX500Principal());
+			if (list == null) {
+				list = new ArrayList<X509Certificate>(2);
+				bySubject.put(cert.getSubjectX500Principal(), list);
+			}
+			list.add(cert);
+		}
+		this.certsBySubject = bySubject;
+
+		Map<String, X509Certificate> byFingerprint = new HashMap<String, X509Certificate>();
+		for (X509Certificate cert : all) {
+			String fingerprint = CertificateMetadata.get(cert).getFingerprint();
+			if (fingerprint != null) {
+				byFingerprint.put(fingerprint, cert);
+			}
+		}
+		this.certsByFingerprint = byFingerprint;
+
+		// Create the trust anchors (set of root CA certificates)
+		Set<TrustAnchor> anchors = new HashSet<TrustAnchor>();
+		for (X509Certificate trustedRootCert : trustedRootCerts) {
+			anchors.add(new TrustAnchor(trustedRootCert, null));
+		}
+		this.trustAnchors = Collections.unmodifiableSet(anchors);
+
+		if (anchors.isEmpty()) { // PKIXBuilderParameters не допускает пустого набора TrustAnchor - ошибка будет при попытке построить цепочку
+			this.template = null;
+		} else {
+			this.template = new PKIXBuilderParameters(anchors, null);
+			// Specify a list of intermediate certificates
+			CertStore intermediateCertStore = CertStore.getInstance("Collection", new CollectionCertStoreParameters(this.intermediateCerts));
+			this.template.addCertStore(intermediateCertStore);
+		}
+	}
+
+	/**
+	 * Снимок для заданных наборов корневых и промежуточных сертификатов (без проверки дат).
+	 * @param trustedRootCerts - доверенные корневые сертификаты
+	 * @param intermediateCerts - промежуточные сертификаты
+	 * @return TrustSnapshot
+	 * @throws GeneralSecurityException
+	 */
+	public static TrustSnapshot build(Set<X509Certificate> trustedRootCerts, Set<X509Certificate> intermediateCerts) throws GeneralSecurityException {
+		return new TrustSnapshot(trustedRootCerts, intermediateCerts, 0, null);
+	}
+
+	/**
+	 * Снимок для набора сертификатов. Все самоподписанные сертификаты считаются доверенными корневыми, остальные - промежуточными.
+	 * @param additionalCerts
+	 * @return TrustSnapshot
+	 * @throws GeneralSecurityException
+	 */
+	public static TrustSnapshot build(Collection<X509Certificate> additionalCerts) throws GeneralSecurityException {
+		Set<X509Certificate> trustedRootCerts = new HashSet<X509Certificate>();
+		Set<X509Certificate> intermediateCerts = new HashSet<X509Certificate>();
+		sortCertificates(additionalCerts, trustedRootCerts, intermediateCerts);
+		return build(trustedRootCerts, intermediateCerts);
+	}
+
+	/**
+	 * Снимок для набора сертификатов, общий для всех вызовов с тем же содержимым набора (сравнение по сертификатам, а не по экземпляру набора).
+	 * Поэтому кэш результатов проверки и объединение загрузок CRL работают и при проверке по набору сертификатов.
+	 * Как и {@link #build(Collection)}, даты сертификатов не проверяются.
+	 * @param additionalCerts - самоподписанные считаются доверенными корневыми, остальные - промежуточными
+	 * @return TrustSnapshot
+	 * @throws GeneralSecurityException
+	 */
+	public static TrustSnapshot of(Collection<X509Certificate> additionalCerts) throws GeneralSecurityException {
+		Set<X509Certificate> key = Collections.unmodifiableSet(new HashSet<X509Certificate>(additionalCerts));
+		synchronized (SET_SNAPSHOTS) {
+			TrustSnapshot snapshot = SET_SNAPSHOTS.get(key);
+			if (snapshot == null) {
+				snapshot = build(key);
+				SET_SNAPSHOTS.put(key, snapshot);
+			}
+			return snapshot;
+		}
+	}
+
+	/**
+	 * Актуальный снимок для хранилища. Просроченные и еще не действующие сертификаты в снимок не попадают.
+	 * @param keyStore
+	 * @return TrustSnapshot
+	 * @throws GeneralSecurityException - в т.ч. KeyStoreException при проблемах доступа к хранилищу
+	 */
+	public static TrustSnapshot of(KeyStore keyStore) throws GeneralSecurityException {
+		KeyStoreIndex index = KeyStoreIndex.of(keyStore);
+		Date now = new Date();
+		synchronized (SNAPSHOTS) {
+			TrustSnapshot snapshot = SNAPSHOTS.get(keyStore);
+			if (snapshot == null || snapshot.keyStoreIndexVersion != index.getVersion() || snapshot.isExpired(now)) {
+				snapshot = build(index, now);
+				SNAPSHOTS.put(keyStore, snapshot);
+			}
+			return snapshot;
+		}
+	}
+
+	private static TrustSnapshot build(KeyStoreIndex index, Date now) throws GeneralSecurityException {
+		Set<X509Certificate> validCerts = new HashSet<X509Certificate>();
+		Date validUntil = null;
+		// выборка всех действующих сертификатов из хранилища
+		for (String alias : index.getAliases()) {
+			X509Certificate c = index.getCertificate(alias);
+			if (c == null) {
+				continue;
+			}
+			if (now.after(c.getNotAfter())) {
+				LOG.severe(alias + " (" + c.getSubjectDN().getName() + ") expired " + c.getNotAfter() + " and skipped");
+				continue;
+			}
+			if (now.before(c.getNotBefore())) {
+				LOG.severe(alias + " (" + c.getSubjectDN().getName() + ") not yet valide " + c.getNotBefore() + " and skipped");
+				validUntil = earliest(validUntil, c.getNotBefore());
+				continue;
+			}
+			validUntil = earliest(validUntil, c.getNotAfter());
+			validCerts.add(c);
+		}
+
+		Set<X509Certificate> trustedRootCerts = new HashSet<X509Certificate>();
+		Set<X509Certificate> intermediateCerts = new HashSet<X509Certificate>();
+		sortCertificates(validCerts, trustedRootCerts, intermediateCerts);
+
+		TrustSnapshot snapshot = new TrustSnapshot(trustedRootCerts, intermediateCerts, index.getVersion(), validUntil);
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Trust snapshot #" + snapshot.version + " built for key store index #" + index.getVersion() + ": " + trustedRootCerts.size() + " trusted, " + intermediateCerts.size() + " intermediate, valid until " + validUntil);
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Prepare a set of trusted root CA certificates and a set of intermediate certificates
+	 */
+	private static void sortCertificates(Collection<X509Certificate> additionalCerts, Set<X509Certificate> trustedRootCerts, Set<X509Certificate> intermediateCerts) throws GeneralSecurityException {
+		LOG.fine("Start sorting certificates...");
+		for (X509Certificate additionalCert : additionalCerts) {
+			if (PKIXUtils.isSelfSigned(additionalCert)) {
+				trustedRootCerts.add(additionalCert);
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Certificate " + additionalCert.getSubjectDN().getName() + " added as trusted certificate (TRUSTED)");
+				}
+			} else {
+				intermediateCerts.add(additionalCert);
+				if (LOG.isLoggable(Level.FINE)) {
+					LOG.fine("Certificate " + additionalCert.getSubjectDN().getName() + " added as intermediate certificate (INTERMID)");
+				}
+			}
+		}
+	}
+
+	private static Date earliest(Date current, Date candidate) {
+		return current == null || candidate.before(current) ? candidate : current;
+	}
+
+	/**
+	 * Новые параметры построения (проверки) цепочки для сертификата на основе подготовленного шаблона.
+	 * @param cert - проверяемый сертификат
+	 * @param provider - провайдер подписи (или null)
+	 * @param revocationEnabled - включить штатную проверку отзыва (CRLDP, OCSP)
+	 * @return PKIXBuilderParameters - копия, которую можно менять
+	 * @throws InvalidAlgorithmParameterException - если в снимке нет доверенных сертификатов
+	 * @throws NoSuchAlgorithmException
+	 */
+	public PKIXBuilderParameters newBuilderParameters(X509Certificate cert, String provider, boolean revocationEnabled) throws InvalidAlgorithmParameterException, NoSuchAlgorithmException {
+		if (template == null) {
+			throw new InvalidAlgorithmParameterException("the trustAnchors parameter must be non-empty");
+		}
+		PKIXBuilderParameters pkixParams = (PKIXBuilderParameters) template.clone();
+
+		// Create the selector that specifies the starting certificate
+		X509CertSelector selector = new X509CertSelector();
+		selector.setCertificate(cert);
+		pkixParams.setTargetCertConstraints(selector);
+
+		pkixParams.setRevocationEnabled(revocationEnabled);
+		pkixParams.setSigProvider(provider);
+
+		// Workaround for IBM J9: проверяемый сертификат должен быть среди промежуточных
+		pkixParams.addCertStore(CertStore.getInstance("Collection", new CollectionCertStoreParameters(Collections.singleton(cert))));
+		return pkixParams;
+	}
+
+	/**
+	 * @param now
+	 * @return true - если снимок нужно перестроить (истек срок действия одного из сертификатов или вступил в силу отброшенный).
+	 */
+	public boolean isExpired(Date now) {
+		return validUntil != null && !now.before(validUntil);
+	}
+
+	/**
+	 * Уникальная в пределах JVM версия снимка.
+	 * @return
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	public Set<X509Certificate> getTrustedRootCerts() {
+		return trustedRootCerts;
+	}
+
+	public Set<X509Certificate> getIntermediateCerts() {
+		return intermediateCerts;
+	}
+
+	/**
+	 * @return все сертификаты снимка (корневые и промежуточные)
+	 */
+	public Set<X509Certificate> getAllCerts() {
+		return allCerts;
+	}
+
+	public Set<TrustAnchor> getTrustAnchors() {
+		return trustAnchors;
+	}
+
+	/**
+	 * Поиск сертификата по SHA-256 отпечатку (см. {@link PKIXUtils#getFingerprint(X509Certificate)}).
+	 * @param fingerprint - отпечаток или null
+	 * @return сертификат или null, если его нет в снимке
+	 */
+	public X509Certificate getCertificateByFingerprint(String fingerprint) {
+		return fingerprint != null ? certsByFingerprint.get(fingerprint) : null;
+	}
+
+	/**
+	 * Поиск сертификатов по имени субъекта (например, для проверки подписи CRL).
+	 * @param subject
+	 * @return список сертификатов. Пустой список, если сертификатов нет.
+	 */
+	public List<X509Certificate> getCertificatesBySubject(X500Principal subject) {
+		List<X509Certificate> res = certsBySubject.get(subject);
+		return res != null ? Collections.unmodifiableList(res) : Collections.<X509Certificate>emptyList();
+	}
+}
@@ -0,0 +1,182 @@
+package org.lu.pki.tools;
+
+import java.security.cert.Certificate;
+import java.security.cert.PKIXCertPathBuilderResult;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Кэш успешных результатов проверки сертификатов (построенная цепочка + проверка отзыва).
+ * Ключ - SHA-256 отпечаток проверяемого сертификата, версия {@link TrustSnapshot}, параметры проверки и поколение настроек
+ * проверки отзыва ({@link CertificateVerifier#getRevocationConfigGeneration()}), поэтому при изменении хранилища, подключении клиента OCSP,
+ * источника CRL, delta CRL или индексов старые записи просто перестают находиться и вытесняются по LRU.
+ * Запись действительна до самой ранней из дат: notAfter любого сертификата цепочки (включая доверенный),
+ * nextUpdate использованного CRL (если известен) и момента истечения TTL.
+ * Ошибки проверки не кэшируются.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public final class VerificationResultCache {
+
+	private static final Logger LOG = Logger.getLogger(VerificationResultCache.class.getName());
+
+	public static final int DEFAULT_MAX_SIZE = 1024;
+
+	public static final long DEFAULT_TTL_MILLIS = 5 * 60 * 1000L;
+
+	private static final class Entry {
+		private final CertificateVerificationResult result;
+		private final long expiresAt;
+
+		private Entry(CertificateVerificationResult result, long expiresAt) {
+			this.result = result;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int maxSize;
+
+	private final long ttlMillis;
+
+	private final LinkedHashMap<String, Entry> entries;
+
+	private final AtomicLong hits = new AtomicLong();
+
+	private final AtomicLong misses = new AtomicLong();
+
+	/**
+	 * @param maxSize - максимальное количество результатов в кэше
+	 * @param ttlMillis - максимальное время жизни результата. Должно быть положительным.
+	 */
+	public VerificationResultCache(final int maxSize, long ttlMillis) {
+		if (maxSize < 1) {
+			throw new IllegalArgumentException("maxSize must be positive: " + maxSize);
+		}
+		if (ttlMillis < 1) {
+			throw new IllegalArgumentException("ttlMillis must be positive: " + ttlMillis);
+		}
+		this.maxSize = maxSize;
+		this.ttlMillis = ttlMillis;
+		this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) { // access-order -> LRU
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	/**
+	 * Ключ кэша.
+	 * @param fingerprint - отпечаток проверяемого сертификата
+	 * @param trustSnapshot - снимок доверенных сертификатов, на котором выполнялась проверка
+	 * @param allowSelfSigned
+	 * @param provider - провайдер подписи (или null)
+	 * @return
+	 */
+	public static String key(String fingerprint, TrustSnapshot trustSnapshot, boolean allowSelfSigned, String provider) {
+		// флаги OCSP/CRLDP тоже входят в ключ: результат без проверки отзыва не должен подменять результат с проверкой
+		StringBuilder sb = new StringBuilder(fingerprint.length() + 48);
+		sb.append(fingerprint).append('#').append(trustSnapshot.getVersion());
+		sb.append('#').append(allowSelfSigned ? 'S' : '-');
+		sb.append(PKIXUtils.isOCSPEnabled() ? 'O' : '-');
+		sb.append(PKIXUtils.isSunCRLDPEnabled() ? 'C' : '-');
+		sb.append(PKIXUtils.isIbmCRLDPEnabled() ? 'I' : '-');
+		sb.append('#').append(CertificateVerifier.getRevocationConfigGeneration());
+		sb.append('#').append(provider);
+		return sb.toString();
+	}
+
+	/**
+	 * @param key - см. {@link #key(String, TrustSnapshot, boolean, String)}
+	 * @return результат или null, если результата нет в кэше или он устарел.
+	 */
+	public CertificateVerificationResult get(String key) {
+		Entry entry;
+		synchronized (this) {
+			entry = entries.get(key);
+			if (entry != null && System.currentTimeMillis() >= entry.expiresAt) {
+				entries.remove(key);
+				entry = null;
+			}
+		}
+		if (entry == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return entry.result;
+	}
+
+	/**
+	 * Сохранение успешного результата проверки.
+	 * @param key - см. {@link #key(String, TrustSnapshot, boolean, String)}
+	 * @param result - результат проверки
+	 * @param crlNextUpdate - nextUpdate CRL, по которому проверялся отзыв (или null)
+	 */
+	public void put(String key, CertificateVerificationResult result, Date crlNextUpdate) {
+		if (result == null || !result.isValid()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		long expiresAt = now + ttlMillis;
+		if (crlNextUpdate != null) {
+			expiresAt = Math.min(expiresAt, crlNextUpdate.getTime());
+		}
+		PKIXCertPathBuilderResult buildPathResult = result.getBuildPathResult();
+		if (buildPathResult != null) {
+			for (Certificate c : buildPathResult.getCertPath().getCertificates()) {
+				expiresAt = Math.min(expiresAt, ((X509Certificate) c).getNotAfter().getTime());
+			}
+			X509Certificate trustedCert = buildPathResult.getTrustAnchor().getTrustedCert();
+			if (trustedCert != null) {
+				expiresAt = Math.min(expiresAt, trustedCert.getNotAfter().getTime());
+			}
+		}
+		if (expiresAt <= now) {
+			return;
+		}
+		synchronized (this) {
+			entries.put(key, new Entry(result, expiresAt));
+		}
+		if (LOG.isLoggable(Level.FINE)) {
+			LOG.fine("Verification result cached for " + (expiresAt - now) + "ms");
+		}
+	}
+
+	public synchronized void invalidateAll() {
+		entries.clear();
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+
+	public long getHitCount() {
+		return hits.get();
+	}
+
+	public long getMissCount() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "VerificationResultCache [size=" + size() + "/" + maxSize + ", ttl=" + ttlMillis + "ms, hits=" + hits.get() + ", misses=" + misses.get() + "]";
+	}
+}
@@ -0,0 +1,423 @@
+package org.lu.pkcs7.cms;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.CRLNumber;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.lu.pki.tools.CertificateVerifier;
+import org.lu.pki.tools.OcspClient;
+import org.lu.pki.tools.SingleFlight;
+
+/**
+ * Проверка объединения одновременных загрузок без сети: N потоков обращаются к одному медленному адресу,
+ * сервер должен получить ровно один запрос.
+ * <br>Проверяются {@link SingleFlight} (одновременные вызовы, прерывание ожидающего потока, общее исключение),
+ * загрузка CRL, индекса отзыва, delta CRL (ручная проверка CRLDP) и запрос статуса OCSP.</br>
+ * <br>Аргументы: количество потоков (20), задержка ответа сервера в мс (1000).</br>
+ */
+public class ConcurrentLoadCheck {
+
+	private static final long WAIT_SECONDS = 60;
+
+	private final int threads;
+
+	private final long delayMillis;
+
+	private final KeyPair caKeys;
+
+	private final X500Name caName = new X500Name("CN=Local Concurrent Load Test CA");
+
+	private final X509Certificate caCert;
+
+	private final KeyStore keyStore;
+
+	private final Date notBefore = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000L);
+
+	private final Date notAfter = new Date(System.currentTimeMillis() + 365 * 24 * 60 * 60 * 1000L);
+
+	private int serial = 1000;
+
+	/**
+	 * Результаты одновременных вызовов: значения и исключения по потокам.
+	 */
+	private static final class Outcome {
+		private final List<Object> values = Collections.synchronizedList(new ArrayList<Object>());
+		private final List<Exception> failures = Collections.synchronizedList(new ArrayList<Exception>());
+
+		/**
+		 * @return количество различных (по ссылке) исключений
+		 */
+		private int distinctFailures() {
+			Set<Exception> distinct = Collections.newSetFromMap(new IdentityHashMap<Exception, Boolean>());
+			synchronized (failures) {
+				distinct.addAll(failures);
+			}
+			return distinct.size();
+		}
+	}
+
+	private ConcurrentLoadCheck(int threads, long delayMillis) throws Exception {
+		this.threads = threads;
+		this.delayMillis = delayMillis;
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		caKeys = generator.generateKeyPair();
+		JcaX509v3CertificateBuilder caBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, notBefore, notAfter, caName, caKeys.getPublic());
+		caBuilder.addExtension(X509Extension.basicConstraints, true, new BasicConstraints(true));
+		caCert = new JcaX509CertificateConverter().getCertificate(caBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+		keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(null, null);
+		keyStore.setCertificateEntry("ca", caCert);
+	}
+
+	public static void main(String[] args) throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		int threads = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		long delayMillis = args.length > 1 ? Long.parseLong(args[1]) : 1000;
+
+		// ручная проверка CRLDP (в которой загрузки объединяются) выполняется на IBM J9
+		System.setProperty("com.ibm.security.enableCRLDP", "true");
+		if (!System.getProperty("java.vendor").toUpperCase().contains("IBM")) {
+			System.setProperty("java.vendor", "IBM (emulated by " + System.getProperty("java.vendor") + ")");
+		}
+		// без кэшей и опережающей загрузки: каждая проверка обращается к серверу, объединяются только одновременные
+		CertificateVerifier.setResultCache(0, 0);
+		CertificateVerifier.setCrlCache(0);
+		CertificateVerifier.setEndpointHealthTracker(null);
+		CertificateVerifier.setCrlHedgeDelayMillis(-1);
+
+		ConcurrentLoadCheck check = new ConcurrentLoadCheck(threads, delayMillis);
+		check.checkSingleFlight();
+		check.checkSingleFlightFailure();
+		check.checkWaiterInterruption();
+		check.checkCrlLoads();
+		check.checkCrlLoadFailure();
+		check.checkIndexLoads();
+		check.checkDeltaLoads();
+		check.checkOcspLoads();
+		System.out.println("All checks passed");
+	}
+
+	private void checkSingleFlight() throws Exception {
+		final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+		Outcome outcome = runConcurrently(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return flight.execute("key", new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						Thread.sleep(delayMillis);
+						return new Object();
+					}
+				});
+			}
+		});
+		expect(outcome.failures.isEmpty(), "SingleFlight callers failed: " + outcome.failures);
+		expect(distinct(outcome.values) == 1, "SingleFlight callers got " + distinct(outcome.values) + " different values");
+		expect(flight.getExecutedCount() == 1, "SingleFlight executed " + flight.getExecutedCount() + " loads");
+		expect(flight.getSharedCount() == threads - 1, "SingleFlight shared " + flight.getSharedCount() + " results");
+		expect(flight.getInFlightCount() == 0, "SingleFlight left " + flight.getInFlightCount() + " loads in flight");
+		System.out.println("SingleFlight: " + threads + " callers, " + flight.getExecutedCount() + " load");
+	}
+
+	private void checkSingleFlightFailure() throws Exception {
+		final SingleFlight<String, Object> flight = new SingleFlight<String, Object>();
+		Outcome outcome = runConcurrently(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return flight.execute("key", new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						Thread.sleep(delayMillis);
+						throw new IOException("Load failed");
+					}
+				});
+			}
+		});
+		expect(outcome.failures.size() == threads, "SingleFlight failure reached " + outcome.failures.size() + " callers");
+		expect(outcome.distinctFailures() == 1, "SingleFlight callers got " + outcome.distinctFailures() + " different exceptions");
+		expect(flight.getExecutedCount() == 1, "SingleFlight executed " + flight.getExecutedCount() + " loads");
+		System.out.println("SingleFlight failure: " + threads + " callers, " + flight.getExecutedCount() + " load, one shared exception");
+	}
+
+	private void checkWaiterInterruption() throws Exception {
+		final SingleFlight<String, String> flight = new SingleFlight<String, String>();
+		final CountDownLatch loading = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Outcome leaderOutcome = new Outcome();
+		final Outcome waiterOutcome = new Outcome();
+		final boolean[] waiterInterrupted = new boolean[1];
+		Thread leader = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					leaderOutcome.values.add(flight.execute("key", new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							loading.countDown();
+							release.await();
+							return "loaded";
+						}
+					}));
+				} catch (Exception e) {
+					leaderOutcome.failures.add(e);
+				}
+			}
+		});
+		Thread waiter = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					waiterOutcome.values.add(flight.execute("key", new Callable<String>() {
+						@Override
+						public String call() throws Exception {
+							return "not shared";
+						}
+					}));
+				} catch (Exception e) {
+					waiterOutcome.failures.add(e);
+				}
+				waiterInterrupted[0] = Thread.currentThread().isInterrupted();
+			}
+		});
+		leader.start();
+		expect(loading.await(WAIT_SECONDS, TimeUnit.SECONDS), "Leader didn't start loading");
+		waiter.start();
+		long deadline = System.currentTimeMillis() + WAIT_SECONDS * 1000;
+		while (flight.getSharedCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		waiter.interrupt();
+		waiter.join(WAIT_SECONDS * 1000);
+		release.countDown();
+		leader.join(WAIT_SECONDS * 1000);
+		expect(waiterOutcome.failures.size() == 1 && waiterOutcome.failures.get(0) instanceof InterruptedIOException, "Interrupted waiter got " + waiterOutcome.values + " " + waiterOutcome.failures);
+		expect(waiterInterrupted[0], "Interrupted waiter lost its interrupt status");
+		expect(leaderOutcome.values.equals(Collections.singletonList("loaded")), "Leader got " + leaderOutcome.values + " " + leaderOutcome.failures);
+		expect(flight.getExecutedCount() == 1 && flight.getInFlightCount() == 0, "SingleFlight executed " + flight.getExecutedCount() + ", in flight " + flight.getInFlightCount());
+		System.out.println("SingleFlight waiter interruption: InterruptedIOException, leader completed");
+	}
+
+	private void checkCrlLoads() throws Exception {
+		LocalCrlServer server = new LocalCrlServer(crl(1, null));
+		server.setDelayMillis(delayMillis);
+		try {
+			X509Certificate cert = endCertificate(server.start(), null, null);
+			Outcome outcome = verifyConcurrently(cert);
+			expect(outcome.failures.isEmpty(), "CRL verifications failed: " + outcome.failures);
+			expect(server.getRequestCount() == 1, "CRL downloaded " + server.getRequestCount() + " times");
+			System.out.println("CRL: " + threads + " verifications, " + server.getRequestCount() + " download");
+		} finally {
+			server.stop();
+		}
+	}
+
+	private void checkCrlLoadFailure() throws Exception {
+		LocalCrlServer server = new LocalCrlServer(crl(1, null));
+		server.setDelayMillis(delayMillis);
+		server.setStatus(500);
+		try {
+			X509Certificate cert = endCertificate(server.start(), null, null);
+			Outcome outcome = verifyConcurrently(cert);
+			expect(outcome.failures.size() == threads, "CRL download failure reached " + outcome.failures.size() + " verifications");
+			expect(server.getRequestCount() == 1, "Failed CRL requested " + server.getRequestCount() + " times");
+			System.out.println("CRL failure: " + threads + " verifications failed, " + server.getRequestCount() + " request");
+		} finally {
+			server.stop();
+		}
+	}
+
+	private void checkIndexLoads() throws Exception {
+		File directory = new File(System.getProperty("java.io.tmpdir"), "concurrent-load-check-" + System.nanoTime());
+		LocalCrlServer server = new LocalCrlServer(crl(1, null));
+		server.setDelayMillis(delayMillis);
+		CertificateVerifier.setRevocationIndexDirectory(directory);
+		try {
+			X509Certificate cert = endCertificate(server.start(), null, null);
+			Outcome outcome = verifyConcurrently(cert);
+			expect(outcome.failures.isEmpty(), "Index verifications failed: " + outcome.failures);
+			expect(server.getRequestCount() == 1, "CRL for index downloaded " + server.getRequestCount() + " times");
+			System.out.println("Revocation index: " + threads + " verifications, " + server.getRequestCount() + " download");
+		} finally {
+			CertificateVerifier.setRevocationIndexDirectory(null);
+			server.stop();
+			delete(directory);
+		}
+	}
+
+	private void checkDeltaLoads() throws Exception {
+		LocalCrlServer base = new LocalCrlServer(crl(10, null));
+		LocalCrlServer delta = new LocalCrlServer(crl(11, Long.valueOf(10)));
+		delta.setDelayMillis(delayMillis);
+		CertificateVerifier.setCrlCache(1 << 20);
+		CertificateVerifier.setDeltaCrlCache(16);
+		try {
+			X509Certificate cert = endCertificate(base.start(), delta.start(), null);
+			CertificateVerifier.verifyCertificate(cert, keyStore, false); // базовый CRL и первый delta CRL в кэше
+			CertificateVerifier.getDeltaCrlCache().invalidateAll();
+			long before = delta.getRequestCount();
+			Outcome outcome = verifyConcurrently(cert);
+			expect(outcome.failures.isEmpty(), "Delta CRL verifications failed: " + outcome.failures);
+			expect(delta.getRequestCount() - before == 1, "Delta CRL downloaded " + (delta.getRequestCount() - before) + " times");
+			System.out.println("Delta CRL: " + threads + " verifications, " + (delta.getRequestCount() - before) + " download");
+		} finally {
+			CertificateVerifier.setCrlCache(0);
+			base.stop();
+			delta.stop();
+		}
+	}
+
+	private void checkOcspLoads() throws Exception {
+		LocalOcspResponder responder = new LocalOcspResponder(caCert, caKeys.getPrivate());
+		responder.setDelayMillis(delayMillis);
+		try {
+			final X509Certificate cert = endCertificate(null, null, responder.start());
+			final OcspClient client = new OcspClient();
+			client.setResponseCache(0);
+			Outcome outcome = runConcurrently(new Callable<Object>() {
+				@Override
+				public Object call() throws Exception {
+					return client.getStatus(cert, caCert);
+				}
+			});
+			expect(outcome.failures.isEmpty(), "OCSP requests failed: " + outcome.failures);
+			expect(distinct(outcome.values) == 1, "OCSP callers got " + distinct(outcome.values) + " different statuses");
+			expect(responder.getRequestCount() == 1, "OCSP responder got " + responder.getRequestCount() + " requests");
+			System.out.println("OCSP: " + threads + " callers, " + responder.getRequestCount() + " request");
+		} finally {
+			responder.stop();
+		}
+	}
+
+	private Outcome verifyConcurrently(final X509Certificate cert) throws Exception {
+		return runConcurrently(new Callable<Object>() {
+			@Override
+			public Object call() throws Exception {
+				return CertificateVerifier.verifyCertificate(cert, keyStore, false);
+			}
+		});
+	}
+
+	/**
+	 * Одновременный запуск задачи в threads потоках.
+	 */
+	private Outcome runConcurrently(final Callable<?> task) throws Exception {
+		final Outcome outcome = new Outcome();
+		final CountDownLatch ready = new CountDownLatch(threads);
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int i = 0; i < threads; i++) {
+			workers[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ready.countDown();
+					try {
+						start.await();
+						outcome.values.add(task.call());
+					} catch (Exception e) {
+						outcome.failures.add(e);
+					}
+				}
+			});
+			workers[i].start();
+		}
+		ready.await();
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join(WAIT_SECONDS * 1000);
+			expect(!worker.isAlive(), "Worker " + worker.getName() + " didn't finish in " + WAIT_SECONDS + " s");
+		}
+		return outcome;
+	}
+
+	private byte[] crl(long number, Long baseNumber) throws Exception {
+		X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(caName, new Date(System.currentTimeMillis() - 60 * 1000L));
+		crlBuilder.setNextUpdate(new Date(System.currentTimeMillis() + 60 * 60 * 1000L));
+		crlBuilder.addExtension(X509Extension.cRLNumber, false, new CRLNumber(BigInteger.valueOf(number)));
+		if (baseNumber != null) {
+			crlBuilder.addExtension(X509Extension.deltaCRLIndicator, true, new CRLNumber(BigInteger.valueOf(baseNumber.longValue())));
+		}
+		crlBuilder.addCRLEntry(BigInteger.valueOf(999), new Date(), 1);
+		return crlBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())).getEncoded();
+	}
+
+	/**
+	 * @param crlUrl - адрес CRLDP или null
+	 * @param deltaUrl - адрес FreshestCRL или null
+	 * @param ocspUrl - адрес OCSP или null
+	 */
+	private X509Certificate endCertificate(String crlUrl, String deltaUrl, String ocspUrl) throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(1024);
+		JcaX509v3CertificateBuilder endBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.valueOf(serial++), notBefore, notAfter, new X500Name("CN=End " + serial), generator.generateKeyPair().getPublic());
+		if (crlUrl != null) {
+			endBuilder.addExtension(X509Extension.cRLDistributionPoints, false, new CRLDistPoint(new DistributionPoint[] { distributionPoint(crlUrl) }));
+		}
+		if (deltaUrl != null) {
+			endBuilder.addExtension(X509Extension.freshestCRL, false, new CRLDistPoint(new DistributionPoint[] { distributionPoint(deltaUrl) }));
+		}
+		if (ocspUrl != null) {
+			endBuilder.addExtension(X509Extension.authorityInfoAccess, false, new AuthorityInformationAccess(AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, ocspUrl)));
+		}
+		return new JcaX509CertificateConverter().getCertificate(endBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+	}
+
+	private static DistributionPoint distributionPoint(String url) {
+		return new DistributionPoint(new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url))), null, null);
+	}
+
+	private static int distinct(List<Object> values) {
+		Set<Object> distinct = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+		synchronized (values) {
+			distinct.addAll(values);
+		}
+		return distinct.size();
+	}
+
+	private static void expect(boolean condition, String problem) {
+		if (!condition) {
+			throw new IllegalStateException(problem);
+		}
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,101 @@
+package org.lu.pkcs7.cms;
+
+import java.io.ByteArrayInputStream;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.security.Security;
+import java.util.Random;
+
+import org.lu.pki.tools.DigestService;
+
+/**
+ * Сравнение прежнего побайтного вычисления хэша (DigestInputStream.read() по одному байту, новый MessageDigest на каждый вызов)
+ * с {@link DigestService} на массиве и на потоке.
+ * <br>Аргументы: алгоритм (SHA-256; GOST - JCP.GOST_DIGEST_NAME, провайдер JCP подключается, если он есть в classpath),
+ * размеры данных в байтах через запятую (1024,1048576,52428800), время прогона одного размера в мс (2000).</br>
+ */
+public class DigestBenchmark {
+
+	private static final String GOST_DIGEST_NAME = "GOST3411";
+
+	private static final String JCP_PROVIDER_CLASS = "ru.CryptoPro.JCP.JCP";
+
+	private interface Digester {
+		byte[] digest(byte[] data) throws Exception;
+	}
+
+	public static void main(String[] args) throws Exception {
+		String algorithm = args.length > 0 ? args[0] : "SHA-256";
+		String sizes = args.length > 1 ? args[1] : "1024,1048576,52428800";
+		long runMillis = args.length > 2 ? Long.parseLong(args[2]) : 2000;
+
+		if ("GOST".equalsIgnoreCase(algorithm)) {
+			algorithm = GOST_DIGEST_NAME;
+		}
+		if (Security.getProviders("MessageDigest." + algorithm) == null) {
+			// ГОСТ Р 34.11 есть только в JCP
+			Security.addProvider((Provider) Class.forName(JCP_PROVIDER_CLASS).newInstance());
+		}
+		final String digestAlgorithm = algorithm;
+		System.out.println("Algorithm " + digestAlgorithm + ", provider " + MessageDigest.getInstance(digestAlgorithm).getProvider().getName());
+
+		Digester byteAtATime = new Digester() {
+			@Override
+			public byte[] digest(byte[] data) throws Exception {
+				final MessageDigest digest = MessageDigest.getInstance(digestAlgorithm);
+				final DigestInputStream digestStream = new DigestInputStream(new ByteArrayInputStream(data), digest);
+				while (digestStream.available() != 0) digestStream.read();
+				return digest.digest();
+			}
+		};
+		Digester bulkArray = new Digester() {
+			@Override
+			public byte[] digest(byte[] data) throws Exception {
+				return DigestService.digest(digestAlgorithm, data);
+			}
+		};
+		Digester bulkStream = new Digester() {
+			@Override
+			public byte[] digest(byte[] data) throws Exception {
+				return DigestService.digest(digestAlgorithm, new ByteArrayInputStream(data));
+			}
+		};
+
+		Random random = new Random(1);
+		for (String size : sizes.split(",")) {
+			byte[] data = new byte[Integer.parseInt(size.trim())];
+			random.nextBytes(data);
+			byte[] expected = byteAtATime.digest(data);
+			if (!DigestService.isEqual(expected, bulkArray.digest(data)) || !DigestService.isEqual(expected, bulkStream.digest(data))) {
+				throw new IllegalStateException("DigestService result differs from byte-at-a-time digest for " + data.length + " bytes");
+			}
+			System.out.println(data.length + " bytes:");
+			measure("  byte-at-a-time", byteAtATime, data, runMillis);
+			measure("  DigestService (byte[])", bulkArray, data, runMillis);
+			measure("  DigestService (InputStream)", bulkStream, data, runMillis);
+		}
+	}
+
+	/**
+	 * Прогрев и прогон в течение runMillis. Выводит среднее время операции и пропускную способность.
+	 */
+	private static void measure(String name, Digester digester, byte[] data, long runMillis) throws Exception {
+		long warmupEnd = System.currentTimeMillis() + runMillis / 4;
+		while (System.currentTimeMillis() < warmupEnd) {
+			digester.digest(data);
+		}
+		long operations = 0;
+		long started = System.nanoTime();
+		long deadline = started + runMillis * 1000000L;
+		long now;
+		do {
+			digester.digest(data);
+			operations++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		long perOperation = (now - started) / operations;
+		double megabytesPerSecond = (double) data.length * operations / (1024 * 1024) / ((now - started) / 1e9);
+		System.out.println(name + ": " + operations + " ops, " + perOperation / 1000 + " us/op, " + String.format("%.1f", megabytesPerSecond) + " MB/s");
+	}
+}
@@ -0,0 +1,234 @@
+package org.lu.pkcs7.cms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.Date;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLDistPoint;
+import org.bouncycastle.asn1.x509.DistributionPoint;
+import org.bouncycastle.asn1.x509.DistributionPointName;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.GeneralNames;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509v2CRLBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.lu.pki.tools.CertificateVerifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * CRLDP в процессе для проверки загрузки CRL без сети: отдает заданный CRL с искусственной задержкой или кодом ошибки.
+ * CRL отдается с ETag (версия CRL), на If-None-Match с тем же ETag отвечает 304, при Accept-Encoding: gzip сжимает ответ.
+ * main() сравнивает последовательный перебор зеркал CRLDP с опережающей (hedged) загрузкой при медленном первом зеркале.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class LocalCrlServer implements HttpHandler {
+
+	private volatile byte[] crl;
+
+	private volatile long delayMillis = 0;
+
+	private volatile int status = 200;
+
+	private volatile int version = 1;
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private final AtomicLong notModifiedCount = new AtomicLong();
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	public LocalCrlServer(byte[] crl) {
+		this.crl = crl;
+	}
+
+	/**
+	 * Запуск на свободном порту localhost.
+	 * @return адрес CRL для CRLDP
+	 */
+	public String start() throws IOException {
+		System.setProperty("sun.net.httpserver.nodelay", "true"); // иначе Nagle + delayed ACK добавляют ~40 мс к каждому ответу
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/crl", this);
+		executor = Executors.newCachedThreadPool();
+		server.setExecutor(executor);
+		server.start();
+		return getUrl();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/crl/ca.crl";
+	}
+
+	public void setCrl(byte[] crl) {
+		this.crl = crl;
+		version++;
+	}
+
+	/**
+	 * Искусственная задержка ответа (медленное зеркало).
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	/**
+	 * @param status - код ответа (не 200 - ответ без тела)
+	 */
+	public void setStatus(int status) {
+		this.status = status;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return количество ответов 304
+	 */
+	public long getNotModifiedCount() {
+		return notModifiedCount.get();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		try {
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			if (status != 200) {
+				exchange.sendResponseHeaders(status, -1);
+				return;
+			}
+			byte[] body = crl;
+			String etag = "\"crl-" + version + "\"";
+			exchange.getResponseHeaders().set("ETag", etag);
+			if (etag.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+				notModifiedCount.incrementAndGet();
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+			String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+			if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+				ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+				GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+				gzip.write(body);
+				gzip.close();
+				body = compressed.toByteArray();
+				exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+			}
+			exchange.getResponseHeaders().set("Content-Type", "application/pkix-crl");
+			exchange.sendResponseHeaders(200, body.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(body);
+			out.close();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		long slowMillis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+		long hedgeMillis = args.length > 1 ? Long.parseLong(args[1]) : 100;
+		int iterations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+
+		// ручная проверка CRLDP (в которой работает hedging) выполняется на IBM J9
+		System.setProperty("com.ibm.security.enableCRLDP", "true");
+		if (!System.getProperty("java.vendor").toUpperCase().contains("IBM")) {
+			System.setProperty("java.vendor", "IBM (emulated by " + System.getProperty("java.vendor") + ")");
+		}
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair caKeys = generator.generateKeyPair();
+		Date notBefore = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000L);
+		Date notAfter = new Date(System.currentTimeMillis() + 365 * 24 * 60 * 60 * 1000L);
+		X500Name caName = new X500Name("CN=Local CRL Test CA");
+		JcaX509v3CertificateBuilder caBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, notBefore, notAfter, caName, caKeys.getPublic());
+		caBuilder.addExtension(X509Extension.basicConstraints, true, new BasicConstraints(true));
+		X509Certificate caCert = new JcaX509CertificateConverter().getCertificate(caBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+
+		X509v2CRLBuilder crlBuilder = new X509v2CRLBuilder(caName, new Date(System.currentTimeMillis() - 60 * 1000L));
+		crlBuilder.setNextUpdate(new Date(System.currentTimeMillis() + 60 * 60 * 1000L));
+		crlBuilder.addCRLEntry(BigInteger.valueOf(999), new Date(), 1);
+		byte[] crl = crlBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())).getEncoded();
+
+		LocalCrlServer primary = new LocalCrlServer(crl);
+		LocalCrlServer mirror = new LocalCrlServer(crl);
+		primary.setDelayMillis(slowMillis);
+		String primaryUrl = primary.start();
+		String mirrorUrl = mirror.start();
+		try {
+			JcaX509v3CertificateBuilder endBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.valueOf(1000), notBefore, notAfter, new X500Name("CN=End"), generator.generateKeyPair().getPublic());
+			DistributionPoint[] points = new DistributionPoint[] { distributionPoint(primaryUrl), distributionPoint(mirrorUrl) };
+			endBuilder.addExtension(X509Extension.cRLDistributionPoints, false, new CRLDistPoint(points));
+			X509Certificate endCert = new JcaX509CertificateConverter().getCertificate(endBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+
+			KeyStore keyStore = KeyStore.getInstance("PKCS12");
+			keyStore.load(null, null);
+			keyStore.setCertificateEntry("ca", caCert);
+
+			// без кэшей: каждая проверка загружает CRL
+			CertificateVerifier.setResultCache(0, 0);
+			CertificateVerifier.setCrlCache(0);
+			CertificateVerifier.setEndpointHealthTracker(null);
+
+			CertificateVerifier.setCrlHedgeDelayMillis(-1);
+			measure("sequential", endCert, keyStore, iterations);
+			CertificateVerifier.setCrlHedgeDelayMillis(hedgeMillis);
+			measure("hedged " + hedgeMillis + " ms", endCert, keyStore, iterations);
+			System.out.println("Primary requests: " + primary.getRequestCount() + ", mirror requests: " + mirror.getRequestCount());
+		} finally {
+			primary.stop();
+			mirror.stop();
+		}
+	}
+
+	private static DistributionPoint distributionPoint(String url) {
+		return new DistributionPoint(new DistributionPointName(new GeneralNames(new GeneralName(GeneralName.uniformResourceIdentifier, url))), null, null);
+	}
+
+	private static void measure(String name, X509Certificate cert, KeyStore keyStore, int iterations) throws Exception {
+		long max = 0;
+		long total = 0;
+		for (int i = 0; i < iterations; i++) {
+			long started = System.currentTimeMillis();
+			CertificateVerifier.verifyCertificate(cert, keyStore, false);
+			long elapsed = System.currentTimeMillis() - started;
+			total += elapsed;
+			max = Math.max(max, elapsed);
+		}
+		System.out.println(name + ": " + iterations + " verifications, avg " + total / iterations + " ms, max " + max + " ms");
+	}
+}
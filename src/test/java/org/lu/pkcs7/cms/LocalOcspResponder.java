@@ -0,0 +1,229 @@
+package org.lu.pkcs7.cms;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.Security;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AccessDescription;
+import org.bouncycastle.asn1.x509.AuthorityInformationAccess;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.CRLReason;
+import org.bouncycastle.asn1.x509.GeneralName;
+import org.bouncycastle.asn1.x509.X509Extension;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateHolder;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.cert.ocsp.BasicOCSPResp;
+import org.bouncycastle.cert.ocsp.BasicOCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.CertificateStatus;
+import org.bouncycastle.cert.ocsp.OCSPReq;
+import org.bouncycastle.cert.ocsp.OCSPResp;
+import org.bouncycastle.cert.ocsp.OCSPRespBuilder;
+import org.bouncycastle.cert.ocsp.Req;
+import org.bouncycastle.cert.ocsp.RespID;
+import org.bouncycastle.cert.ocsp.RevokedStatus;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.operator.ContentSigner;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+import org.lu.pki.tools.OcspClient;
+import org.lu.pki.tools.OcspStatus;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * OCSP-сервер в процессе для проверки {@link OcspClient} без сети (пропускная способность и задержка).
+ * Отвечает на POST-запросы ответом, подписанным ключом издателя. Отозванные серийные номера задаются через {@link #revoke(BigInteger)}.
+ * main() выпускает тестовые сертификаты и измеряет запросы с кэшем ответов и без него.
+ *
+ * @author Igor Konovalov ikonovalov@luxoft.com
+ *
+ */
+public class LocalOcspResponder implements HttpHandler {
+
+	private final X509CertificateHolder issuer;
+
+	private final PrivateKey issuerKey;
+
+	private final Map<BigInteger, Date> revoked = new ConcurrentHashMap<BigInteger, Date>();
+
+	private final AtomicLong requestCount = new AtomicLong();
+
+	private volatile long nextUpdateMillis = 60 * 60 * 1000L;
+
+	private volatile long delayMillis = 0;
+
+	private HttpServer server;
+
+	private ExecutorService executor;
+
+	public LocalOcspResponder(X509Certificate issuerCert, PrivateKey issuerKey) throws Exception {
+		this.issuer = new JcaX509CertificateHolder(issuerCert);
+		this.issuerKey = issuerKey;
+	}
+
+	/**
+	 * Запуск на свободном порту localhost.
+	 * @return адрес OCSP для AIA
+	 */
+	public String start() throws IOException {
+		System.setProperty("sun.net.httpserver.nodelay", "true"); // иначе Nagle + delayed ACK добавляют ~40 мс к каждому ответу
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/ocsp", this);
+		executor = Executors.newFixedThreadPool(8);
+		server.setExecutor(executor);
+		server.start();
+		return getUrl();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			executor.shutdown();
+		}
+	}
+
+	public String getUrl() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/ocsp";
+	}
+
+	public void revoke(BigInteger serial) {
+		revoked.put(serial, new Date());
+	}
+
+	public void setNextUpdateMillis(long nextUpdateMillis) {
+		this.nextUpdateMillis = nextUpdateMillis;
+	}
+
+	/**
+	 * Искусственная задержка ответа (имитация сетевой задержки).
+	 */
+	public void setDelayMillis(long delayMillis) {
+		this.delayMillis = delayMillis;
+	}
+
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	@Override
+	public void handle(HttpExchange exchange) throws IOException {
+		requestCount.incrementAndGet();
+		try {
+			byte[] request = readAll(exchange.getRequestBody());
+			if (delayMillis > 0) {
+				Thread.sleep(delayMillis);
+			}
+			byte[] response = respond(new OCSPReq(request)).getEncoded();
+			exchange.getResponseHeaders().set("Content-Type", "application/ocsp-response");
+			exchange.sendResponseHeaders(200, response.length);
+			OutputStream out = exchange.getResponseBody();
+			out.write(response);
+			out.close();
+		} catch (Exception e) {
+			exchange.sendResponseHeaders(500, -1);
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private OCSPResp respond(OCSPReq request) throws Exception {
+		Date now = new Date();
+		Date nextUpdate = new Date(now.getTime() + nextUpdateMillis);
+		BasicOCSPRespBuilder builder = new BasicOCSPRespBuilder(new RespID(issuer.getSubject()));
+		for (Req req : request.getRequestList()) {
+			Date revocationTime = revoked.get(req.getCertID().getSerialNumber());
+			CertificateStatus status = revocationTime == null ? CertificateStatus.GOOD : new RevokedStatus(revocationTime, CRLReason.keyCompromise);
+			builder.addResponse(req.getCertID(), status, now, nextUpdate, null);
+		}
+		ContentSigner signer = new JcaContentSignerBuilder("SHA256withRSA").build(issuerKey);
+		BasicOCSPResp basic = builder.build(signer, new X509CertificateHolder[] { issuer }, now);
+		return new OCSPRespBuilder().build(OCSPRespBuilder.SUCCESSFUL, basic);
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int n;
+		while ((n = in.read(buffer)) != -1) {
+			out.write(buffer, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	public static void main(String[] args) throws Exception {
+		Security.addProvider(new BouncyCastleProvider());
+		int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		long delay = args.length > 1 ? Long.parseLong(args[1]) : 0;
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair caKeys = generator.generateKeyPair();
+		KeyPair endKeys = generator.generateKeyPair();
+		Date notBefore = new Date(System.currentTimeMillis() - 24 * 60 * 60 * 1000L);
+		Date notAfter = new Date(System.currentTimeMillis() + 365 * 24 * 60 * 60 * 1000L);
+		X500Name caName = new X500Name("CN=Local OCSP Test CA");
+		JcaX509v3CertificateBuilder caBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.ONE, notBefore, notAfter, caName, caKeys.getPublic());
+		caBuilder.addExtension(X509Extension.basicConstraints, true, new BasicConstraints(true));
+		X509Certificate caCert = new JcaX509CertificateConverter().getCertificate(caBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+
+		LocalOcspResponder responder = new LocalOcspResponder(caCert, caKeys.getPrivate());
+		responder.setDelayMillis(delay);
+		String url = responder.start();
+		try {
+			X509Certificate[] certs = new X509Certificate[iterations];
+			for (int i = 0; i < iterations; i++) {
+				JcaX509v3CertificateBuilder endBuilder = new JcaX509v3CertificateBuilder(caName, BigInteger.valueOf(1000 + i), notBefore, notAfter, new X500Name("CN=End " + i), endKeys.getPublic());
+				endBuilder.addExtension(X509Extension.authorityInfoAccess, false, new AuthorityInformationAccess(AccessDescription.id_ad_ocsp, new GeneralName(GeneralName.uniformResourceIdentifier, url)));
+				certs[i] = new JcaX509CertificateConverter().getCertificate(endBuilder.build(new JcaContentSignerBuilder("SHA256withRSA").build(caKeys.getPrivate())));
+			}
+			responder.revoke(certs[0].getSerialNumber());
+
+			OcspClient client = new OcspClient();
+			OcspStatus first = client.getStatus(certs[0], caCert);
+			System.out.println("Revoked certificate: " + first);
+			System.out.println("Good certificate: " + client.getStatus(certs[1], caCert));
+
+			client.setResponseCache(0);
+			measure("without cache", client, certs, caCert);
+			client.setResponseCache(iterations);
+			measure("cache filling", client, certs, caCert);
+			measure("with cache", client, certs, caCert);
+			System.out.println(client.getResponseCache());
+			System.out.println("Responder requests: " + responder.getRequestCount());
+		} finally {
+			responder.stop();
+		}
+	}
+
+	private static void measure(String name, OcspClient client, X509Certificate[] certs, X509Certificate caCert) throws Exception {
+		long[] latencies = new long[certs.length];
+		long started = System.nanoTime();
+		for (int i = 0; i < certs.length; i++) {
+			long t = System.nanoTime();
+			client.getStatus(certs[i], caCert);
+			latencies[i] = System.nanoTime() - t;
+		}
+		long total = System.nanoTime() - started;
+		Arrays.sort(latencies);
+		System.out.println(name + ": " + certs.length + " requests, " + (certs.length * 1000000000L / Math.max(total, 1)) + " req/s, p50 " + latencies[latencies.length / 2] / 1000 + " us, p99 " + latencies[latencies.length * 99 / 100] / 1000 + " us");
+	}
+}